@@ -0,0 +1,269 @@
+package hw1;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Benchmarks the mergers, the chunk sorters and the whole pipeline with nothing but the JDK (the assignment only
+ * allows the standard library, so no JMH). Every case gets warmup runs that aren't recorded, a GC before each run that
+ * is, and the GC count, GC time and (approximate) heap allocation of each recorded run alongside its time.
+ * <p>
+ * Results go to a CSV file (one row per recorded run, JVM details in # comments up top) and a summary per case to
+ * stdout. Inputs come from {@link Distribution}s with a fixed seed, so the same arguments always sort the same data.
+ * <pre>
+ * java -Xmx2g -cp out hw1.Benchmark --suite=merge,sort,pipeline --distributions=random,sorted,reverse,few_distinct,zipf
+ *     --sizes=1000000,10000000 --threads=1,2,4 --fan-ins=2,16,128 --warmup=2 --iterations=5 --seed=42 --out=bench.csv
+ * </pre>
+ * Any other --name=value options (e.g. --io=async) are passed on to the pipeline's {@link SortOptions}. The pipeline
+ * always takes the external path, even for sizes the in-memory sort would pick up, since that's what it's labelled as.
+ */
+public class Benchmark {
+    static final List<Class<? extends ChunkMerger>> MERGERS = List.of(
+            PairwiseChunkMerger.class, PriorityQueueChunkMerger.class, TreeSetChunkMerger.class, HybridChunkMerger.class);
+    static final List<Class<? extends ChunkSorter>> SORTERS = List.of(
+            HeapChunkSorter.class, MappedChunkSorter.class, RadixChunkSorter.class);
+    static final String CSV_HEADER = "suite,subject,distribution,size,threads,fanIn,iteration,seconds,gcCount,gcMillis,allocatedBytes";
+    private static final Logger LOGGER = Logger.getLogger(Benchmark.class.getName());
+
+    private final List<Distribution> distributions;
+    private final long[] sizes;
+    private final int[] threadCounts;
+    private final int[] fanIns;
+    private final int warmup;
+    private final int iterations;
+    private final long seed;
+    private final Path workDir;
+    private final Map<String, String> sortOptions;
+    private final PrintStream csv;
+
+    private Benchmark(Map<String, String> options, PrintStream csv) {
+        this.distributions = Stream.of(options.getOrDefault("distributions", "random").split(","))
+                .map(name -> Distribution.valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'))).toList();
+        this.sizes = Stream.of(options.getOrDefault("sizes", "1000000").split(",")).mapToLong(Long::parseLong).toArray();
+        this.threadCounts = Stream.of(options.getOrDefault("threads", "1").split(",")).mapToInt(Integer::parseInt).toArray();
+        this.fanIns = Stream.of(options.getOrDefault("fan-ins", "2,16").split(",")).mapToInt(Integer::parseInt).toArray();
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        this.iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        this.seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        this.workDir = Paths.get(options.getOrDefault("dir", System.getProperty("java.io.tmpdir")));
+        this.sortOptions = options;
+        this.csv = csv;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("expected --name=value, not " + arg);
+            int equals = arg.indexOf('=');
+            if (equals < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        // the pipeline is chatty, and logging isn't what's being measured
+        if (!options.containsKey("verbose")) Logger.getLogger("").setLevel(Level.WARNING);
+        var suites = Set.of(options.getOrDefault("suite", "merge,sort,pipeline").split(","));
+        try (var csv = new PrintStream(options.getOrDefault("out", "benchmark.csv"))) {
+            csv.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                    + ", processors=" + Runtime.getRuntime().availableProcessors() + ", maxMemory=" + Runtime.getRuntime().maxMemory()
+                    + ", gc=" + ManagementFactory.getGarbageCollectorMXBeans().stream().map(gc -> gc.getName()).toList());
+            csv.println("# " + ManagementFactory.getRuntimeMXBean().getInputArguments() + " " + Arrays.toString(args));
+            csv.println(CSV_HEADER);
+            var benchmark = new Benchmark(options, csv);
+            if (suites.contains("merge")) benchmark.mergers();
+            if (suites.contains("sort")) benchmark.sorters();
+            if (suites.contains("pipeline")) benchmark.pipeline();
+        }
+    }
+
+    //region suites
+    private void mergers() throws Exception {
+        for (var distribution : distributions) {
+            for (long size : sizes) {
+                long[] values = generate(distribution, size);
+                for (int fanIn : fanIns) {
+                    // presorted runs, split the same way the sorter would
+                    var splits = Split.createSplits(values.length * (long) Long.BYTES, fanIn);
+                    var runs = new LongBuffer[fanIn];
+                    for (int i = 0; i < fanIn; i++) {
+                        long[] run = Arrays.copyOfRange(values, (int) splits[i].index, (int) (splits[i].index + splits[i].length));
+                        Arrays.sort(run);
+                        runs[i] = LongBuffer.wrap(run);
+                    }
+                    var output = LongBuffer.allocate(values.length);
+                    for (var mergerType : MERGERS) {
+                        // it's in the name
+                        if (mergerType == PairwiseChunkMerger.class && fanIn != 2) continue;
+                        var constructor = mergerType.getDeclaredConstructor(LongBuffer[].class, LongBuffer.class);
+                        measure("merge", mergerType.getSimpleName(), distribution, size, 1, fanIn, () -> {
+                            var chunks = Stream.of(runs).map(LongBuffer::duplicate).toArray(LongBuffer[]::new);
+                            constructor.newInstance(chunks, output.clear()).call();
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    private void sorters() throws Exception {
+        for (var distribution : distributions) {
+            for (long size : sizes) {
+                long[] values = generate(distribution, size);
+                Path mapped = Files.createTempFile(workDir, "benchmark", ".bin");
+                try (FileChannel channel = FileChannel.open(mapped, Set.of(READ, WRITE, DELETE_ON_CLOSE))) {
+                    // heap vs mapped: the same sorters, on buffers from either side of the JVM heap
+                    var heapInput = LongBuffer.wrap(values);
+                    var heapOutput = LongBuffer.allocate(values.length);
+                    var mappedInput = channel.map(READ_WRITE, 0, values.length * (long) Long.BYTES).asLongBuffer().put(values).flip();
+                    var mappedOutput = channel.map(READ_WRITE, values.length * (long) Long.BYTES, values.length * (long) Long.BYTES).asLongBuffer();
+                    for (var sorterType : SORTERS) {
+                        var sorter = ChunkSorter.create(sorterType, null, null, null, null);
+                        measure("sort", sorterType.getSimpleName() + "/heap", distribution, size, 1, 0,
+                                () -> sorter.sort(heapInput.duplicate(), heapOutput.clear()));
+                        measure("sort", sorterType.getSimpleName() + "/mapped", distribution, size, 1, 0,
+                                () -> sorter.sort(mappedInput.duplicate(), mappedOutput.clear()));
+                    }
+                }
+            }
+        }
+    }
+
+    private void pipeline() throws Exception {
+        var options = new HashMap<>(sortOptions);
+        options.remove("threads"); // a list here, one count at a time below
+        for (var distribution : distributions) {
+            for (long size : sizes) {
+                Path input = Files.createTempFile(workDir, "benchmark-input", ".bin");
+                Path output = workDir.resolve(input.getFileName() + ".sorted");
+                try {
+                    write(input, distribution, size);
+                    for (int nThreads : threadCounts) {
+                        var sortOptions = SortOptions.fromCommandLine(options);
+                        sortOptions.nThreads = nThreads;
+                        sortOptions.inMemory = false;
+                        measure("pipeline", sortOptions.chunkSorterType.getSimpleName() + "/" + sortOptions.chunkMergerType.getSimpleName(),
+                                distribution, size, nThreads, sortOptions.fanIn, () -> {
+                                    Files.deleteIfExists(output);
+                                    new ParallelExternalLongSorter(input, output, sortOptions).sort();
+                                });
+                    }
+                } finally {
+                    Files.deleteIfExists(input);
+                    Files.deleteIfExists(output);
+                }
+            }
+        }
+    }
+    //endregion
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private void measure(String suite, String subject, Distribution distribution, long size, int threads, int fanIn, Body body) throws Exception {
+        String name = suite + " " + subject + " " + distribution + " n=" + size + " threads=" + threads + " fanIn=" + fanIn;
+        LOGGER.info("warming up " + name);
+        for (int i = 0; i < warmup; i++) body.run();
+        double[] seconds = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            System.gc(); // so one run's garbage isn't collected on the next one's time
+            var probe = new Probe();
+            long start = System.nanoTime();
+            body.run();
+            seconds[i] = (System.nanoTime() - start) / 1e9;
+            csv.println(String.join(",", suite, subject, distribution.name(), String.valueOf(size), String.valueOf(threads),
+                    String.valueOf(fanIn), String.valueOf(i), String.valueOf(seconds[i]), probe.stop()));
+        }
+        Arrays.sort(seconds);
+        System.out.printf("%-90s median %8.4fs  min %8.4fs  max %8.4fs%n", name, seconds[seconds.length / 2], seconds[0], seconds[seconds.length - 1]);
+    }
+
+    private long[] generate(Distribution distribution, long size) {
+        if (size > InMemoryLongSorter.MAX_LENGTH) throw new IllegalArgumentException("in-memory benchmarks are limited to " + InMemoryLongSorter.MAX_LENGTH + " longs");
+        long[] values = new long[(int) size];
+        distribution.fill(values, seed, 0, size);
+        return values;
+    }
+
+    private void write(Path path, Distribution distribution, long size) throws IOException {
+        var block = ByteBuffer.allocateDirect(BlockIO.DEFAULT_BLOCK_BYTES);
+        try (FileChannel channel = FileChannel.open(path, Set.of(WRITE, TRUNCATE_EXISTING))) {
+            for (long index = 0; index < size; ) {
+                block.clear();
+                var view = block.asLongBuffer();
+                while (view.hasRemaining() && index < size) view.put(distribution.get(seed, index++, size));
+                block.limit(view.position() * Long.BYTES);
+                while (block.hasRemaining()) channel.write(block);
+            }
+        }
+    }
+
+    /**
+     * GC count and time from the collectors' MXBeans. Allocation is the growth of the heap plus whatever the GC freed
+     * in the meantime (from GC notifications, which arrive asynchronously, so a collection right at the end of a run
+     * may be missed).
+     */
+    private static class Probe {
+        private static final AtomicLong freedBytes = new AtomicLong();
+
+        static {
+            for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (!(gc instanceof NotificationEmitter emitter)) continue;
+                emitter.addNotificationListener((notification, handback) -> {
+                    if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+                    var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+                    long freed = getUsed(info.getMemoryUsageBeforeGc()) - getUsed(info.getMemoryUsageAfterGc());
+                    freedBytes.addAndGet(Math.max(0, freed));
+                }, null, null);
+            }
+        }
+
+        private final long gcCount = getGcCount();
+        private final long gcMillis = getGcMillis();
+        private final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        private final long freed = freedBytes.get();
+
+        /**
+         * @return gcCount,gcMillis,allocatedBytes since the probe was created
+         */
+        String stop() {
+            long allocated = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() - heapUsed + freedBytes.get() - freed;
+            return (getGcCount() - gcCount) + "," + (getGcMillis() - gcMillis) + "," + Math.max(0, allocated);
+        }
+
+        private static long getGcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(gc -> Math.max(0, gc.getCollectionCount())).sum();
+        }
+
+        private static long getGcMillis() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(gc -> Math.max(0, gc.getCollectionTime())).sum();
+        }
+
+        private static long getUsed(Map<String, MemoryUsage> pools) {
+            return pools.values().stream().mapToLong(MemoryUsage::getUsed).sum();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static hw1.Utils.MB;
+
+/**
+ * Explicit block I/O on dedicated I/O thread(s), as an alternative to mapping a file and page faulting through it.
+ * <p>
+ * A {@link Reader} keeps up to {@code depth} positional block reads in flight ahead of whoever is consuming it
+ * (read-ahead), and a {@link Writer} hands full blocks to the I/O thread and only waits once {@code depth} of them are
+ * still in flight (write-behind). With a depth of 2 or 3 that's double or triple buffering: the worker thread keeps
+ * sorting or merging while the I/O thread reads the next blocks and writes the last ones.
+ */
+class BlockIO implements AutoCloseable {
+    static final int DEFAULT_BLOCK_BYTES = MB - (MB % Long.BYTES);
+    static final int DEFAULT_DEPTH = 3;
+    static final int DEFAULT_IO_THREADS = 1;
+    private final ExecutorService ioExecutor;
+    final int blockBytes;
+    final int depth;
+
+    BlockIO(int blockBytes, int depth, int ioThreads) {
+        assert blockBytes >= Long.BYTES && blockBytes % Long.BYTES == 0 : "block size must be a positive multiple of Long.BYTES";
+        assert depth >= 1 : "need at least one block in flight";
+        this.blockBytes = blockBytes;
+        this.depth = depth;
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads, runnable -> {
+            var thread = new Thread(runnable, "block-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a reader over [bytePosition, bytePosition + byteSize) of the channel that starts reading ahead right away
+     */
+    Reader reader(FileChannel channel, long bytePosition, long byteSize) {
+        return new Reader(channel, bytePosition, byteSize, blockBytes);
+    }
+
+    /**
+     * Readers for small ranges (e.g. one source among many in a merge) don't need full-sized blocks.
+     */
+    Reader reader(FileChannel channel, long bytePosition, long byteSize, int blockBytes) {
+        return new Reader(channel, bytePosition, byteSize, blockBytes);
+    }
+
+    /**
+     * @return a writer that writes sequentially starting at bytePosition
+     */
+    Writer writer(FileChannel channel, long bytePosition) {
+        return new Writer(channel, bytePosition, blockBytes);
+    }
+
+    Writer writer(FileChannel channel, long bytePosition, int blockBytes) {
+        return new Writer(channel, bytePosition, blockBytes);
+    }
+
+    @Override
+    public void close() {
+        ioExecutor.shutdown();
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting on block I/O", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw new UncheckedIOException((IOException) e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    class Reader implements LongSource {
+        private final FileChannel channel;
+        private final long end;
+        private final int blockBytes;
+        private final ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private long nextBlockPosition;
+        private ByteBuffer current;
+        private LongBuffer currentView;
+
+        private Reader(FileChannel channel, long bytePosition, long byteSize, int blockBytes) {
+            assert byteSize % Long.BYTES == 0;
+            this.channel = channel;
+            this.nextBlockPosition = bytePosition;
+            this.end = bytePosition + byteSize;
+            this.blockBytes = (int) Math.max(Long.BYTES, Math.min(blockBytes, byteSize));
+            readAhead();
+        }
+
+        private void readAhead() {
+            while (inFlight.size() < depth && nextBlockPosition < end) {
+                var block = free.isEmpty() ? ByteBuffer.allocateDirect(blockBytes) : free.poll();
+                long position = nextBlockPosition;
+                block.clear().limit((int) Math.min(blockBytes, end - position));
+                nextBlockPosition += block.limit();
+                inFlight.add(ioExecutor.submit(() -> {
+                    while (block.hasRemaining()) {
+                        if (channel.read(block, position + block.position()) < 0) throw new IOException("unexpected end of file");
+                    }
+                    return block.flip();
+                }));
+            }
+        }
+
+        @Override
+        public int read(long[] dst, int offset, int length) {
+            while (currentView == null || !currentView.hasRemaining()) {
+                if (current != null) free.add(current);
+                current = null;
+                currentView = null;
+                if (inFlight.isEmpty()) return 0;
+                current = await(inFlight.poll());
+                currentView = current.asLongBuffer();
+                readAhead();
+            }
+            int n = Math.min(length, currentView.remaining());
+            currentView.get(dst, offset, n);
+            return n;
+        }
+
+        /**
+         * Stops reading ahead and waits for the reads already in flight, for readers given up on before they're done
+         * (their failures don't matter anymore, so they're dropped along with the blocks).
+         */
+        void close() {
+            nextBlockPosition = end;
+            while (!inFlight.isEmpty()) {
+                try {
+                    inFlight.poll().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    // nobody's going to read this block
+                }
+            }
+            current = null;
+            currentView = null;
+        }
+    }
+
+    class Writer implements LongSink {
+        private final FileChannel channel;
+        private final int blockBytes;
+        private final ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private long nextBlockPosition;
+        private ByteBuffer current;
+        private LongBuffer currentView;
+
+        private Writer(FileChannel channel, long bytePosition, int blockBytes) {
+            this.channel = channel;
+            this.nextBlockPosition = bytePosition;
+            this.blockBytes = blockBytes;
+        }
+
+        @Override
+        public void write(long[] src, int offset, int length) {
+            while (length > 0) {
+                if (current == null) {
+                    current = free.isEmpty() ? ByteBuffer.allocateDirect(blockBytes) : free.poll();
+                    current.clear();
+                    currentView = current.asLongBuffer();
+                }
+                int n = Math.min(length, currentView.remaining());
+                currentView.put(src, offset, n);
+                offset += n;
+                length -= n;
+                if (!currentView.hasRemaining()) submit();
+            }
+        }
+
+        private void submit() {
+            // write-behind is bounded: past 'depth' blocks in flight, wait for the oldest one
+            while (inFlight.size() >= depth) free.add(await(inFlight.poll()));
+            var block = current;
+            block.limit(currentView.position() * Long.BYTES);
+            long position = nextBlockPosition;
+            nextBlockPosition += block.limit();
+            inFlight.add(ioExecutor.submit(() -> {
+                while (block.hasRemaining()) channel.write(block, position + block.position());
+                return block;
+            }));
+            current = null;
+            currentView = null;
+        }
+
+        @Override
+        public void close() {
+            if (current != null && currentView.position() > 0) submit();
+            while (!inFlight.isEmpty()) await(inFlight.poll());
+        }
+    }
+}
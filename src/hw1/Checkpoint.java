@@ -0,0 +1,240 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * A job manifest, so a sort that dies part way through can pick up after the last round it finished instead of
+ * starting over.
+ * <p>
+ * After the runs are sorted, and after every merge round, the manifest (a properties file, replaced atomically)
+ * records where each run is and its {@link SortVerifier.Digest}. A round only ever overwrites the side of scratch it
+ * isn't reading from (see {@link ScratchSpace}), so the runs of the last finished round are intact until the next one
+ * finishes. Digests are read back from disk after every round: each run has to be sorted, and since the hash is
+ * order-independent, a merged run's has to equal the sum of the runs it was merged from. Resuming checks the input
+ * hasn't changed and reads every run back once more before trusting it.
+ * <p>
+ * Scratch files are kept when a checkpointed sort fails, and deleted along with the manifest once it succeeds.
+ */
+class Checkpoint {
+    static final int VERSION = 1;
+    private static final Logger LOGGER = Logger.getLogger(Checkpoint.class.getName());
+    private final Path path;
+    private final Properties properties;
+    // of the runs in the last finished round, by index
+    private List<SortVerifier.Digest> digests = null;
+
+    private Checkpoint(Path path, Properties properties) {
+        this.path = path;
+        this.properties = properties;
+    }
+
+    /**
+     * Starts a manifest for a new sort (with no finished rounds yet).
+     */
+    static Checkpoint create(Path path, Path inputPath, long inputSize, Path outputPath, ScratchSpace scratch, Object plan) throws IOException {
+        var properties = new Properties();
+        properties.setProperty("version", String.valueOf(VERSION));
+        properties.setProperty("input", inputPath.toAbsolutePath().toString());
+        properties.setProperty("inputSize", String.valueOf(inputSize));
+        properties.setProperty("inputModified", String.valueOf(Files.getLastModifiedTime(inputPath).toMillis()));
+        properties.setProperty("output", outputPath.toAbsolutePath().toString());
+        properties.setProperty("scratch.count", String.valueOf(scratch.size()));
+        for (int device = 0; device < scratch.size(); device++) {
+            properties.setProperty("scratch." + device, scratch.get(device).toAbsolutePath().toString());
+        }
+        properties.setProperty("plan", String.valueOf(plan));
+        properties.setProperty("round", "-1");
+        var checkpoint = new Checkpoint(path, properties);
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    static Checkpoint load(Path path) throws IOException {
+        var properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        if (!String.valueOf(VERSION).equals(properties.getProperty("version"))) {
+            throw new RuntimeException("Abort: " + path + " isn't a version " + VERSION + " manifest");
+        }
+        return new Checkpoint(path, properties);
+    }
+
+    /**
+     * @throws RuntimeException if the manifest is for a different sort, or the input changed since
+     */
+    void validate(Path inputPath, long inputSize, Path outputPath) throws IOException {
+        check("input", inputPath.toAbsolutePath().toString());
+        check("inputSize", String.valueOf(inputSize));
+        check("inputModified", String.valueOf(Files.getLastModifiedTime(inputPath).toMillis()));
+        check("output", outputPath.toAbsolutePath().toString());
+        for (var file : getScratchFiles()) {
+            if (hasFinishedRound() && !Files.exists(file)) throw new RuntimeException("Abort: scratch file " + file + " from " + path + " is gone");
+        }
+    }
+
+    private void check(String key, String expected) {
+        String actual = properties.getProperty(key);
+        if (!expected.equals(actual)) {
+            throw new RuntimeException("Abort: " + path + " is for " + key + "=" + actual + ", not " + expected + " (delete it to start over)");
+        }
+    }
+
+    List<Path> getScratchFiles() {
+        int count = Integer.parseInt(properties.getProperty("scratch.count"));
+        List<Path> files = new ArrayList<>();
+        for (int device = 0; device < count; device++) files.add(Paths.get(properties.getProperty("scratch." + device)));
+        return files;
+    }
+
+    /**
+     * @return the last round that finished: 0 for sorting the runs, 1+ for merging them, -1 if none did
+     */
+    int getRound() {
+        return Integer.parseInt(properties.getProperty("round"));
+    }
+
+    boolean hasFinishedRound() {
+        return getRound() >= 0;
+    }
+
+    /**
+     * @return the runs of the last finished round
+     */
+    List<Split> getRuns() {
+        int count = Integer.parseInt(properties.getProperty("runs"));
+        List<Split> runs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] fields = properties.getProperty("run." + i).split(",");
+            var run = new Split(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+            run.device = Integer.parseInt(fields[2]);
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private List<SortVerifier.Digest> getDigests() {
+        int count = Integer.parseInt(properties.getProperty("runs"));
+        List<SortVerifier.Digest> digests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] fields = properties.getProperty("run." + i).split(",");
+            var digest = new SortVerifier.Digest();
+            digest.count = Long.parseLong(fields[3]);
+            digest.sum = Long.parseUnsignedLong(fields[4], 16);
+            digest.saltedSum = Long.parseUnsignedLong(fields[5], 16);
+            digests.add(digest);
+        }
+        return digests;
+    }
+
+    /**
+     * Reads the last finished round's runs back and checks them against the manifest, before resuming from them.
+     */
+    void verifyRuns(ScratchSpace.Channels channels, int nThreads, int stallSeconds) throws InterruptedException, ExecutionException {
+        var runs = getRuns();
+        var expected = getDigests();
+        var actual = digest(channels, runs, nThreads, stallSeconds);
+        for (int i = 0; i < runs.size(); i++) {
+            if (actual.get(i).unsortedAt >= 0 || !actual.get(i).isPermutationOf(expected.get(i))) {
+                throw new RuntimeException("Abort: " + runs.get(i) + " doesn't match " + path + " (expected " + expected.get(i) + ", found " + actual.get(i) + ")");
+            }
+        }
+        digests = actual;
+        LOGGER.info("the receipts check out (" + runs.size() + " runs from round " + getRound() + " verified)");
+    }
+
+    /**
+     * Records a finished round, once its runs check out.
+     *
+     * @param round 0 for sorting the runs, 1+ for merging them
+     * @param runs  what the round wrote, in order
+     */
+    void finishRound(int round, List<Split> runs, ScratchSpace.Channels channels, int nThreads, int stallSeconds) throws IOException, InterruptedException, ExecutionException {
+        var actual = digest(channels, runs, nThreads, stallSeconds);
+        var previous = digests == null ? null : getRuns();
+        for (int i = 0; i < runs.size(); i++) {
+            var run = runs.get(i);
+            if (actual.get(i).unsortedAt >= 0) throw new RuntimeException("Abort: round " + round + " left " + run + " unsorted at " + actual.get(i).unsortedAt);
+            if (digests == null) continue;
+            // merging only moves values around, so a merged run holds exactly what its inputs did
+            var expected = new SortVerifier.Digest();
+            for (int j = 0; j < previous.size(); j++) {
+                var source = previous.get(j);
+                if (source.index >= run.index && source.index < run.index + run.length) expected.append(digests.get(j));
+            }
+            if (!actual.get(i).isPermutationOf(expected)) {
+                throw new RuntimeException("Abort: round " + round + " corrupted " + run + " (expected " + expected + ", found " + actual.get(i) + ")");
+            }
+        }
+        properties.setProperty("round", String.valueOf(round));
+        properties.setProperty("round." + round, runs.size() + " runs");
+        properties.setProperty("runs", String.valueOf(runs.size()));
+        for (int i = 0; i < runs.size(); i++) {
+            var run = runs.get(i);
+            var digest = actual.get(i);
+            properties.setProperty("run." + i, run.index + "," + run.length + "," + run.device + "," + digest.count
+                    + "," + Long.toHexString(digest.sum) + "," + Long.toHexString(digest.saltedSum));
+        }
+        for (int i = runs.size(); properties.remove("run." + i) != null; i++) {
+            // forget the previous round's extra runs
+        }
+        digests = actual;
+        save();
+        LOGGER.info("saving the game (round " + round + " checkpointed to " + path + ")");
+    }
+
+    /**
+     * @return each run's digest, reading several slices of every run at once
+     */
+    private static List<SortVerifier.Digest> digest(ScratchSpace.Channels channels, List<Split> runs, int nThreads, int stallSeconds) throws InterruptedException, ExecutionException {
+        List<Callable<SortVerifier.Digest>> digesters = new ArrayList<>();
+        for (var run : runs) {
+            FileChannel channel = channels.get(run.device);
+            for (var slice : Split.createSplits(run.byteSize, nThreads)) {
+                var part = new Split(run.index + slice.index, slice.length);
+                digesters.add(() -> SortVerifier.digest(channel, part));
+            }
+        }
+        var slices = Utils.invokeAll(nThreads, stallSeconds, digesters, "checkpoint");
+        List<SortVerifier.Digest> digests = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i++) {
+            var digest = new SortVerifier.Digest();
+            for (var slice : slices.subList(i * nThreads, (i + 1) * nThreads)) digest.append(slice);
+            digests.add(digest);
+        }
+        return digests;
+    }
+
+    private void save() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp)) {
+            properties.store(writer, "external sort job manifest, delete to start over");
+        }
+        Utils.moveIntoPlace(temp, path);
+    }
+
+    /**
+     * Deletes the manifest (and, when it never finished a round, the scratch files it was keeping).
+     */
+    void delete(boolean scratchToo) throws IOException {
+        if (scratchToo) for (var file : getScratchFiles()) Files.deleteIfExists(file);
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint{path=" + path + ", round=" + getRound() + '}';
+    }
+}
@@ -1,6 +1,8 @@
 package hw1;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Objects;
@@ -10,12 +12,18 @@ import java.util.logging.Logger;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
 
-@SuppressWarnings("ClassCanBeRecord") // suppressed because colab notebook's version of java doesn't support 'record'
-class ChunkSorter implements Callable<Void> {
+/**
+ * Sorts one split of the input file into the same position of the output (scratch) file. Subclasses decide how the
+ * sorting actually happens; the maps are handled here.
+ */
+public abstract class ChunkSorter implements Callable<Void> {
+    // a single mapping can't be any larger than this (and LongBuffer indices are ints)
+    static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE - (Integer.MAX_VALUE % Long.BYTES);
     private static final Logger LOGGER = Logger.getLogger(CommandLineInterface.class.getName());
     private final FileChannel inputFileChannel;
     private final FileChannel outputFileChannel;
     private final Split split;
+    private Metrics metrics; // counts the maps, set by create (null = nobody's counting)
 
     public ChunkSorter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split) {
         this.inputFileChannel = inputFileChannel;
@@ -23,6 +31,30 @@ class ChunkSorter implements Callable<Void> {
         this.split = split;
     }
 
+    /**
+     * @param metrics where to count the sorter's maps (null if nobody's counting)
+     */
+    static ChunkSorter create(Class<? extends ChunkSorter> type, FileChannel inputFileChannel, FileChannel outputFileChannel, Split split, Metrics metrics) throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        var sorter = type.getDeclaredConstructor(FileChannel.class, FileChannel.class, Split.class)
+                .newInstance(inputFileChannel, outputFileChannel, split);
+        sorter.metrics = metrics;
+        return sorter;
+    }
+
+    /**
+     * Subclasses declare how much heap they need while sorting a chunk as a {@code static final long
+     * HEAP_BYTES_PER_ELEMENT} field, so it can be planned for before any sorter exists.
+     *
+     * @return heap bytes a sorter of the given type holds per element of its chunk (0 if it works off-heap)
+     */
+    static long getHeapBytesPerElement(Class<? extends ChunkSorter> type) {
+        try {
+            return type.getDeclaredField("HEAP_BYTES_PER_ELEMENT").getLong(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return Long.BYTES; // assume it copies the chunk onto the heap
+        }
+    }
+
     @Override
     public Void call() throws Exception {
         sort();
@@ -30,20 +62,34 @@ class ChunkSorter implements Callable<Void> {
     }
 
     private void sort() throws IOException {
-        var input = inputFileChannel.map(READ_ONLY, split.bytePosition, split.byteSize).asLongBuffer();
-        var output = outputFileChannel.map(READ_WRITE, split.bytePosition, split.byteSize).asLongBuffer();
+        var input = Utils.map(metrics, inputFileChannel, READ_ONLY, split.bytePosition, split.byteSize).asLongBuffer();
+        var output = Utils.map(metrics, outputFileChannel, READ_WRITE, split.bytePosition, split.byteSize).asLongBuffer();
         assert input.position() == output.position() : "expected chunk in/out to have same position";
         assert input.limit() == output.limit() : "expected chunk in/out to have same limit";
         LOGGER.info("preparing outdated VCR references (sorting chunk)");
         output.mark();
-        long[] tmp = new long[input.remaining()];
-        input.get(tmp);
-        Arrays.sort(tmp);
-        output.put(tmp);
+        sort(input, output);
         LOGGER.info("be kind, rewind (finished sorting chunk, rewinding chunk buffer)");
         output.reset();
     }
 
+    /**
+     * @param input  the chunk to sort, at position 0
+     * @param output where the sorted chunk goes, at position 0 and the same length as input; left at its limit
+     */
+    abstract void sort(LongBuffer input, LongBuffer output);
+
+    /**
+     * Sorts a chunk that has already been read onto the heap (see {@link PipelinedChunkSorter}).
+     *
+     * @param values the values to sort (may be clobbered)
+     * @return an array holding the sorted values, either the given one or another of the same length
+     */
+    long[] sort(long[] values) {
+        Arrays.sort(values);
+        return values;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
@@ -61,9 +107,9 @@ class ChunkSorter implements Callable<Void> {
 
     @Override
     public String toString() {
-        return "ChunkSorter[" +
+        return getClass().getSimpleName() + "[" +
                 "inputFileChannel=" + inputFileChannel + ", " +
                 "scratchFileChannel=" + outputFileChannel + ", " +
                 "split=" + split + ']';
     }
-}
\ No newline at end of file
+}
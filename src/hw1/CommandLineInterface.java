@@ -1,29 +1,49 @@
 package hw1;
 
-import java.nio.channels.FileChannel;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
-
-import static hw1.Utils.getChunkMergerClass;
-import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
-import static java.nio.file.StandardOpenOption.READ;
+import java.util.stream.Stream;
 
 public class CommandLineInterface {
     static final String DEFAULT_INPUT_FILENAME = "array.bin";
     static final String DEFAULT_OUTPUT_FILENAME = "sorted.bin";
+    static final String STDIN_FILENAME = "-";
     static final int DEFAULT_NTHREADS = Runtime.getRuntime().availableProcessors();
     private static final Logger LOGGER = Logger.getLogger(CommandLineInterface.class.getName());
 
     public static void main(String[] args) throws Exception {
         //region arg parsing
         LOGGER.info(Arrays.toString(args));
+        // options look like --name=value and can go anywhere, everything else is positional
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        args = positional.toArray(new String[0]);
         String inputFileName = (args.length < 1) ? DEFAULT_INPUT_FILENAME : args[0];
         String outputFileName = (args.length < 2) ? DEFAULT_OUTPUT_FILENAME : args[1];
-        final int nThreads = (args.length < 3) ? DEFAULT_NTHREADS : Integer.parseInt(args[2]);
-        var chunkMergerClass = (args.length < 4) ? PairwiseChunkMerger.class : getChunkMergerClass(args[3]);
+        // threads and merger can also be given positionally, for backwards compatibility
+        if (args.length >= 3) options.put("threads", args[2]);
+        if (args.length >= 4) options.put("merger", args[3]);
+        var sortOptions = SortOptions.fromCommandLine(options);
+        // checks the output is a sorted permutation of the input, cheap enough to leave on (see SortVerifier)
+        boolean verify = Boolean.parseBoolean(options.getOrDefault("verify", "true"));
         final Path inputPath = Paths.get(inputFileName).toAbsolutePath();
         final Path outputPath = Paths.get(outputFileName).toAbsolutePath();
         LOGGER.info("you put your long ints in " + inputPath);
@@ -31,15 +51,27 @@ public class CommandLineInterface {
         LOGGER.info("hardcore, " + DEFAULT_NTHREADS + " cores");
         //endregion
 
-        // cleanup from previous runs
-        var oldOutputDeleted = outputPath.toFile().delete();
-        LOGGER.info((oldOutputDeleted ? "get that nasty mess out of here " : "it was like that when i got here!") + outputPath);
+        // cleanup from previous runs, unless one left a checkpoint to resume from (the output may hold its runs)
+        if (sortOptions.checkpointPath != null && Files.exists(sortOptions.checkpointPath)) {
+            LOGGER.info("don't touch anything, we'll be right back " + outputPath);
+        } else {
+            var oldOutputDeleted = outputPath.toFile().delete();
+            LOGGER.info((oldOutputDeleted ? "get that nasty mess out of here " : "it was like that when i got here!") + outputPath);
+        }
+
+        // "-" sorts whatever's piped in, without landing it on disk first
+        if (inputFileName.equals(STDIN_FILENAME)) {
+            new StreamingLongSorter(new FileInputStream(FileDescriptor.in), outputPath, sortOptions).sort();
+            // the input's gone, so there's nothing to checksum against
+            if (verify) SortVerifier.verify(List.of(), outputPath, sortOptions.nThreads, sortOptions.stallSeconds);
+            return;
+        }
 
         //region test data generation
         if (args.length >= 5) {
-            final int inputLength = Integer.parseInt(args[3]); // unit = # of long values
+            final long inputLength = Long.parseLong(args[3]); // unit = # of long values
             long generatorStart = System.nanoTime();
-            new DataFileGenerator(inputPath.toString(), inputLength).generate();
+            new DataFileGenerator(inputPath.toString(), inputLength, options).generate();
             long generatorStop = System.nanoTime();
             double generatorElapsedSeconds = (double) (generatorStop - generatorStart) / Math.pow(10, 9);
             System.out.printf("Finished writing test file with %d long integers in %,.3f seconds%n",
@@ -47,19 +79,46 @@ public class CommandLineInterface {
         }
         //endregion
 
-        var sorter = new ParallelExternalLongSorter(inputPath, outputPath, nThreads, chunkMergerClass);
-        sorter.sort();
+        //region selection (no sorting needed)
+        if (options.containsKey("smallest") || options.containsKey("largest") || options.containsKey("percentiles")) {
+            if (!sortOptions.recordFormat.isLongs()) throw new IllegalArgumentException("selection only works on longs");
+            var selector = new LongSelector(inputPath, sortOptions);
+            long[] selected;
+            if (options.containsKey("smallest")) selected = selector.smallest(Long.parseLong(options.get("smallest")));
+            else if (options.containsKey("largest")) selected = selector.largest(Long.parseLong(options.get("largest")));
+            else {
+                // lowest percentile first, so the output is in rank order (i.e. sorted) like every other output
+                selected = selector.percentiles(Stream.of(options.get("percentiles").split(",")).mapToDouble(Double::parseDouble).sorted().toArray());
+            }
+            LongSelector.write(outputPath, selected);
+            return;
+        }
+        //endregion
 
-        //region post-condition verification
-        try (
-                FileChannel inFC = FileChannel.open(inputPath, Set.of(READ));
-                FileChannel outFC = FileChannel.open(outputPath, Set.of(READ))
-        ) {
-            assert (inFC.size() == outFC.size()) : "expected in size (" + inFC.size() + ") == out size (" + outFC.size() + ")";
-            var in = inFC.map(READ_ONLY, 0, inFC.size()).asLongBuffer();
-            var out = outFC.map(READ_ONLY, 0, outFC.size()).asLongBuffer();
-            assert Utils.isEmpty(in) == Utils.isEmpty(out) : "expected output to be all 0's only if input is all 0's";
+        //region merging (no sorting needed)
+        if (options.containsKey("merge")) {
+            // the input is a comma separated list of files that are each sorted already
+            List<Path> inputPaths = Stream.of(inputFileName.split(",")).map(name -> Paths.get(name).toAbsolutePath()).toList();
+            boolean checkInputs = Boolean.parseBoolean(options.getOrDefault("check-inputs", "false"));
+            new SortedFileMerger(inputPaths, outputPath, sortOptions, checkInputs).merge();
+            if (verify) SortVerifier.verify(inputPaths, outputPath, sortOptions.nThreads, sortOptions.stallSeconds);
+            return;
+        }
+        //endregion
+
+        if (sortOptions.recordFormat.isLongs()) {
+            // --workers spreads the sort over that many JVMs (see SortCoordinator), falling back to this one if need be
+            boolean sorted = options.containsKey("workers") && new SortCoordinator(inputPath, outputPath, options).sort();
+            if (!sorted) {
+                var sorter = new ParallelExternalLongSorter(inputPath, outputPath, sortOptions);
+                sorter.sort();
+            }
+        } else {
+            new RecordSorter(inputPath, outputPath, sortOptions).sort();
         }
+
+        //region post-condition verification
+        if (verify && sortOptions.recordFormat.isLongs()) SortVerifier.verify(inputPath, outputPath, sortOptions.nThreads, sortOptions.stallSeconds);
         //endregion
     }
 }
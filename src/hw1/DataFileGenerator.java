@@ -2,37 +2,100 @@
 
 package hw1;
 
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Random;
-import java.util.stream.LongStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
 
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes N longs from a {@link Distribution}, one slice of the file per thread, with positional writes into a
+ * preallocated file. Each value only depends on the seed and its index (a counter-based generator, so every thread's
+ * stream is just its own range of indexes), which means the same seed makes the same file whatever the thread count.
+ * <pre>
+ * java -cp out hw1.DataFileGenerator array.bin 1000000000 [--distribution=zipf] [--seed=42] [--threads=8]
+ * </pre>
+ */
 public class DataFileGenerator {
+    private static final Logger LOGGER = Logger.getLogger(DataFileGenerator.class.getName());
     String filename;
-    int N;
+    long N;
+    Distribution distribution = Distribution.RANDOM;
+    long seed = ThreadLocalRandom.current().nextLong();
+    int nThreads = Runtime.getRuntime().availableProcessors();
 
-    public DataFileGenerator(String filename, int N) {
+    public DataFileGenerator(String filename, long N) {
         this.filename = filename;
         this.N = N;
     }
 
-    public static void main(String[] args) throws java.io.IOException {
-        String outputFileName = (args.length < 1) ? "array.bin" : args[0];
-        int N = (args.length < 2) ? 100 : Integer.parseInt(args[1]);
-        new DataFileGenerator(args[0], Integer.parseInt(args[1])).generate();
+    /**
+     * @param options distribution, seed and threads, all optional (the seed is random, and logged, if not given)
+     */
+    public DataFileGenerator(String filename, long N, Map<String, String> options) {
+        this(filename, N);
+        if (options.containsKey("distribution")) distribution = Distribution.valueOf(options.get("distribution").toUpperCase(Locale.ROOT).replace('-', '_'));
+        if (options.containsKey("seed")) seed = Long.parseLong(options.get("seed"));
+        if (options.containsKey("threads")) nThreads = Integer.parseInt(options.get("threads"));
     }
 
-    public void generate() throws IOException {
-        LongStream ls = new Random().longs(N);
-        try (var f = new FileOutputStream(this.filename);
-             var dataWriter = new DataOutputStream(f)) {
-            var it = ls.iterator();
-            while (it.hasNext()) {
-                dataWriter.writeLong(it.next());
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
             }
+            int equals = arg.indexOf('=');
+            if (equals < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, equals), arg.substring(equals + 1));
         }
+        String outputFileName = (positional.size() < 1) ? "array.bin" : positional.get(0);
+        long N = (positional.size() < 2) ? 100 : Long.parseLong(positional.get(1));
+        new DataFileGenerator(outputFileName, N, options).generate();
     }
 
+    public void generate() throws IOException, InterruptedException, ExecutionException {
+        if (N < 0) throw new IllegalArgumentException("can't generate " + N + " longs");
+        LOGGER.info("rolling the dice (" + N + " " + distribution + " longs, seed " + seed + ", " + nThreads + " threads)");
+        Path path = Paths.get(filename);
+        try (FileChannel channel = FileChannel.open(path, Set.of(CREATE, WRITE, TRUNCATE_EXISTING))) {
+            Utils.preallocate(path, N * Long.BYTES);
+            List<Callable<Void>> writers = new ArrayList<>();
+            for (var split : Split.createSplits(N * Long.BYTES, nThreads)) {
+                if (split.length > 0) writers.add(() -> write(channel, split));
+            }
+            Utils.invokeAll(nThreads, writers, "data file generation");
+        }
+    }
 
+    private Void write(FileChannel channel, Split split) throws IOException {
+        var block = ByteBuffer.allocateDirect(BlockIO.DEFAULT_BLOCK_BYTES);
+        var view = block.asLongBuffer();
+        long[] values = new long[view.capacity()];
+        long position = split.bytePosition;
+        for (long index = split.index; index < split.index + split.length; ) {
+            int n = (int) Math.min(values.length, split.index + split.length - index);
+            for (int i = 0; i < n; i++) values[i] = distribution.get(seed, index + i, N);
+            view.clear();
+            view.put(values, 0, n);
+            block.clear().limit(n * Long.BYTES);
+            while (block.hasRemaining()) position += channel.write(block, position);
+            index += n;
+        }
+        return null;
+    }
 }
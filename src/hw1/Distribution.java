@@ -0,0 +1,84 @@
+package hw1;
+
+/**
+ * Shapes of input for benchmarks and generated test files.
+ * <p>
+ * Every value is a pure function of (seed, index, total length), so the same seed always makes the same data, and any
+ * slice of it can be generated on its own (e.g. by different threads) without generating what comes before it.
+ */
+enum Distribution {
+    // uniform over all longs
+    RANDOM,
+    // evenly spaced over all longs, ascending
+    SORTED,
+    // evenly spaced over all longs, descending
+    REVERSE,
+    // ascending runs of PARTIAL_RUN_LENGTH values, each starting somewhere random (what natural run detection is for)
+    PARTIALLY_SORTED,
+    // a handful of (random) values, repeated in random order
+    FEW_DISTINCT,
+    // a long tail of (random) values with frequencies roughly proportional to 1 / rank (i.e. Zipf with s = 1)
+    ZIPF,
+    // all distinct and evenly spread, but dealt out ADVERSARIAL_STRIDE apart: every run covers the whole range, so
+    // merges have to interleave all of their inputs value by value, and nothing is long enough to look presorted
+    ADVERSARIAL;
+
+    static final int FEW_DISTINCT_VALUES = 16;
+    static final int ZIPF_VALUES = 1_000_000;
+    static final int PARTIAL_RUN_LENGTH = 1 << 16;
+    static final int ADVERSARIAL_STRIDE = 1021;
+
+    /**
+     * @param seed  same seed, same data
+     * @param index which value
+     * @param total how many values there are altogether (only the sorted shapes care)
+     */
+    long get(long seed, long index, long total) {
+        return switch (this) {
+            case RANDOM -> random(seed, index);
+            case SORTED -> Long.MIN_VALUE + index * Long.divideUnsigned(-1L, Math.max(1, total));
+            case REVERSE -> Long.MIN_VALUE + (total - 1 - index) * Long.divideUnsigned(-1L, Math.max(1, total));
+            case PARTIALLY_SORTED -> {
+                long run = index / PARTIAL_RUN_LENGTH;
+                // starts within +-2^61, steps under 2^24, so a run never overflows
+                long start = random(seed, run) >> 2;
+                long step = random(~seed, run) >>> 40;
+                yield start + (index % PARTIAL_RUN_LENGTH) * step;
+            }
+            case FEW_DISTINCT -> random(~seed, Long.remainderUnsigned(random(seed, index), FEW_DISTINCT_VALUES));
+            case ZIPF -> {
+                // inverse CDF of the continuous approximation: P(rank <= r) ~ ln(r) / ln(n)
+                double uniform = (random(seed, index) >>> 11) * 0x1.0p-53;
+                long rank = (long) Math.pow(ZIPF_VALUES, uniform);
+                yield random(~seed, rank);
+            }
+            case ADVERSARIAL -> {
+                // rank of the value at index: stripe (index % stride) of the sorted order, taken in order
+                long perStripe = (total + ADVERSARIAL_STRIDE - 1) / ADVERSARIAL_STRIDE;
+                long rank = (index % ADVERSARIAL_STRIDE) * perStripe + index / ADVERSARIAL_STRIDE;
+                yield Long.MIN_VALUE + rank * Long.divideUnsigned(-1L, Math.max(1, perStripe * ADVERSARIAL_STRIDE));
+            }
+        };
+    }
+
+    /**
+     * Fills dst with values [firstIndex, firstIndex + dst.length) of the distribution.
+     */
+    void fill(long[] dst, long seed, long firstIndex, long total) {
+        for (int i = 0; i < dst.length; i++) dst[i] = get(seed, firstIndex + i, total);
+    }
+
+    private static long random(long seed, long index) {
+        return mix(mix(seed) + index);
+    }
+
+    /**
+     * SplitMix64's finalizer: consecutive inputs come out looking independent.
+     */
+    static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,220 @@
+package hw1;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sample sort: instead of sorting chunks and merging them, partition the input into key ranges ("buckets") that are
+ * laid out back to back in the output file, then sort every bucket where it lands. The concatenation of the sorted
+ * buckets is the sorted output, so there's no merge phase and no scratch file.
+ * <ol>
+ *     <li>sample the input and pick bucketCount - 1 splitters</li>
+ *     <li>the input is split up (at least one split per thread), and each split counts how many of its elements fall
+ *     into each bucket</li>
+ *     <li>prefix sums over (bucket, split) give every split its own region of every bucket</li>
+ *     <li>each split streams its elements into those regions</li>
+ *     <li>buckets are sorted in parallel by a {@link ChunkSorter}, in place</li>
+ * </ol>
+ */
+class DistributionSorter {
+    // samples per bucket; more samples = more even buckets
+    static final int OVERSAMPLING = 32;
+    // cap on total samples so huge bucket counts don't turn sampling into its own pass
+    static final int MAX_SAMPLES = 1 << 20;
+    // longs each split buffers per bucket before writing them out
+    static final int WRITE_BLOCK_LENGTH = 512;
+    private static final long SEED = 0x5EED;
+    private static final Logger LOGGER = Logger.getLogger(DistributionSorter.class.getName());
+    private final Path inputPath;
+    private final Path outputPath;
+    private final long inputLength;
+    private final int nThreads;
+    private final int stallSeconds;
+    private final int bucketCount;
+    private final long maxBucketLength;
+    private final Class<? extends ChunkSorter> chunkSorterType;
+    private final Metrics metrics; // counts the maps, null = nobody's counting
+
+    /**
+     * @param inputSize       size of the input, in bytes
+     * @param chunkCount      how many chunks the merge pipeline would have sorted; buckets are planned to be half a
+     *                        chunk on average, so that unevenly sampled buckets still fit
+     * @param maxBucketLength the most elements a single chunk sorter can handle
+     */
+    DistributionSorter(Path inputPath, Path outputPath, long inputSize, int nThreads, int stallSeconds, int chunkCount, long maxBucketLength, Class<? extends ChunkSorter> chunkSorterType, Metrics metrics) {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.inputLength = inputSize / Long.BYTES;
+        this.nThreads = nThreads;
+        this.stallSeconds = stallSeconds;
+        // nThreads * k buckets, so every thread gets the same number of buckets to sort
+        int k = Math.max(1, (2 * chunkCount + nThreads - 1) / nThreads);
+        this.bucketCount = (int) Math.max(1, Math.min((long) nThreads * k, inputLength));
+        this.maxBucketLength = maxBucketLength;
+        this.chunkSorterType = chunkSorterType;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return false (having written nothing) if sampling produced a bucket too big to sort, else true
+     */
+    boolean sort() throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        try (
+                FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ));
+                FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(CREATE, READ, WRITE))
+        ) {
+            LOGGER.info("taking a few for the road (sampling splitters for " + bucketCount + " buckets)");
+            long[] splitters = sampleSplitters(inputFileChannel, inputLength, bucketCount);
+            // at least one split per thread, and none bigger than a single mapping
+            int splitCount = (int) Math.max(nThreads, (inputLength * Long.BYTES + ChunkSorter.MAX_CHUNK_BYTES - 1) / ChunkSorter.MAX_CHUNK_BYTES);
+            Split[] splits = Split.createSplits(inputLength * Long.BYTES, splitCount);
+
+            //region count
+            LOGGER.info("one long, two long, red long, blue long (counting bucket sizes)");
+            List<Callable<long[]>> counters = new ArrayList<>();
+            for (var split : splits) counters.add(() -> count(inputFileChannel, split, splitters, metrics));
+            List<long[]> counts = Utils.invokeAll(nThreads, stallSeconds, counters, "count");
+            long[] bucketLengths = new long[bucketCount];
+            for (long[] threadCounts : counts) {
+                for (int b = 0; b < bucketCount; b++) bucketLengths[b] += threadCounts[b];
+            }
+            long largest = Arrays.stream(bucketLengths).max().orElse(0);
+            LOGGER.info("largest bucket=" + largest + " expected=" + inputLength / bucketCount);
+            if (largest > maxBucketLength) return false;
+            //endregion
+
+            //region scatter
+            // bucket b starts where bucket b - 1 ends, and within a bucket split t writes right after split t - 1
+            long[][] offsets = new long[splits.length][bucketCount];
+            long offset = 0;
+            for (int b = 0; b < bucketCount; b++) {
+                for (int t = 0; t < splits.length; t++) {
+                    offsets[t][b] = offset;
+                    offset += counts.get(t)[b];
+                }
+            }
+            assert offset == inputLength : "expected buckets to hold every element";
+            LOGGER.info("everybody get in line (scattering into buckets)");
+            List<Callable<Void>> scatterers = new ArrayList<>();
+            for (int t = 0; t < splits.length; t++) {
+                var split = splits[t];
+                long[] threadOffsets = offsets[t];
+                scatterers.add(() -> scatter(inputFileChannel, outputFileChannel, split, splitters, threadOffsets, metrics));
+            }
+            Utils.invokeAll(nThreads, stallSeconds, scatterers, "scatter");
+            //endregion
+
+            //region sort buckets in place
+            LOGGER.info("tidying up each bucket (sorting buckets)");
+            List<ChunkSorter> bucketSorters = new ArrayList<>();
+            long bucketStart = 0;
+            for (long bucketLength : bucketLengths) {
+                if (bucketLength > 1) {
+                    var bucket = new Split(bucketStart, bucketLength);
+                    bucketSorters.add(ChunkSorter.create(chunkSorterType, outputFileChannel, outputFileChannel, bucket, metrics));
+                }
+                bucketStart += bucketLength;
+            }
+            Utils.invokeAll(nThreads, stallSeconds, bucketSorters, "bucket sort");
+            //endregion
+        }
+        return true;
+    }
+
+    /**
+     * @return bucketCount - 1 splitters, from a seeded random sample of the input
+     */
+    static long[] sampleSplitters(FileChannel inputFileChannel, long inputLength, int bucketCount) throws IOException {
+        int sampleCount = (int) Math.min(Math.min((long) bucketCount * OVERSAMPLING, MAX_SAMPLES), inputLength);
+        long[] samples = new long[sampleCount];
+        var random = new SplittableRandom(SEED);
+        var buffer = ByteBuffer.allocate(Long.BYTES);
+        for (int i = 0; i < sampleCount; i++) {
+            buffer.clear();
+            long position = random.nextLong(inputLength) * Long.BYTES;
+            while (buffer.hasRemaining()) {
+                if (inputFileChannel.read(buffer, position + buffer.position()) < 0) throw new IOException("input shrank while sampling");
+            }
+            samples[i] = buffer.getLong(0);
+        }
+        Arrays.sort(samples);
+        long[] splitters = new long[bucketCount - 1];
+        for (int b = 1; b < bucketCount; b++) splitters[b - 1] = samples[(int) ((long) b * sampleCount / bucketCount)];
+        return splitters;
+    }
+
+    /**
+     * @return the bucket a value belongs to: the number of splitters <= value
+     */
+    static int bucketOf(long[] splitters, long value) {
+        int lo = 0, hi = splitters.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (splitters[mid] <= value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return how many of the split's elements fall into each bucket
+     */
+    static long[] count(FileChannel inputFileChannel, Split split, long[] splitters, Metrics metrics) throws IOException {
+        long[] counts = new long[splitters.length + 1];
+        var input = Utils.map(metrics, inputFileChannel, READ_ONLY, split.bytePosition, split.byteSize).asLongBuffer();
+        while (input.hasRemaining()) counts[bucketOf(splitters, input.get())]++;
+        return counts;
+    }
+
+    /**
+     * @param offsets where (as an index into the output) the split's elements of each bucket go
+     */
+    static Void scatter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split, long[] splitters, long[] offsets, Metrics metrics) throws IOException {
+        int bucketCount = splitters.length + 1;
+        var input = Utils.map(metrics, inputFileChannel, READ_ONLY, split.bytePosition, split.byteSize).asLongBuffer();
+        var blocks = new ByteBuffer[bucketCount];
+        var blockViews = new LongBuffer[bucketCount];
+        long[] next = offsets.clone();
+        while (input.hasRemaining()) {
+            long value = input.get();
+            int b = bucketOf(splitters, value);
+            if (blocks[b] == null) {
+                blocks[b] = ByteBuffer.allocate(WRITE_BLOCK_LENGTH * Long.BYTES);
+                blockViews[b] = blocks[b].asLongBuffer();
+            }
+            blockViews[b].put(value);
+            if (!blockViews[b].hasRemaining()) next[b] = flush(outputFileChannel, blocks[b], blockViews[b], next[b]);
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            if (blocks[b] != null) next[b] = flush(outputFileChannel, blocks[b], blockViews[b], next[b]);
+        }
+        return null;
+    }
+
+    /**
+     * @return index of the element after the last one written
+     */
+    private static long flush(FileChannel channel, ByteBuffer block, LongBuffer view, long index) throws IOException {
+        int length = view.position();
+        block.clear().limit(length * Long.BYTES);
+        long position = index * Long.BYTES;
+        while (block.hasRemaining()) position += channel.write(block, position);
+        view.clear();
+        return index + length;
+    }
+}
@@ -0,0 +1,23 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Copies the chunk onto the heap, sorts it with {@link Arrays#sort(long[])}, and copies it back out.
+ */
+public class HeapChunkSorter extends ChunkSorter {
+    static final long HEAP_BYTES_PER_ELEMENT = Long.BYTES;
+
+    public HeapChunkSorter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split) {
+        super(inputFileChannel, outputFileChannel, split);
+    }
+
+    @Override
+    void sort(LongBuffer input, LongBuffer output) {
+        long[] tmp = new long[input.remaining()];
+        input.get(tmp);
+        output.put(sort(tmp));
+    }
+}
@@ -1,51 +1,132 @@
 package hw1;
 
 import java.nio.LongBuffer;
-import java.util.PriorityQueue;
-import java.util.TreeSet;
+import java.util.Arrays;
 
-public class HybridChunkMerger extends ChunkMerger{
+/**
+ * k-way merger built on a primitive {@link LongLoserTree}.
+ * <p>
+ * Instead of comparing buffers through a Comparator for every output long (see {@link PriorityQueueChunkMerger} and
+ * {@link TreeSetChunkMerger}), each chunk gets a "chonk" ("chunk of chunk") buffer that is refilled with a bulk get
+ * whenever it runs dry, and the tree only ever compares the cached head values. Output is staged in a chonk of its own
+ * and written with bulk puts. Buffers are allocated once when the merge starts (so that only running mergers hold
+ * them), and the merge loop itself never allocates.
+ */
+public class HybridChunkMerger extends ChunkMerger {
+    // 8192 longs = 64 KB per chunk, small enough that even a few thousand chunks won't OOM
+    static final int CHONK_LENGTH = 8 * 1024;
 
+    private final LongSource[] sources;
+    private final LongSink sink;
+    private final int[] chonkLengths;
+    private final int outputChonkLength;
+    private LongLoserTree tree;
+    private long[][] chonks;
+    private int[] chonkPositions;
+    private int[] chonkLimits;
+    private long[] outputChonk;
 
-    TreeSet<LongBuffer> chunkTreeSet;
-    PriorityQueue<Long> minHeap; // <-- see below, need a different implementation of min heap
     public HybridChunkMerger(LongBuffer[] presortedChunks, LongBuffer output) {
+        this(presortedChunks, output, CHONK_LENGTH);
+    }
+
+    public HybridChunkMerger(LongBuffer[] presortedChunks, LongBuffer output, int chonkLength) {
         super(presortedChunks, output);
-        this.chunkTreeSet = new TreeSet<>();
-        this.minHeap = new PriorityQueue<>();
+        assert chonkLength >= 1 : "chonkLength must be positive";
+        this.sources = new LongSource[presortedChunks.length];
+        this.chonkLengths = new int[presortedChunks.length];
+        for (int i = 0; i < presortedChunks.length; i++) {
+            sources[i] = LongSource.of(presortedChunks[i]);
+            chonkLengths[i] = Math.min(chonkLength, presortedChunks[i].remaining());
+        }
+        this.sink = LongSink.of(output);
+        this.outputChonkLength = Math.min(chonkLength, output.remaining());
+    }
+
+    /**
+     * Merges from sources that aren't buffers (e.g. {@link BlockIO} readers); {@link #presortedChunks} and
+     * {@link #output} are left null.
+     */
+    public HybridChunkMerger(LongSource[] sources, LongSink sink, int chonkLength) {
+        super(null, null);
+        assert chonkLength >= 1 : "chonkLength must be positive";
+        this.sources = sources;
+        this.sink = sink;
+        this.chonkLengths = new int[sources.length];
+        Arrays.fill(chonkLengths, chonkLength);
+        this.outputChonkLength = chonkLength;
+    }
+
+    private void allocate() {
+        int k = sources.length;
+        tree = new LongLoserTree(k);
+        chonks = new long[k][];
+        chonkPositions = new int[k];
+        chonkLimits = new int[k];
+        for (int i = 0; i < k; i++) chonks[i] = new long[chonkLengths[i]];
+        outputChonk = new long[outputChonkLength];
     }
 
     @Override
     void merge() {
-        // TODO:
-        //  Conjecture: instead of having MinHeap MH that gets populated with 1 element from each chunk and
-        //  taking 1 element at a time we can take any fixed #, CL ("chonk length"), as long as we add CL elements back
-        //  into MH from the chunk with the smallest value at its current position
-        //  a TreeSet TS can efficiently provide the chunk with the smallest value
-        //  ================================================
-        //  PS <- presorted chunks
-        //  CL <- "chonk length"; chonk = "chunk of chunk", should be some fixed number small enough to prevent OOM errors
-        //  remaining(chunks) <- {c: c in presorted chunks and c.hasRemaining()}
-        //  TS <- treeset of chunks (as in TreeSetChunkMerger)
-        //  MH <- min heap of longs (similar to PriorityQueueChunkMerger*)
-        //  OUT <- output
-        //  ================================================
-        //  for {chunk s.t. chunk in PS and chunk has remaining}
-        //       chonk <- take next CL elements from chunk if there are that many, otherwise take all remaining
-        //       add chonk to MH
-        //       if chunk has remaining:
-        //           add chunk to TS
-        //  while MH has remaining:
-        //       take CL elements from MH, add to OUT
-        //       if TS has remaining:
-        //           chunk <- take next 1 from TS
-        //           chonk <- take next 'CL' elements from chunk if there are that many, otherwise take all remaining
-        //           add chonk to MH
-        //           if chunk has remaining elements:
-        //               add chunk to TS
-        //  ==================================================
-        //  * the min heap would need an implementation that supports primitives, which PriorityQueue does not, because
-        //      boxing/unboxing (long <--> Long) overhead eat too much cpu/mem; PriorityQueue<long> is invalid,
-        //      PriorityQueue<Long> will "autobox"
+        allocate();
+        int live = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (refill(i)) {
+                tree.set(i, chonks[i][0]);
+                live++;
+            } else {
+                tree.exhaust(i);
+            }
+        }
+        tree.build();
+
+        int outputPosition = 0;
+        // once only one chunk is left, nothing needs comparing anymore; it gets drained in bulk below
+        while (live > 1) {
+            int winner = tree.winner();
+            outputChonk[outputPosition++] = tree.winnerKey();
+            if (outputPosition == outputChonk.length) {
+                sink.write(outputChonk, 0, outputPosition);
+                outputPosition = 0;
+            }
+            int position = ++chonkPositions[winner];
+            if (position < chonkLimits[winner]) {
+                tree.replay(chonks[winner][position]);
+            } else if (refill(winner)) {
+                tree.replay(chonks[winner][0]);
+            } else {
+                tree.exhaustWinner();
+                live--;
+            }
+        }
+        sink.write(outputChonk, 0, outputPosition);
+
+        if (live == 1) {
+            int last = tree.winner();
+            do {
+                sink.write(chonks[last], chonkPositions[last], chonkLimits[last] - chonkPositions[last]);
+            } while (refill(last));
+        }
+        sink.close();
+        release();
+    }
+
+    // the executor's task list keeps finished mergers reachable until the whole pass is done
+    private void release() {
+        tree = null;
+        chonks = null;
+        outputChonk = null;
+    }
+
+    /**
+     * @param chunk index of the chunk whose chonk should be refilled
+     * @return false if the chunk had nothing left to give
+     */
+    private boolean refill(int chunk) {
+        int length = chonks[chunk].length == 0 ? 0 : sources[chunk].read(chonks[chunk], 0, chonks[chunk].length);
+        chonkPositions[chunk] = 0;
+        chonkLimits[chunk] = length;
+        return length > 0;
     }
 }
@@ -0,0 +1,150 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sorts without a scratch file, for when everything fits in memory at once: each thread reads (or copies) one run
+ * onto the heap and sorts it with the chosen {@link ChunkSorter}, then the runs are merged straight into the output
+ * by co-ranked {@link HybridChunkMerger}s, one part per thread. The input is read once and the output written once.
+ * <p>
+ * Also usable as a library, to sort a long[] or a LongBuffer in place.
+ */
+public class InMemoryLongSorter {
+    // the merge partitioner (and LongBuffer) index with ints
+    static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+    private static final Logger LOGGER = Logger.getLogger(InMemoryLongSorter.class.getName());
+
+    public static void sort(long[] values) throws InterruptedException, ExecutionException {
+        sort(values, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void sort(long[] values, int nThreads) throws InterruptedException, ExecutionException {
+        sort(LongBuffer.wrap(values), nThreads);
+    }
+
+    /**
+     * Sorts the buffer's remaining elements in place (heap or direct); its position and limit are left as they were.
+     */
+    public static void sort(LongBuffer values, int nThreads) throws InterruptedException, ExecutionException {
+        var options = new SortOptions();
+        options.nThreads = nThreads;
+        sort(values, options);
+    }
+
+    static void sort(LongBuffer values, SortOptions options) throws InterruptedException, ExecutionException {
+        var output = values.slice();
+        var splits = Split.createSplits((long) output.limit() * Long.BYTES, options.nThreads);
+        long[][] runs = sortRuns(options, splits, split -> {
+            long[] run = new long[(int) split.length];
+            output.get((int) split.index, run);
+            return run;
+        });
+        List<Callable<Void>> mergers = new ArrayList<>();
+        for (var part : partition(runs, output, options.nThreads)) {
+            mergers.add(new HybridChunkMerger(part.presortedChunks, part.output));
+        }
+        Utils.invokeAll(options.nThreads, options.stallSeconds, mergers, "in-memory merge");
+    }
+
+    /**
+     * @param inputSize size of the input, in bytes (which has to fit, see {@link #fitsInMemory})
+     */
+    static void sortFile(Path inputPath, Path outputPath, long inputSize, SortOptions options) throws IOException, InterruptedException, ExecutionException {
+        try (
+                FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ));
+                FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(CREATE, WRITE));
+                var io = new BlockIO(options.blockBytes, options.ioDepth, options.ioThreads)
+        ) {
+            LOGGER.info("who needs disks anyway (sorting in memory)");
+            var splits = Split.createSplits(inputSize, options.nThreads);
+            long[][] runs = sortRuns(options, splits, split -> read(inputFileChannel, split));
+            List<Callable<Void>> mergers = new ArrayList<>();
+            for (var part : partition(runs, null, options.nThreads)) {
+                var sources = new LongSource[part.presortedChunks.length];
+                for (int i = 0; i < sources.length; i++) sources[i] = LongSource.of(part.presortedChunks[i]);
+                var sink = io.writer(outputFileChannel, (long) part.outputOffset * Long.BYTES);
+                mergers.add(new HybridChunkMerger(sources, sink, HybridChunkMerger.CHONK_LENGTH));
+            }
+            Utils.invokeAll(options.nThreads, options.stallSeconds, mergers, "in-memory merge");
+        }
+    }
+
+    /**
+     * @param inputSize size of the input, in bytes
+     * @return true if the runs (and whatever the sorter needs on top of them) fit in the heap budget
+     */
+    static boolean fitsInMemory(SortOptions options, SortPlanner.Budget budget, long inputSize) {
+        long length = inputSize / Long.BYTES;
+        long heapBytes = length * getHeapBytesPerElement(options.chunkSorterType);
+        long ioBytes = (long) options.nThreads * (options.ioDepth + 1) * options.blockBytes;
+        return length <= MAX_LENGTH && heapBytes <= budget.heapBytes && ioBytes <= budget.directBytes;
+    }
+
+    /**
+     * @return heap bytes per element: the runs themselves, plus whatever scratch the sorter needs while sorting them
+     */
+    static long getHeapBytesPerElement(Class<? extends ChunkSorter> chunkSorterType) {
+        return Math.max(Long.BYTES, ChunkSorter.getHeapBytesPerElement(chunkSorterType));
+    }
+
+    private interface RunReader {
+        long[] read(Split split) throws IOException;
+    }
+
+    private static long[][] sortRuns(SortOptions options, Split[] splits, RunReader reader) throws InterruptedException, ExecutionException {
+        ChunkSorter kernel;
+        try {
+            // only sort(long[]) is used, so the sorter doesn't need channels or a split
+            kernel = ChunkSorter.create(options.chunkSorterType, null, null, null, null);
+        } catch (NoSuchMethodException | InvocationTargetException | InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("couldn't create a " + options.chunkSorterType.getSimpleName(), e);
+        }
+        List<Callable<long[]>> sorters = new ArrayList<>();
+        for (var split : splits) sorters.add(() -> kernel.sort(reader.read(split)));
+        return Utils.invokeAll(options.nThreads, options.stallSeconds, sorters, "in-memory sort").toArray(new long[0][]);
+    }
+
+    private static List<MergePartitioner.Part> partition(long[][] runs, LongBuffer output, int nThreads) {
+        var chunks = new LongBuffer[runs.length];
+        long length = 0;
+        for (int i = 0; i < runs.length; i++) {
+            chunks[i] = LongBuffer.wrap(runs[i]);
+            length += runs[i].length;
+        }
+        int parts = MergePartitioner.getPartCount(length, length, nThreads);
+        return MergePartitioner.partition(chunks, output, parts);
+    }
+
+    private static long[] read(FileChannel channel, Split split) throws IOException {
+        long[] run = new long[(int) split.length];
+        var block = ByteBuffer.allocate((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, Math.max(Long.BYTES, split.byteSize)));
+        var view = block.asLongBuffer();
+        long position = split.bytePosition;
+        for (int offset = 0; offset < run.length; ) {
+            block.clear().limit((int) Math.min(block.capacity(), (long) (run.length - offset) * Long.BYTES));
+            while (block.hasRemaining()) {
+                int n = channel.read(block, position);
+                if (n < 0) throw new UncheckedIOException(new IOException("input shrank while reading " + split));
+                position += n;
+            }
+            int length = block.limit() / Long.BYTES;
+            view.get(0, run, offset, length);
+            offset += length;
+        }
+        return run;
+    }
+}
@@ -0,0 +1,113 @@
+package hw1;
+
+import java.nio.LongBuffer;
+
+/**
+ * In-place introsort over a LongBuffer using only absolute get/put, so it works directly on a mapped region of a
+ * file without ever copying it onto the heap.
+ * <p>
+ * Quicksort (median-of-three, or ninther for big ranges) with a Hoare partition that stops on equal keys, so runs of
+ * duplicates still split down the middle. Small ranges finish with insertion sort and ranges that recurse too deep
+ * fall back to heapsort, which keeps the worst case at O(n log n) and the stack at O(log n).
+ */
+class LongBufferSort {
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    private static final int NINTHER_THRESHOLD = 128;
+
+    private LongBufferSort() {
+    }
+
+    static void sort(LongBuffer buffer) {
+        sort(buffer, 0, buffer.limit());
+    }
+
+    /**
+     * @param from first index to sort (inclusive)
+     * @param to   last index to sort (exclusive)
+     */
+    static void sort(LongBuffer buffer, int from, int to) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(Math.max(1, to - from)));
+        introsort(buffer, from, to, depthLimit);
+    }
+
+    private static void introsort(LongBuffer a, int from, int to, int depthLimit) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            if (depthLimit-- == 0) {
+                heapsort(a, from, to);
+                return;
+            }
+            long pivot = choosePivot(a, from, to);
+            int i = from - 1, j = to;
+            while (true) {
+                do i++; while (a.get(i) < pivot);
+                do j--; while (a.get(j) > pivot);
+                if (i >= j) break;
+                swap(a, i, j);
+            }
+            // [from, j] <= pivot <= [j + 1, to); recurse into the smaller side, loop on the bigger one
+            if (j + 1 - from < to - (j + 1)) {
+                introsort(a, from, j + 1, depthLimit);
+                from = j + 1;
+            } else {
+                introsort(a, j + 1, to, depthLimit);
+                to = j + 1;
+            }
+        }
+        insertionSort(a, from, to);
+    }
+
+    private static long choosePivot(LongBuffer a, int from, int to) {
+        int last = to - 1, mid = (from + last) >>> 1;
+        if (to - from > NINTHER_THRESHOLD) {
+            int step = (to - from) / 8;
+            return medianOf3(
+                    medianOf3(a.get(from), a.get(from + step), a.get(from + 2 * step)),
+                    medianOf3(a.get(mid - step), a.get(mid), a.get(mid + step)),
+                    medianOf3(a.get(last - 2 * step), a.get(last - step), a.get(last)));
+        }
+        return medianOf3(a.get(from), a.get(mid), a.get(last));
+    }
+
+    private static long medianOf3(long x, long y, long z) {
+        return Math.max(Math.min(x, y), Math.min(Math.max(x, y), z));
+    }
+
+    private static void insertionSort(LongBuffer a, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            long value = a.get(i);
+            int j = i - 1;
+            while (j >= from && a.get(j) > value) {
+                a.put(j + 1, a.get(j));
+                j--;
+            }
+            a.put(j + 1, value);
+        }
+    }
+
+    private static void heapsort(LongBuffer a, int from, int to) {
+        int n = to - from;
+        for (int i = n / 2 - 1; i >= 0; i--) siftDown(a, from, i, n);
+        for (int end = n - 1; end > 0; end--) {
+            swap(a, from, from + end);
+            siftDown(a, from, 0, end);
+        }
+    }
+
+    private static void siftDown(LongBuffer a, int offset, int i, int n) {
+        long value = a.get(offset + i);
+        int child;
+        while ((child = 2 * i + 1) < n) {
+            if (child + 1 < n && a.get(offset + child + 1) > a.get(offset + child)) child++;
+            if (a.get(offset + child) <= value) break;
+            a.put(offset + i, a.get(offset + child));
+            i = child;
+        }
+        a.put(offset + i, value);
+    }
+
+    private static void swap(LongBuffer a, int i, int j) {
+        long tmp = a.get(i);
+        a.put(i, a.get(j));
+        a.put(j, tmp);
+    }
+}
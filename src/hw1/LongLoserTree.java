@@ -0,0 +1,118 @@
+package hw1;
+
+/**
+ * A tournament tree of losers over k primitive long keys, one key per source.
+ * <p>
+ * Internal node n (1 <= n < k) holds the index of the source that lost the match played at n, and node 0 holds the
+ * overall winner. Leaves are implicit (source i sits at position k + i), so any k >= 1 works, not just powers of two.
+ * After the winner's key changes, {@link #replay} only has to walk from that winner's leaf back up to the root,
+ * which costs ~log2(k) primitive compares and never allocates. Nor does {@link #build}, which reuses its scratch.
+ * <p>
+ * Exhausted sources stay in the tree and lose every match against a live source, so callers should stop pulling
+ * once they've taken as many elements as the sources held in total (or when {@link #isExhausted} is true for the
+ * winner).
+ */
+class LongLoserTree {
+    private final int k;
+    private final int[] tree;
+    // winners[n] = winner of the subtree rooted at n while building; leaves live at k..2k-1
+    private final int[] winners;
+    private final long[] keys;
+    private final boolean[] exhausted;
+
+    public LongLoserTree(int k) {
+        assert k >= 1 : "a tournament needs at least 1 player, not " + k;
+        this.k = k;
+        this.tree = new int[k];
+        this.winners = new int[2 * k];
+        this.keys = new long[k];
+        this.exhausted = new boolean[k];
+    }
+
+    /**
+     * Set the key of a source before calling {@link #build}.
+     */
+    void set(int source, long key) {
+        keys[source] = key;
+        exhausted[source] = false;
+    }
+
+    /**
+     * Mark a source as having no more keys (before calling {@link #build}, or in place of {@link #replay}).
+     */
+    void exhaust(int source) {
+        exhausted[source] = true;
+    }
+
+    /**
+     * Plays every match bottom-up. Must be called once after all sources have been {@link #set} (or exhausted).
+     */
+    void build() {
+        if (k == 1) {
+            tree[0] = 0;
+            return;
+        }
+        for (int i = 0; i < k; i++) winners[k + i] = i;
+        for (int n = k - 1; n >= 1; n--) {
+            int a = winners[2 * n], b = winners[2 * n + 1];
+            if (beats(a, b)) {
+                winners[n] = a;
+                tree[n] = b;
+            } else {
+                winners[n] = b;
+                tree[n] = a;
+            }
+        }
+        tree[0] = winners[1];
+    }
+
+    /**
+     * @return the source holding the smallest key
+     */
+    int winner() {
+        return tree[0];
+    }
+
+    long winnerKey() {
+        return keys[tree[0]];
+    }
+
+    boolean isExhausted(int source) {
+        return exhausted[source];
+    }
+
+    /**
+     * Give the current winner a new key and re-run its matches up to the root.
+     */
+    void replay(long key) {
+        int winner = tree[0];
+        keys[winner] = key;
+        replay(winner);
+    }
+
+    /**
+     * Mark the current winner as exhausted and re-run its matches up to the root.
+     */
+    void exhaustWinner() {
+        int winner = tree[0];
+        exhausted[winner] = true;
+        replay(winner);
+    }
+
+    private void replay(int winner) {
+        for (int n = (winner + k) >>> 1; n > 0; n >>>= 1) {
+            int challenger = tree[n];
+            if (beats(challenger, winner)) {
+                tree[n] = winner;
+                winner = challenger;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(int a, int b) {
+        if (exhausted[a]) return false;
+        if (exhausted[b]) return true;
+        return keys[a] <= keys[b];
+    }
+}
@@ -0,0 +1,332 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * The K smallest (or largest) values, or a few percentiles, without sorting the whole input.
+ * <p>
+ * K smallest takes one read pass: each thread keeps the K smallest values of its slice in a bounded max-heap (a plain
+ * long[], no boxing), and the threads' heaps are combined at the end. K largest is the same thing on the values'
+ * bitwise complements, which flips their order without overflowing like negation would.
+ * <p>
+ * Percentiles are a radix select: a pass histograms the top 16 bits of every value, which says which bucket each
+ * requested rank falls in, and each following pass either histograms the next 16 bits of just those buckets or, once
+ * a bucket fits in the heap budget, collects it for quickselect. On most inputs that's two passes (up to four when a
+ * single value is repeated more often than the heap can hold).
+ */
+class LongSelector {
+    static final int RADIX_BITS = 16;
+    private static final Logger LOGGER = Logger.getLogger(LongSelector.class.getName());
+    private final Path inputPath;
+    private final SortOptions options;
+    private final long length;
+    private final long heapBytes;
+
+    LongSelector(Path inputPath, SortOptions options) throws IOException {
+        this.inputPath = inputPath;
+        this.options = options;
+        long inputSize;
+        try (FileChannel channel = FileChannel.open(inputPath, Set.of(READ))) {
+            inputSize = channel.size();
+        }
+        if (inputSize % Long.BYTES != 0) throw new RuntimeException("Abort: input isn't a whole number of longs");
+        this.length = inputSize / Long.BYTES;
+        this.heapBytes = SortPlanner.getBudget(options).heapBytes;
+    }
+
+    /**
+     * @return the k smallest values (or all of them, if there are fewer), in ascending order
+     */
+    long[] smallest(long k) throws IOException, InterruptedException, ExecutionException {
+        LOGGER.info("only the best will do (selecting the " + k + " smallest values)");
+        return select(k, false);
+    }
+
+    /**
+     * @return the k largest values (or all of them, if there are fewer), in ascending order
+     */
+    long[] largest(long k) throws IOException, InterruptedException, ExecutionException {
+        LOGGER.info("go big or go home (selecting the " + k + " largest values)");
+        long[] values = select(k, true);
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        return values;
+    }
+
+    private long[] select(long k, boolean complement) throws IOException, InterruptedException, ExecutionException {
+        if (k < 0) throw new IllegalArgumentException("can't select " + k + " values");
+        int capacity = (int) Math.min(k, length);
+        // every thread's heap, plus all of them combined
+        if ((long) capacity * Long.BYTES * (options.nThreads + 1) > heapBytes || capacity > InMemoryLongSorter.MAX_LENGTH / options.nThreads) {
+            throw new IllegalArgumentException("the " + k + " values don't fit in the heap budget " + (options.nThreads + 1) + " times over, sort instead");
+        }
+        var heaps = scan(source -> {
+            var heap = new MaxHeap(capacity);
+            long[] block = new long[options.blockBytes / Long.BYTES];
+            for (int n; (n = source.read(block, 0, block.length)) > 0; ) {
+                for (int i = 0; i < n; i++) heap.offer(complement ? ~block[i] : block[i]);
+            }
+            return heap;
+        });
+        long[] all = new long[heaps.stream().mapToInt(heap -> heap.size).sum()];
+        int offset = 0;
+        for (var heap : heaps) {
+            System.arraycopy(heap.values, 0, all, offset, heap.size);
+            offset += heap.size;
+        }
+        Arrays.sort(all);
+        long[] selected = Arrays.copyOf(all, capacity);
+        if (complement) for (int i = 0; i < selected.length; i++) selected[i] = ~selected[i];
+        return selected;
+    }
+
+    /**
+     * A max-heap that only keeps the smallest values offered to it.
+     */
+    static class MaxHeap {
+        final long[] values;
+        int size = 0;
+
+        MaxHeap(int capacity) {
+            this.values = new long[capacity];
+        }
+
+        void offer(long value) {
+            if (size < values.length) {
+                int i = size++;
+                while (i > 0 && values[(i - 1) >>> 1] < value) {
+                    values[i] = values[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                values[i] = value;
+            } else if (size > 0 && value < values[0]) {
+                // replace the largest, and sift it down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && values[child + 1] > values[child]) child++;
+                    if (values[child] <= value) break;
+                    values[i] = values[child];
+                    i = child;
+                }
+                values[i] = value;
+            }
+        }
+    }
+
+    //region percentiles
+    /**
+     * Nearest rank: the p-th percentile of n values is the ceil(p / 100 * n)-th smallest (the smallest one for p = 0).
+     *
+     * @param percents each between 0 and 100
+     * @return the value at each percentile, in the same order
+     */
+    long[] percentiles(double[] percents) throws IOException, InterruptedException, ExecutionException {
+        if (length == 0) throw new RuntimeException("Abort: input file is empty");
+        LOGGER.info("reading the tea leaves (selecting percentiles " + Arrays.toString(percents) + ")");
+        long[] results = new long[percents.length];
+        // room for every thread's share of the candidates, plus all of them combined
+        long maxCandidates = Math.min(InMemoryLongSorter.MAX_LENGTH, heapBytes / Long.BYTES / 3);
+        var root = new Target(0, 0, length, maxCandidates);
+        for (int i = 0; i < percents.length; i++) {
+            if (!(percents[i] >= 0 && percents[i] <= 100)) throw new IllegalArgumentException("percentiles go from 0 to 100, not " + percents[i]);
+            long rank = Math.max(0, (long) Math.ceil(percents[i] / 100 * length) - 1);
+            root.requests.add(new long[]{i, Math.min(rank, length - 1)});
+        }
+        List<Target> targets = List.of(root);
+        for (int pass = 1; !targets.isEmpty(); pass++) {
+            LOGGER.info("pass " + pass + ": narrowing down " + targets.size() + " buckets");
+            final var active = targets;
+            var slices = scan(source -> scanTargets(source, active));
+            Map<Long, Target> next = new HashMap<>();
+            for (int t = 0; t < active.size(); t++) {
+                var target = active.get(t);
+                if (target.collects) {
+                    long[] candidates = combineCandidates(slices, t, target.count);
+                    for (var request : target.requests) results[(int) request[0]] = quickselect(candidates, (int) request[1]);
+                    continue;
+                }
+                long[] histogram = combineHistograms(slices, t);
+                for (var request : target.requests) {
+                    long rank = request[1];
+                    int bucket = 0;
+                    while (rank >= histogram[bucket]) rank -= histogram[bucket++];
+                    int depth = target.depth + RADIX_BITS;
+                    long prefix = (target.prefix << RADIX_BITS) | bucket;
+                    if (depth == Long.SIZE) {
+                        // every value in the bucket is the same one
+                        results[(int) request[0]] = prefix ^ Long.MIN_VALUE;
+                        continue;
+                    }
+                    long count = histogram[bucket];
+                    next.computeIfAbsent(prefix, p -> new Target(depth, p, count, maxCandidates)).requests.add(new long[]{request[0], rank});
+                }
+            }
+            targets = new ArrayList<>(next.values());
+        }
+        return results;
+    }
+
+    /**
+     * A bucket of values (by their top depth bits, as unsigned keys) that some requested ranks fall in.
+     */
+    private static class Target {
+        final int depth;
+        final long prefix;
+        final long count;
+        // small enough to collect, otherwise it's histogrammed by the next RADIX_BITS bits
+        final boolean collects;
+        // {which request, rank within this bucket}
+        final List<long[]> requests = new ArrayList<>();
+
+        Target(int depth, long prefix, long count, long maxCandidates) {
+            this.depth = depth;
+            this.prefix = prefix;
+            this.count = count;
+            this.collects = count <= maxCandidates;
+        }
+
+        boolean matches(long key) {
+            return depth == 0 || key >>> (Long.SIZE - depth) == prefix;
+        }
+
+        int bucketOf(long key) {
+            return (int) (key >>> (Long.SIZE - depth - RADIX_BITS)) & ((1 << RADIX_BITS) - 1);
+        }
+    }
+
+    /**
+     * @return per target: a histogram, or {count, candidates...} for targets that collect
+     */
+    private long[][] scanTargets(LongSource source, List<Target> targets) {
+        long[][] results = new long[targets.size()][];
+        int[] counts = new int[targets.size()];
+        for (int t = 0; t < targets.size(); t++) {
+            results[t] = targets.get(t).collects ? new long[16] : new long[1 << RADIX_BITS];
+        }
+        long[] block = new long[options.blockBytes / Long.BYTES];
+        for (int n; (n = source.read(block, 0, block.length)) > 0; ) {
+            for (int i = 0; i < n; i++) {
+                long key = block[i] ^ Long.MIN_VALUE;
+                for (int t = 0; t < targets.size(); t++) {
+                    var target = targets.get(t);
+                    if (!target.matches(key)) continue;
+                    if (!target.collects) {
+                        results[t][target.bucketOf(key)]++;
+                        continue;
+                    }
+                    if (counts[t] == results[t].length) results[t] = Arrays.copyOf(results[t], 2 * counts[t]);
+                    results[t][counts[t]++] = block[i];
+                }
+            }
+        }
+        for (int t = 0; t < targets.size(); t++) {
+            if (targets.get(t).collects) results[t] = Arrays.copyOf(results[t], counts[t]);
+        }
+        return results;
+    }
+
+    private static long[] combineHistograms(List<long[][]> slices, int target) {
+        long[] histogram = new long[1 << RADIX_BITS];
+        for (var slice : slices) {
+            for (int b = 0; b < histogram.length; b++) histogram[b] += slice[target][b];
+        }
+        return histogram;
+    }
+
+    private static long[] combineCandidates(List<long[][]> slices, int target, long count) {
+        long[] candidates = new long[(int) count];
+        int offset = 0;
+        for (var slice : slices) {
+            System.arraycopy(slice[target], 0, candidates, offset, slice[target].length);
+            offset += slice[target].length;
+        }
+        assert offset == count : "expected " + count + " candidates, found " + offset;
+        return candidates;
+    }
+
+    /**
+     * @return the k-th smallest (from 0) of the values, which get shuffled around in the process
+     */
+    static long quickselect(long[] values, int k) {
+        int lo = 0, hi = values.length - 1;
+        while (lo < hi) {
+            // median of three, so sorted input doesn't go quadratic
+            int mid = (lo + hi) >>> 1;
+            long pivot = Math.max(Math.min(values[lo], values[mid]), Math.min(Math.max(values[lo], values[mid]), values[hi]));
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    long value = values[i];
+                    values[i++] = values[j];
+                    values[j--] = value;
+                }
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return values[k];
+        }
+        return values[k];
+    }
+    //endregion
+
+    private interface SliceScanner<T> {
+        T scan(LongSource source) throws IOException;
+    }
+
+    /**
+     * Reads the input once, one slice per thread (with read-ahead, see {@link BlockIO}).
+     *
+     * @return what each slice's scanner returned, in order
+     */
+    private <T> List<T> scan(SliceScanner<T> scanner) throws IOException, InterruptedException, ExecutionException {
+        try (
+                FileChannel channel = FileChannel.open(inputPath, Set.of(READ));
+                var io = new BlockIO(options.blockBytes, options.ioDepth, options.ioThreads)
+        ) {
+            List<Callable<T>> scanners = new ArrayList<>();
+            for (var split : Split.createSplits(length * Long.BYTES, options.nThreads)) {
+                scanners.add(() -> scanner.scan(io.reader(channel, split.bytePosition, split.byteSize)));
+            }
+            return Utils.invokeAll(options.nThreads, options.stallSeconds, scanners, "selection");
+        }
+    }
+
+    /**
+     * Writes the values as raw longs, like every other output.
+     */
+    static void write(Path outputPath, long[] values) throws IOException {
+        try (FileChannel channel = FileChannel.open(outputPath, Set.of(CREATE, WRITE, TRUNCATE_EXISTING))) {
+            var block = ByteBuffer.allocate((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, Math.max(Long.BYTES, (long) values.length * Long.BYTES)));
+            var view = block.asLongBuffer();
+            for (int offset = 0; offset < values.length; ) {
+                int n = Math.min(view.capacity(), values.length - offset);
+                view.clear();
+                view.put(values, offset, n);
+                block.clear().limit(n * Long.BYTES);
+                while (block.hasRemaining()) channel.write(block);
+                offset += n;
+            }
+        }
+    }
+}
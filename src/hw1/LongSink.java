@@ -0,0 +1,23 @@
+package hw1;
+
+import java.nio.LongBuffer;
+
+/**
+ * Something a merger can push longs into, a block at a time.
+ */
+interface LongSink {
+    void write(long[] src, int offset, int length);
+
+    /**
+     * Flushes anything still buffered and waits for it to be written. Writing after closing isn't allowed.
+     */
+    default void close() {
+    }
+
+    /**
+     * @return a sink that puts into the buffer at its position, advancing its position
+     */
+    static LongSink of(LongBuffer buffer) {
+        return buffer::put;
+    }
+}
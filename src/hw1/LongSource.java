@@ -0,0 +1,24 @@
+package hw1;
+
+import java.nio.LongBuffer;
+
+/**
+ * Something a merger can pull sorted longs out of, a block at a time.
+ */
+interface LongSource {
+    /**
+     * @return how many longs were copied into dst (at most length), 0 only once the source is exhausted
+     */
+    int read(long[] dst, int offset, int length);
+
+    /**
+     * @return a source that reads from the buffer's position up to its limit, advancing its position
+     */
+    static LongSource of(LongBuffer buffer) {
+        return (dst, offset, length) -> {
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(dst, offset, n);
+            return n;
+        };
+    }
+}
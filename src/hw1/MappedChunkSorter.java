@@ -0,0 +1,23 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies the chunk straight from the input map to the output map and sorts it there with {@link LongBufferSort}, so
+ * the chunk never touches the heap and its size is only bounded by how much a single mapping can hold.
+ */
+public class MappedChunkSorter extends ChunkSorter {
+    static final long HEAP_BYTES_PER_ELEMENT = 0;
+
+    public MappedChunkSorter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split) {
+        super(inputFileChannel, outputFileChannel, split);
+    }
+
+    @Override
+    void sort(LongBuffer input, LongBuffer output) {
+        var sortable = output.duplicate();
+        output.put(input);
+        LongBufferSort.sort(sortable);
+    }
+}
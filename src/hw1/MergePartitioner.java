@@ -0,0 +1,219 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * Splits one k-way merge into independent parts that can run on different threads (a.k.a. "merge path" or
+ * co-ranking).
+ * <p>
+ * For an output rank r, co-ranking finds a cut in every presorted chunk such that the cuts add up to r and nothing left
+ * of any cut is greater than anything right of any cut. Everything left of the cuts is exactly the first r elements of
+ * the merged output, so each part can merge its own slices into its own (disjoint) region of the output buffer.
+ * <p>
+ * Co-ranking only looks at a few dozen elements of each chunk per cut, so chunks that aren't mapped (e.g. runs merged
+ * through {@link BlockIO}, or runs of records) are read an element at a time instead (see
+ * {@link SortedRun#of(FileChannel, long, long, RecordFormat)}).
+ */
+class MergePartitioner {
+    // below this many elements per part, handing out more work costs more than it saves
+    static final int MIN_PART_LENGTH = 64 * 1024;
+
+    /**
+     * A presorted chunk, as far as co-ranking needs to see it.
+     */
+    interface SortedRun {
+        long length();
+
+        long get(long index);
+
+        static SortedRun of(LongBuffer chunk) {
+            return new SortedRun() {
+                @Override
+                public long length() {
+                    return chunk.limit();
+                }
+
+                @Override
+                public long get(long index) {
+                    return chunk.get((int) index);
+                }
+            };
+        }
+
+        /**
+         * @param length how many records the run holds
+         * @return a run whose elements are its records' keys, read with positional reads one at a time (not thread safe)
+         */
+        static SortedRun of(FileChannel channel, long bytePosition, long length, RecordFormat format) {
+            var element = ByteBuffer.allocate(Long.BYTES);
+            return new SortedRun() {
+                @Override
+                public long length() {
+                    return length;
+                }
+
+                @Override
+                public long get(long index) {
+                    long keyPosition = bytePosition + index * format.recordBytes + format.keyOffset;
+                    element.clear();
+                    try {
+                        while (element.hasRemaining()) {
+                            if (channel.read(element, keyPosition + element.position()) < 0) {
+                                throw new IOException("unexpected end of file");
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return element.getLong(0);
+                }
+            };
+        }
+    }
+
+    static class Part {
+        final LongBuffer[] presortedChunks;
+        final LongBuffer output;
+        // where the output slice starts within the output
+        final int outputOffset;
+
+        Part(LongBuffer[] presortedChunks, LongBuffer output, int outputOffset) {
+            this.presortedChunks = presortedChunks;
+            this.output = output;
+            this.outputOffset = outputOffset;
+        }
+    }
+
+    /**
+     * @param groupLength number of elements in the merge group to be split up
+     * @param totalLength number of elements across all groups merged in the same round
+     * @param nThreads    number of threads available to the round
+     * @return how many parts the group should be split into so the round has roughly one part per thread
+     */
+    static int getPartCount(long groupLength, long totalLength, int nThreads) {
+        long byShare = (nThreads * groupLength + totalLength - 1) / Math.max(1, totalLength);
+        long bySize = groupLength / MIN_PART_LENGTH;
+        return (int) Math.max(1, Math.min(byShare, bySize));
+    }
+
+    /**
+     * @param presortedChunks chunks to be merged, all at position 0
+     * @param output          where the merged chunks go, at position 0 and exactly as long as the chunks combined; or
+     *                        null when the output isn't a buffer, in which case only the parts' output offsets are set
+     * @param parts           how many parts to split the merge into
+     * @return parts whose chunks and output are slices of the given buffers, in output order
+     */
+    static List<Part> partition(LongBuffer[] presortedChunks, LongBuffer output, int parts) {
+        assert parts >= 1;
+        var runs = new SortedRun[presortedChunks.length];
+        for (int i = 0; i < runs.length; i++) runs[i] = SortedRun.of(presortedChunks[i]);
+        long[][] cuts = cut(runs, parts);
+        assert output == null || output.limit() == rank(cuts[parts]);
+        List<Part> result = new ArrayList<>(parts);
+        for (int p = 0; p < parts; p++) {
+            var slices = new LongBuffer[presortedChunks.length];
+            for (int i = 0; i < slices.length; i++) {
+                // buffers are int indexed, so their cuts are too
+                slices[i] = presortedChunks[i].slice((int) cuts[p][i], (int) (cuts[p + 1][i] - cuts[p][i]));
+            }
+            int from = (int) rank(cuts[p]), to = (int) rank(cuts[p + 1]);
+            var outputSlice = output == null ? null : output.slice(from, to - from);
+            result.add(new Part(slices, outputSlice, from));
+        }
+        return result;
+    }
+
+    /**
+     * @param parts how many parts to split the merge into
+     * @return cuts[p][i] is where part p starts in run i; cuts[parts] are the runs' lengths
+     */
+    static long[][] cut(SortedRun[] runs, int parts) {
+        assert parts >= 1;
+        long total = 0;
+        for (var run : runs) total += run.length();
+        long[][] cuts = new long[parts + 1][];
+        cuts[0] = new long[runs.length];
+        for (int p = 1; p < parts; p++) cuts[p] = coRank(runs, total * p / parts);
+        cuts[parts] = new long[runs.length];
+        for (int i = 0; i < runs.length; i++) cuts[parts][i] = runs[i].length();
+        return cuts;
+    }
+
+    /**
+     * @return the output rank of a cut (how many elements are left of it)
+     */
+    static long rank(long[] cuts) {
+        return LongStream.of(cuts).sum();
+    }
+
+    /**
+     * @param chunks presorted chunks
+     * @param rank   number of elements that should fall left of the cuts
+     * @return per chunk, the index of the first element right of the cut
+     */
+    static long[] coRank(SortedRun[] chunks, long rank) {
+        long[] cuts = new long[chunks.length];
+        if (rank == 0) return cuts;
+        // binary search for the smallest value v with at least 'rank' elements <= v...
+        long lo = Long.MAX_VALUE, hi = Long.MIN_VALUE;
+        for (var chunk : chunks) {
+            if (chunk.length() == 0) continue;
+            lo = Math.min(lo, chunk.get(0));
+            hi = Math.max(hi, chunk.get(chunk.length() - 1));
+        }
+        while (lo < hi) {
+            long mid = (lo >> 1) + (hi >> 1) + (lo & hi & 1); // floor((lo + hi) / 2) without overflowing
+            long countAtMost = 0;
+            for (var chunk : chunks) countAtMost += upperBound(chunk, mid);
+            if (countAtMost >= rank) hi = mid;
+            else lo = mid + 1;
+        }
+        // ...then take everything < v, and make up the difference with copies of v (taken from whichever chunks)
+        long taken = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            cuts[i] = lowerBound(chunks[i], lo);
+            taken += cuts[i];
+        }
+        for (int i = 0; i < chunks.length && taken < rank; i++) {
+            long ties = upperBound(chunks[i], lo) - cuts[i];
+            long extra = Math.min(ties, rank - taken);
+            cuts[i] += extra;
+            taken += extra;
+        }
+        assert taken == rank : "co-ranking took " + taken + " elements, expected " + rank;
+        return cuts;
+    }
+
+    /**
+     * @return index of the first element >= value
+     */
+    static long lowerBound(SortedRun chunk, long value) {
+        long lo = 0, hi = chunk.length();
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (chunk.get(mid) < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first element > value
+     */
+    static long upperBound(SortedRun chunk, long value) {
+        long lo = 0, hi = chunk.length();
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (chunk.get(mid) <= value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
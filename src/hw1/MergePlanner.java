@@ -0,0 +1,138 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import static hw1.Utils.MB;
+
+/**
+ * Picks how many runs each merger should consume at once (fan-in) so the merge phase finishes in as few passes over
+ * the data as possible. Every pass rewrites the whole dataset, so for disk-bound jobs the number of passes is what
+ * matters; the fan-in only has to be large enough to get there.
+ */
+class MergePlanner {
+    // a loser tree is log2(k) compares per element, but past ~1k sources the chonks stop fitting in cache
+    static final int MAX_FAN_IN = 1024;
+    // spinning disks pay a seek every time a merger hops to another source, so give each source a bigger chonk
+    static final int ROTATIONAL_READ_BYTES = 4 * MB;
+    // never read less than a page per refill, even when the heap is nearly spoken for
+    static final int MIN_CHONK_LENGTH = 4096 / Long.BYTES;
+    private static final Logger LOGGER = Logger.getLogger(MergePlanner.class.getName());
+
+    static class Plan {
+        final int runCount;
+        final int fanIn;
+        final int passes;
+        final int chonkLength;
+
+        Plan(int runCount, int fanIn, int passes, int chonkLength) {
+            this.runCount = runCount;
+            this.fanIn = fanIn;
+            this.passes = passes;
+            this.chonkLength = chonkLength;
+        }
+
+        @Override
+        public String toString() {
+            return "MergePlan{runCount=" + runCount + ", fanIn=" + fanIn + ", passes=" + passes + ", chonkLength=" + chonkLength + '}';
+        }
+    }
+
+    /**
+     * @param runCount       number of presorted runs the merge phase starts with
+     * @param fanIn          fan-in to use, or 0 to pick one
+     * @param nThreads       how many mergers may run (and hold their buffers) at the same time
+     * @param heapBytes      heap available to all concurrently running mergers, in bytes
+     * @param directBytes    direct memory available to the read-ahead of all concurrently running mergers, in bytes
+     * @param mergerType     the merger that will be used; pairwise mergers can only ever do a fan-in of 2
+     * @param scratchPath    a path on the device the runs are read from
+     * @param readAheadDepth chonk-sized blocks read ahead per source on top of the chonk itself (0 when mapped)
+     * @param sourceHeapBytes heap each source holds on top of its chonk (e.g. to decode a {@link PackedRun})
+     */
+    static Plan plan(int runCount, int fanIn, int nThreads, long heapBytes, long directBytes, Class<? extends ChunkMerger> mergerType, Path scratchPath, int readAheadDepth, int sourceHeapBytes) {
+        assert runCount >= 1 : "need at least one run to merge";
+        assert fanIn == 0 || fanIn >= 2 : "can't merge fewer than 2 runs at a time";
+        int preferredChonkLength = getPreferredChonkLength(scratchPath);
+        if (PairwiseChunkMerger.class.isAssignableFrom(mergerType)) {
+            return new Plan(runCount, 2, getPassCount(runCount, 2), preferredChonkLength);
+        }
+        if (!HybridChunkMerger.class.isAssignableFrom(mergerType)) {
+            // the object heap mergers don't buffer, only the loser tree would mind a huge fan-in
+            if (fanIn > 0) return new Plan(runCount, fanIn, getPassCount(runCount, fanIn), preferredChonkLength);
+            int passes = getPassCount(runCount, MAX_FAN_IN);
+            return new Plan(runCount, getBalancedFanIn(runCount, passes), passes, preferredChonkLength);
+        }
+
+        long heapPerThread = Math.max(0, heapBytes) / nThreads;
+        long directPerThread = Math.max(0, directBytes) / nThreads;
+        if (fanIn > 0) {
+            long chonkLength = getChonkLength(fanIn, preferredChonkLength, heapPerThread, directPerThread, readAheadDepth, sourceHeapBytes);
+            return new Plan(runCount, fanIn, getPassCount(runCount, fanIn), (int) Math.max(chonkLength, MIN_CHONK_LENGTH));
+        }
+        // try for the fewest passes first, shrinking chonks toward the minimum (rather than adding a pass) when memory
+        // gets tight
+        for (int passes = 1; ; passes++) {
+            fanIn = getBalancedFanIn(runCount, passes);
+            if (fanIn > MAX_FAN_IN) continue;
+            long chonkLength = getChonkLength(fanIn, preferredChonkLength, heapPerThread, directPerThread, readAheadDepth, sourceHeapBytes);
+            if (chonkLength >= HybridChunkMerger.CHONK_LENGTH || fanIn == 2) {
+                if (passes > 2) LOGGER.warning("merge phase needs " + passes + " passes; consider giving the JVM more memory");
+                return new Plan(runCount, fanIn, getPassCount(runCount, fanIn), (int) Math.max(chonkLength, MIN_CHONK_LENGTH));
+            }
+        }
+    }
+
+    /**
+     * Each running merger holds one chonk per source and one for its output on the heap, and when reading ahead, up to
+     * readAheadDepth + 1 chonk-sized direct buffers per source.
+     */
+    private static long getChonkLength(int fanIn, int preferredChonkLength, long heapPerThread, long directPerThread, int readAheadDepth, int sourceHeapBytes) {
+        heapPerThread = Math.max(0, heapPerThread - (long) fanIn * sourceHeapBytes);
+        long chonkLength = Math.min(preferredChonkLength, heapPerThread / ((long) (fanIn + 1) * Long.BYTES));
+        if (readAheadDepth > 0) chonkLength = Math.min(chonkLength, directPerThread / ((long) fanIn * (readAheadDepth + 1) * Long.BYTES));
+        return chonkLength;
+    }
+
+    /**
+     * @return the smallest fan-in that still merges runCount runs in the given number of passes (at least 2); narrower
+     *      groups spread across more threads
+     */
+    static int getBalancedFanIn(int runCount, int passes) {
+        int fanIn = Math.max(2, (int) Math.ceil(Math.pow(runCount, 1.0 / Math.max(1, passes)) - 1e-9));
+        while (getPassCount(runCount, fanIn) > passes) fanIn++;
+        return fanIn;
+    }
+
+    static int getPassCount(int runCount, int fanIn) {
+        int passes = 0;
+        for (long runs = runCount; runs > 1; runs = (runs + fanIn - 1) / fanIn) passes++;
+        return passes;
+    }
+
+    private static int getPreferredChonkLength(Path path) {
+        return isRotational(path) ? ROTATIONAL_READ_BYTES / Long.BYTES : HybridChunkMerger.CHONK_LENGTH;
+    }
+
+    /**
+     * Best effort, linux only: looks up the block device backing a path in sysfs.
+     *
+     * @return true if the device reports that it's a spinning disk, false if it isn't or we can't tell
+     */
+    static boolean isRotational(Path path) {
+        try {
+            String device = Files.getFileStore(path).name();
+            if (!device.startsWith("/dev/")) return false;
+            Path sysBlock = Path.of("/sys/class/block", device.substring("/dev/".length()));
+            // partitions (e.g. sda1) don't have a queue of their own, their parent device (sda) does
+            for (Path queue : new Path[]{sysBlock.resolve("queue"), sysBlock.resolve("../queue")}) {
+                Path rotational = queue.resolve("rotational");
+                if (Files.isReadable(rotational)) return Files.readString(rotational).trim().equals("1");
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.fine("couldn't tell if " + path + " is on a rotational device: " + e);
+        }
+        return false;
+    }
+}
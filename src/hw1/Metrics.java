@@ -0,0 +1,275 @@
+package hw1;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Where a sort's time went: one {@link Phase} per step (sorting runs, each merge round, ...) with its wall time, CPU
+ * time, bytes read and written, mmaps made, and how long each of its tasks (chunk sorters, mergers) took.
+ * <p>
+ * CPU time is the whole process's (so it includes I/O threads and GC), which makes cpu / (wall * threads) a decent
+ * answer to "CPU or I/O bound?". Task times are per thread, for spotting skew (the slowest task holds up the phase).
+ * <p>
+ * Phases and tasks are also JFR events (hw1.Phase, hw1.Task), which cost next to nothing unless a recording is running,
+ * e.g. -XX:StartFlightRecording=filename=sort.jfr.
+ */
+class Metrics {
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final List<Phase> phases = new ArrayList<>();
+    private final long start = System.nanoTime();
+    private final long inputSize;
+    private final int nThreads;
+    // every mmap this sort makes, see Phase#maps and Utils#map
+    final LongAdder maps = new LongAdder();
+
+    Metrics(long inputSize, int nThreads) {
+        this.inputSize = inputSize;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * @param round which merge round (0 for everything else)
+     */
+    Phase begin(String name, int round) {
+        var phase = new Phase(name, round, nThreads, maps);
+        synchronized (phases) {
+            phases.add(phase);
+        }
+        return phase;
+    }
+
+    List<Phase> getPhases() {
+        synchronized (phases) {
+            return List.copyOf(phases);
+        }
+    }
+
+    /**
+     * @return everything, as JSON
+     */
+    String toJson() {
+        var json = new StringBuilder("{\n");
+        json.append("  \"inputBytes\": ").append(inputSize).append(",\n");
+        json.append("  \"threads\": ").append(nThreads).append(",\n");
+        json.append("  \"wallNanos\": ").append(System.nanoTime() - start).append(",\n");
+        json.append("  \"phases\": [");
+        var phases = getPhases();
+        for (int i = 0; i < phases.size(); i++) json.append(i == 0 ? "\n    " : ",\n    ").append(phases.get(i).toJson());
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    void write(Path path) throws IOException {
+        Files.writeString(path, toJson());
+        LOGGER.info("receipts in the bag (metrics written to " + path + ")");
+    }
+
+    static long getProcessCpuTime() {
+        var os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean sun ? sun.getProcessCpuTime() : -1;
+    }
+
+    private static long getThreadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    static class Phase {
+        final String name;
+        final int round;
+        final int nThreads;
+        long wallNanos;
+        long cpuNanos;
+        long bytesRead;
+        long bytesWritten;
+        long elements;
+        long maps;
+        // per task: wall and CPU nanos
+        private final List<long[]> tasks = new ArrayList<>();
+        private final long start = System.nanoTime();
+        private final long cpuStart = getProcessCpuTime();
+        private final LongAdder mapCounter;
+        private final long mapsStart;
+        private final PhaseEvent event = new PhaseEvent();
+
+        private Phase(String name, int round, int nThreads, LongAdder mapCounter) {
+            this.name = name;
+            this.round = round;
+            this.nThreads = nThreads;
+            this.mapCounter = mapCounter;
+            this.mapsStart = mapCounter.sum();
+            event.begin();
+        }
+
+        /**
+         * @param taskName what to call each task in its JFR event
+         * @return the same tasks, timed
+         */
+        <T> List<Callable<T>> wrap(String taskName, List<? extends Callable<T>> tasks) {
+            return tasks.stream().map(task -> wrap(taskName, task)).toList();
+        }
+
+        <T> Callable<T> wrap(String taskName, Callable<T> task) {
+            return () -> {
+                var event = new TaskEvent();
+                event.begin();
+                long start = System.nanoTime();
+                long cpuStart = getThreadCpuTime();
+                try {
+                    return task.call();
+                } finally {
+                    long wall = System.nanoTime() - start;
+                    long cpu = cpuStart < 0 ? -1 : getThreadCpuTime() - cpuStart;
+                    synchronized (this.tasks) {
+                        this.tasks.add(new long[]{wall, cpu});
+                    }
+                    event.phase = name;
+                    event.round = round;
+                    event.task = taskName;
+                    event.cpuTime = cpu;
+                    event.commit();
+                }
+            };
+        }
+
+        /**
+         * @param bytesRead    from the input or scratch
+         * @param bytesWritten to scratch or the output
+         * @param elements     longs that went through the phase
+         */
+        void end(long bytesRead, long bytesWritten, long elements) {
+            this.wallNanos = System.nanoTime() - start;
+            this.cpuNanos = cpuStart < 0 ? -1 : getProcessCpuTime() - cpuStart;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.elements = elements;
+            this.maps = mapCounter.sum() - mapsStart;
+            event.phase = name;
+            event.round = round;
+            event.cpuTime = cpuNanos;
+            event.bytesRead = bytesRead;
+            event.bytesWritten = bytesWritten;
+            event.elements = elements;
+            event.maps = maps;
+            event.tasks = getTaskCount();
+            event.commit();
+            LOGGER.info("stopwatch says " + this);
+        }
+
+        int getTaskCount() {
+            synchronized (tasks) {
+                return tasks.size();
+            }
+        }
+
+        /**
+         * @return 1 when CPU bound on every thread, ~0 when waiting on I/O
+         */
+        double getCpuUtilization() {
+            return cpuNanos < 0 || wallNanos == 0 ? -1 : (double) cpuNanos / wallNanos / nThreads;
+        }
+
+        double getElementsPerSecond() {
+            return wallNanos == 0 ? 0 : elements * 1e9 / wallNanos;
+        }
+
+        /**
+         * @param which 0 for wall time, 1 for CPU time
+         * @return min, median and max over the phase's tasks (empty if it had none)
+         */
+        long[] getTaskNanos(int which) {
+            long[] nanos;
+            synchronized (tasks) {
+                nanos = tasks.stream().mapToLong(task -> task[which]).sorted().toArray();
+            }
+            return nanos.length == 0 ? nanos : new long[]{nanos[0], nanos[nanos.length / 2], nanos[nanos.length - 1]};
+        }
+
+        /**
+         * @return how much longer the slowest task took than the median one (1 = perfectly even)
+         */
+        double getSkew() {
+            long[] wall = getTaskNanos(0);
+            return wall.length == 0 || wall[1] == 0 ? 1 : (double) wall[2] / wall[1];
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"name\": \"%s\", \"round\": %d, \"wallNanos\": %d, \"cpuNanos\": %d, "
+                            + "\"cpuUtilization\": %.3f, \"bytesRead\": %d, \"bytesWritten\": %d, \"elements\": %d, "
+                            + "\"elementsPerSecond\": %.0f, \"maps\": %d, \"tasks\": %d, \"taskWallNanos\": %s, "
+                            + "\"taskCpuNanos\": %s, \"skew\": %.3f}",
+                    name, round, wallNanos, cpuNanos, getCpuUtilization(), bytesRead, bytesWritten, elements,
+                    getElementsPerSecond(), maps, getTaskCount(), toJson(getTaskNanos(0)), toJson(getTaskNanos(1)), getSkew());
+        }
+
+        private static String toJson(long[] minMedianMax) {
+            if (minMedianMax.length == 0) return "null";
+            return "{\"min\": %d, \"median\": %d, \"max\": %d}".formatted(minMedianMax[0], minMedianMax[1], minMedianMax[2]);
+        }
+
+        @Override
+        public String toString() {
+            long[] wall = getTaskNanos(0);
+            return String.format(Locale.ROOT, "%s%s: %.3fs, cpu %.0f%%, %,d bytes in, %,d bytes out, %,.0f longs/s, %d maps, %d tasks (slowest %.3fs, skew %.2f)",
+                    name, round > 0 ? " " + round : "", wallNanos / 1e9, 100 * getCpuUtilization(), bytesRead, bytesWritten,
+                    getElementsPerSecond(), maps, getTaskCount(), wall.length == 0 ? 0 : wall[2] / 1e9, getSkew());
+        }
+    }
+
+    //region JFR events
+    @Name("hw1.Phase")
+    @Label("Sort Phase")
+    @Category("Parallel Sort")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Merge Round")
+        int round;
+        @Label("CPU Time")
+        @Timespan
+        long cpuTime;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+        @Label("Elements")
+        long elements;
+        @Label("Memory Maps")
+        long maps;
+        @Label("Tasks")
+        int tasks;
+    }
+
+    @Name("hw1.Task")
+    @Label("Sort Task")
+    @Category("Parallel Sort")
+    static class TaskEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Merge Round")
+        int round;
+        @Label("Task")
+        String task;
+        @Label("CPU Time")
+        @Timespan
+        long cpuTime;
+    }
+    //endregion
+}
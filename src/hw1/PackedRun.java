@@ -0,0 +1,382 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Intermediate runs, delta encoded and bit-packed, so every merge pass but the last reads and writes less than the raw
+ * 8 bytes per long (the final output is always raw).
+ * <p>
+ * A run is cut into frames of up to {@link #FRAME_LENGTH} values. A frame is its first value, followed by the deltas
+ * between neighbours packed into words at the frame's width (that of its widest delta), lowest bits first. Deltas of
+ * sorted values are never negative and never need more than 64 bits, so a frame is never bigger than its raw values,
+ * which means a packed run (or each co-ranked part of one) always fits where the raw values would've gone. Packed runs
+ * are written at the same byte positions raw ones would be and simply leave the rest of their split unused.
+ * <p>
+ * Frames can't be found by position, so each run keeps an {@link Index} of its frames on the heap (a few dozen bytes
+ * per frame, i.e. well under 1% of the data).
+ */
+class PackedRun {
+    static final int FRAME_LENGTH = 1024;
+    // a reader's packed words and (for partial frames) decoded values
+    static final int READER_HEAP_BYTES = 2 * FRAME_LENGTH * Long.BYTES;
+
+    /**
+     * Where a packed run's frames are and what's in them.
+     */
+    static class Index {
+        // number of values in the run
+        long length = 0;
+        int frameCount = 0;
+        // per frame: byte position in the file, first value, index of the first value within the run, and bit width
+        long[] offsets = new long[16];
+        long[] firsts = new long[16];
+        long[] starts = new long[16];
+        byte[] widths = new byte[16];
+
+        void add(long offset, long first, int count, int width) {
+            if (frameCount == offsets.length) {
+                int capacity = 2 * frameCount;
+                offsets = Arrays.copyOf(offsets, capacity);
+                firsts = Arrays.copyOf(firsts, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+            }
+            offsets[frameCount] = offset;
+            firsts[frameCount] = first;
+            starts[frameCount] = length;
+            widths[frameCount] = (byte) width;
+            frameCount++;
+            length += count;
+        }
+
+        /**
+         * @param parts consecutive parts of one run (e.g. written by co-ranked mergers), in order
+         */
+        static Index concat(List<Index> parts) {
+            var index = new Index();
+            for (var part : parts) {
+                for (int frame = 0; frame < part.frameCount; frame++) {
+                    index.add(part.offsets[frame], part.firsts[frame], part.count(frame), part.widths[frame]);
+                }
+            }
+            return index;
+        }
+
+        int count(int frame) {
+            return (int) ((frame + 1 < frameCount ? starts[frame + 1] : length) - starts[frame]);
+        }
+
+        long getByteSize() {
+            long words = 0;
+            for (int frame = 0; frame < frameCount; frame++) words += words(frame);
+            return words * Long.BYTES;
+        }
+
+        int words(int frame) {
+            return getWordCount(count(frame), widths[frame]);
+        }
+
+        /**
+         * @return the frame holding the value at the given index of the run
+         */
+        int frameOf(long index) {
+            int lo = 0, hi = frameCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (starts[mid] <= index) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        /**
+         * @return the last frame whose first value is less than value, or -1 if there isn't one
+         */
+        private int lastFrameBelow(long value) {
+            int lo = -1, hi = frameCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (firsts[mid] < value) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        /**
+         * @return a lower bound on the number of values less than value, without touching the disk
+         */
+        long estimateLowerBound(long value) {
+            int frame = lastFrameBelow(value);
+            return frame < 0 ? 0 : starts[frame];
+        }
+
+        /**
+         * @return the number of values less than value (reads and decodes one frame)
+         */
+        long lowerBound(FileChannel channel, long value) {
+            int frame = lastFrameBelow(value);
+            if (frame < 0) return 0;
+            long[] values = new long[count(frame)];
+            decode(read(channel, offsets[frame], words(frame)), values.length, widths[frame], values, 0);
+            int below = 0;
+            while (below < values.length && values[below] < value) below++;
+            return starts[frame] + below;
+        }
+
+        @Override
+        public String toString() {
+            return "PackedRun.Index{length=" + length + ", frameCount=" + frameCount + '}';
+        }
+    }
+
+    static int getWordCount(int count, int width) {
+        return 1 + (int) (((long) (count - 1) * width + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    static int getWidth(long[] values, int offset, int count) {
+        long bits = 0;
+        for (int i = offset + 1; i < offset + count; i++) bits |= values[i] - values[i - 1];
+        return Long.SIZE - Long.numberOfLeadingZeros(bits);
+    }
+
+    /**
+     * @return number of words written
+     */
+    static int encode(long[] values, int offset, int count, int width, long[] words) {
+        words[0] = values[offset];
+        int w = 1, used = 0;
+        long word = 0;
+        for (int i = offset + 1; i < offset + count && width > 0; i++) {
+            long delta = values[i] - values[i - 1];
+            word |= delta << used;
+            used += width;
+            if (used >= Long.SIZE) {
+                words[w++] = word;
+                used -= Long.SIZE;
+                // whatever didn't fit in the last word starts the next one
+                word = used == 0 ? 0 : delta >>> (width - used);
+            }
+        }
+        if (used > 0) words[w++] = word;
+        assert w == getWordCount(count, width);
+        return w;
+    }
+
+    static void decode(long[] words, int count, int width, long[] dst, int offset) {
+        long value = words[0];
+        dst[offset] = value;
+        if (width == 0) {
+            Arrays.fill(dst, offset + 1, offset + count, value);
+            return;
+        }
+        long mask = width == Long.SIZE ? -1L : (1L << width) - 1;
+        int w = 1, used = 0;
+        for (int i = offset + 1; i < offset + count; i++) {
+            long delta = words[w] >>> used;
+            int available = Long.SIZE - used;
+            if (width > available) delta |= words[w + 1] << available;
+            used += width;
+            if (used >= Long.SIZE) {
+                w++;
+                used -= Long.SIZE;
+            }
+            value += delta & mask;
+            dst[i] = value;
+        }
+    }
+
+    private static long[] read(FileChannel channel, long bytePosition, int wordCount) {
+        var block = ByteBuffer.allocate(wordCount * Long.BYTES);
+        try {
+            while (block.hasRemaining()) {
+                if (channel.read(block, bytePosition + block.position()) < 0) throw new IOException("unexpected end of file");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long[] words = new long[wordCount];
+        block.flip().asLongBuffer().get(words);
+        return words;
+    }
+
+    /**
+     * Splits a merge of packed runs into parts by value (like {@link MergePartitioner}, but without random access to the
+     * values): each cut is "everything less than v", with v picked from the indexes so the parts come out roughly even.
+     *
+     * @return cuts[p][i] is where part p starts in run i; cuts[parts] are the runs' lengths
+     */
+    static long[][] partition(Index[] runs, FileChannel[] channels, int parts) {
+        long total = 0;
+        for (var run : runs) total += run.length;
+        long[][] cuts = new long[parts + 1][runs.length];
+        for (int i = 0; i < runs.length; i++) cuts[parts][i] = runs[i].length;
+        for (int p = 1; p < parts; p++) {
+            long rank = total * p / parts;
+            // smallest v whose estimated rank reaches the target
+            long lo = Long.MIN_VALUE, hi = Long.MAX_VALUE;
+            while (lo < hi) {
+                long mid = (lo >> 1) + (hi >> 1) + (lo & hi & 1);
+                long estimate = 0;
+                for (var run : runs) estimate += run.estimateLowerBound(mid);
+                if (estimate >= rank) hi = mid;
+                else lo = mid + 1;
+            }
+            for (int i = 0; i < runs.length; i++) cuts[p][i] = runs[i].lowerBound(channels[i], lo);
+        }
+        return cuts;
+    }
+
+    /**
+     * Packs whatever is written to it, and writes the frames to the underlying sink (which starts at bytePosition).
+     */
+    static class Writer implements LongSink {
+        private final LongSink words;
+        private final Index index = new Index();
+        private long position;
+        // allocated on the first write (so only running mergers hold them) and dropped on close
+        private long[] frame;
+        private long[] packed;
+        private int length = 0;
+
+        Writer(LongSink words, long bytePosition) {
+            this.words = words;
+            this.position = bytePosition;
+        }
+
+        @Override
+        public void write(long[] src, int offset, int length) {
+            if (frame == null) {
+                frame = new long[FRAME_LENGTH];
+                packed = new long[FRAME_LENGTH];
+            }
+            while (length > 0) {
+                int n = Math.min(length, FRAME_LENGTH - this.length);
+                System.arraycopy(src, offset, frame, this.length, n);
+                this.length += n;
+                offset += n;
+                length -= n;
+                if (this.length == FRAME_LENGTH) flush();
+            }
+        }
+
+        private void flush() {
+            int width = getWidth(frame, 0, length);
+            int n = encode(frame, 0, length, width, packed);
+            words.write(packed, 0, n);
+            index.add(position, frame[0], length, width);
+            position += (long) n * Long.BYTES;
+            length = 0;
+        }
+
+        @Override
+        public void close() {
+            if (length > 0) flush();
+            words.close();
+            frame = null;
+            packed = null;
+        }
+
+        Index getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * A decoding cursor over values [from, to) of a packed run, reading frames through block I/O (one reader per
+     * stretch of back to back frames).
+     */
+    static class Reader implements LongSource {
+        private final BlockIO io;
+        private final FileChannel channel;
+        private final Index index;
+        private final int blockBytes;
+        private final long to;
+        private long next;
+        private int frame;
+        private BlockIO.Reader words;
+        private long wordsEnd = -1;
+        private long[] packed;
+        // a frame that didn't fit the caller's buffer (or only partly belongs to this reader)
+        private long[] values;
+        private int valuesPosition = 0, valuesLimit = 0;
+
+        Reader(BlockIO io, FileChannel channel, Index index, long from, long to, int blockBytes) {
+            this.io = io;
+            this.channel = channel;
+            this.index = index;
+            this.blockBytes = blockBytes;
+            this.next = from;
+            this.to = to;
+            this.frame = from < to ? index.frameOf(from) : index.frameCount;
+        }
+
+        @Override
+        public int read(long[] dst, int offset, int length) {
+            if (valuesPosition < valuesLimit) {
+                int n = Math.min(length, valuesLimit - valuesPosition);
+                System.arraycopy(values, valuesPosition, dst, offset, n);
+                valuesPosition += n;
+                return n;
+            }
+            int n = 0;
+            while (next < to) {
+                int count = index.count(frame);
+                int skip = (int) (next - index.starts[frame]);
+                int take = (int) Math.min(count - skip, to - next);
+                boolean whole = skip == 0 && take == count;
+                if (whole && count <= length - n) {
+                    // straight into the caller's buffer
+                    decode(readFrame(), count, index.widths[frame], dst, offset + n);
+                    n += count;
+                } else if (n == 0) {
+                    if (values == null) values = new long[FRAME_LENGTH];
+                    decode(readFrame(), count, index.widths[frame], values, 0);
+                    valuesPosition = skip;
+                    valuesLimit = skip + take;
+                    frame++;
+                    next += take;
+                    return read(dst, offset, length);
+                } else {
+                    break;
+                }
+                frame++;
+                next += take;
+            }
+            if (next >= to) release();
+            return n;
+        }
+
+        private long[] readFrame() {
+            if (packed == null) packed = new long[FRAME_LENGTH];
+            long offset = index.offsets[frame];
+            if (words == null || offset != wordsEnd) {
+                // read ahead over every frame from here on that's back to back with this one
+                long end = offset + (long) index.words(frame) * Long.BYTES;
+                for (int f = frame + 1; f < index.frameCount && index.starts[f] < to && index.offsets[f] == end; f++) {
+                    end += (long) index.words(f) * Long.BYTES;
+                }
+                words = io.reader(channel, offset, end - offset, blockBytes);
+                wordsEnd = offset;
+            }
+            int wordCount = index.words(frame);
+            for (int read = 0; read < wordCount; ) {
+                int n = words.read(packed, read, wordCount - read);
+                if (n == 0) throw new IllegalStateException("packed run ended early at frame " + frame + " of " + index);
+                read += n;
+            }
+            wordsEnd += (long) wordCount * Long.BYTES;
+            return packed;
+        }
+
+        private void release() {
+            words = null;
+            packed = null;
+            if (valuesPosition >= valuesLimit) values = null;
+        }
+    }
+}
@@ -13,12 +13,16 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -26,173 +30,720 @@ import java.util.stream.Stream;
 import static hw1.Utils.*;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.*;
 //endregion
 
 class ParallelExternalLongSorter {
-    static final int THREADPOOL_TIMEOUT_SECONDS = 60;
     //region constants
-    // experimental findings: required overhead peaked at 70 MB w/ 4 threads on an 8 core machine
-    //      having more or fewer threads reduced required overhead
-    //      (required overhead=minimum to not throw an OOM heap error)
-    private static final long MEMORY_OVERHEAD = 140 * MB;
     private static final Logger LOGGER = Logger.getLogger(ParallelExternalLongSorter.class.getName());
+    // the merge checks read whole outputs back, so they only run (and log) with -ea
+    private static final boolean ASSERTIONS = ParallelExternalLongSorter.class.desiredAssertionStatus();
     private final Path inputPath;
     private final Path outputPath;
-    private final Path tempFile;
+    private final ScratchSpace scratch;
     private final int nThreads;
     private final long inputSize;
-    private final long maxMem;
+    private final SortPlanner.Plan plan;
     private final int chunkCount;
+    private final Class<? extends ChunkSorter> chunkSorterType;
     private final Class<? extends ChunkMerger> chunkMergerType;
+    private final SortOptions options;
+    private MergePlanner.Plan mergePlan; // re-planned once replacement selection knows how many runs it made
     private ArrayList<Split> remainingSplits;
+    // the runs in scratch are already sorted, skip straight to merging
+    private final boolean presorted;
+    // the whole input fits in the heap budget, skip scratch altogether
+    private final boolean inMemory;
+    // the runs are the input's own (see RunDetector), merged straight from it
+    private boolean naturalRuns = false;
+    // what natural runs are read from, concatenated (see ScratchSpace#inputDevice)
+    private final List<Path> runInputs;
+    private BlockIO blockIO; // only while sorting with IOMode.ASYNC
+    private ForkJoinPool pool; // shared by every task of the sort and merge phases, only while they run
+    private Watchdog watchdog; // ditto
+    private Checkpoint checkpoint; // only with SortOptions#checkpointPath
+    // picked up from a checkpoint, the runs in scratch already made it through the rounds it records
+    private final boolean resumed;
+    private Metrics metrics; // of the last sort()
     //endregion
 
     public ParallelExternalLongSorter(Path inputPath, Path outputPath, int nThreads, Class<? extends ChunkMerger> chunkMergerType) throws IOException {
-        this.chunkMergerType = chunkMergerType;
+        this(inputPath, outputPath, nThreads, MappedChunkSorter.class, chunkMergerType);
+    }
+
+    public ParallelExternalLongSorter(Path inputPath, Path outputPath, int nThreads, Class<? extends ChunkSorter> chunkSorterType, Class<? extends ChunkMerger> chunkMergerType) throws IOException {
+        this(inputPath, outputPath, withTypes(nThreads, chunkSorterType, chunkMergerType));
+    }
+
+    public ParallelExternalLongSorter(Path inputPath, Path outputPath, SortOptions options) throws IOException {
+        if (!options.recordFormat.isLongs()) throw new IllegalArgumentException("use RecordSorter to sort " + options.recordFormat);
+        checkCompressRuns(options);
+        this.options = options;
+        this.chunkSorterType = options.chunkSorterType;
+        this.chunkMergerType = options.chunkMergerType;
         this.inputPath = inputPath;
+        this.runInputs = List.of(inputPath);
         this.outputPath = outputPath;
-        this.nThreads = nThreads;
+        this.nThreads = options.nThreads;
         LOGGER.info("either lying to you or verifying constructor args (enable assertions, add '-ea' in your JVM opts)");
         assert nThreads >= 1 : "must have at least 1 thread, not " + nThreads;
         assert !Files.isDirectory(inputPath) : "check yourself before you directoryour self";
         assert Files.isReadable(inputPath) : "input file is not readable";
-        validateOutputPath(outputPath);
-        this.tempFile = Files.createTempFile("external-sort-scratch-space", ".tmp");
         this.inputSize = inputPath.toFile().length();
         if (inputSize == 0) throw new RuntimeException("Abort: input file is empty");
-        this.maxMem = getMaximumTotalChunkMemory(MEMORY_OVERHEAD, 0, 0);
-        this.chunkCount = getChunkCount(this.nThreads, inputSize, maxMem);
+        if (inputSize % Long.BYTES != 0) throw new RuntimeException("Abort: input isn't a whole number of longs");
+        this.checkpoint = loadCheckpoint(options, inputPath, inputSize, outputPath);
+        this.resumed = checkpoint != null;
+        // a resumed sort's output can hold a round's runs
+        if (!resumed) validateOutputPath(outputPath);
+        this.presorted = resumed;
+        boolean fits = !resumed && InMemoryLongSorter.fitsInMemory(options, SortPlanner.getBudget(options), inputSize);
+        this.inMemory = fits && options.inMemory;
+        if (fits && !inMemory) LOGGER.info("would fit in memory, but external sort it is (--in-memory=false, or an external sort option was given)");
+        if (inMemory) {
+            LOGGER.info("fits in memory, no scratch space needed (sorting " + inputSize + " bytes with InMemoryLongSorter)");
+            this.scratch = null;
+            this.plan = null;
+            this.chunkCount = nThreads;
+            this.mergePlan = null;
+            return;
+        }
+        this.scratch = resumed ? ScratchSpace.reopen(checkpoint.getScratchFiles()) : ScratchSpace.create(options.scratchDirs, outputPath);
+        this.plan = SortPlanner.plan(options, inputSize, scratch.primary());
+        LOGGER.info("measuring twice, cutting once (planning runs and merge phase): " + plan);
+        LOGGER.info("sorting externally: mode=" + options.mode + " runs=" + options.runGeneration + " sorter=" + chunkSorterType.getSimpleName()
+                + " merger=" + chunkMergerType.getSimpleName() + " io=" + options.ioMode);
+        this.chunkCount = plan.chunkCount;
+        this.mergePlan = plan.mergePlan;
+        if (resumed) {
+            this.remainingSplits = new ArrayList<>(checkpoint.getRuns());
+            this.mergePlan = SortPlanner.planMerge(options, plan.budget, plan.runBytes, remainingSplits.size(), scratch.primary()).mergePlan;
+            LOGGER.info("picking up where we left off (resuming " + remainingSplits.size() + " runs after round " + checkpoint.getRound() + "): " + mergePlan);
+            return;
+        }
         var splits = Split.createSplits(inputSize, chunkCount);
         this.remainingSplits = new ArrayList<>(List.of(splits));
+        if (options.checkpointPath != null) checkpoint = Checkpoint.create(options.checkpointPath, inputPath, inputSize, outputPath, scratch, plan);
+    }
+
+    /**
+     * @return the checkpoint to resume from, or null to start over (see {@link Checkpoint})
+     */
+    private static Checkpoint loadCheckpoint(SortOptions options, Path inputPath, long inputSize, Path outputPath) throws IOException {
+        if (options.checkpointPath == null) return null;
+        if (options.compressRuns) throw new IllegalArgumentException("packed runs can't be checkpointed, drop --compress-runs or --checkpoint");
+        if (!Files.exists(options.checkpointPath)) return null;
+        var checkpoint = Checkpoint.load(options.checkpointPath);
+        checkpoint.validate(inputPath, inputSize, outputPath);
+        if (checkpoint.hasFinishedRound()) return checkpoint;
+        LOGGER.info("nothing worth saving (" + options.checkpointPath + " never finished a round, starting over)");
+        checkpoint.delete(true);
+        // left alone for the resume that isn't happening (it's this sort's output, validate checked)
+        Files.deleteIfExists(outputPath);
+        return null;
+    }
+
+    /**
+     * Merges runs that were already sorted into scratch (e.g. by {@link StreamingLongSorter}).
+     *
+     * @param scratch holds the runs back to back, on side 0 (see {@link ScratchSpace#side}); deleted once they're merged
+     * @param runs    where each run is in scratch, in order
+     * @param plan    planned for exactly these runs
+     */
+    ParallelExternalLongSorter(ScratchSpace scratch, List<Split> runs, Path outputPath, SortOptions options, SortPlanner.Plan plan) {
+        this(scratch, runs, List.of(), outputPath, options, plan);
+    }
+
+    /**
+     * Merges runs that are already sorted, in scratch or in their own files (see {@link SortedFileMerger}).
+     *
+     * @param runInputs the files runs with an {@link ScratchSpace#inputDevice(int)} are read from, in order
+     */
+    ParallelExternalLongSorter(ScratchSpace scratch, List<Split> runs, List<Path> runInputs, Path outputPath, SortOptions options, SortPlanner.Plan plan) {
+        assert !runs.isEmpty() && plan.chunkCount == runs.size();
+        checkCompressRuns(options);
+        validateOutputPath(outputPath);
+        this.options = options;
+        this.chunkSorterType = options.chunkSorterType;
+        this.chunkMergerType = options.chunkMergerType;
+        this.inputPath = null;
+        this.runInputs = runInputs;
+        this.naturalRuns = !runInputs.isEmpty();
+        this.outputPath = outputPath;
+        this.nThreads = options.nThreads;
+        this.scratch = scratch;
+        var last = runs.get(runs.size() - 1);
+        this.inputSize = last.bytePosition + last.byteSize;
+        this.plan = plan;
+        LOGGER.info("measuring twice, cutting once (planning merge phase): " + plan);
+        this.chunkCount = plan.chunkCount;
+        this.mergePlan = plan.mergePlan;
+        this.remainingSplits = new ArrayList<>(runs);
+        this.presorted = true;
+        this.inMemory = false;
+        this.resumed = false;
+    }
+
+    private static void checkCompressRuns(SortOptions options) {
+        if (options.compressRuns && (options.ioMode != SortOptions.IOMode.ASYNC || !HybridChunkMerger.class.isAssignableFrom(options.chunkMergerType))) {
+            throw new IllegalArgumentException("packed runs can only be merged through block I/O, use --io=async with a HybridChunkMerger");
+        }
+    }
+
+    private static SortOptions withTypes(int nThreads, Class<? extends ChunkSorter> chunkSorterType, Class<? extends ChunkMerger> chunkMergerType) {
+        var options = new SortOptions();
+        options.nThreads = nThreads;
+        options.chunkSorterType = chunkSorterType;
+        options.chunkMergerType = chunkMergerType;
+        // picking the types means picking the external sort
+        options.inMemory = false;
+        return options;
     }
 
     public void sort() throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
-        LOGGER.info("starting setup");
-        try (
-                FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ));
-                FileChannel scratchFileChannel = FileChannel.open(tempFile, Set.of(READ, WRITE))
-        ) {
-            if (inputSize != inputFileChannel.size()) throw new RuntimeException("Abort: input file changed on disk");
-            LOGGER.info("JUST GIMME SOME ROOM TO BREATHE (preparing scratch space)");
-
-            //region plan where to split the input file
-            LOGGER.info("can longs get covid? better put them in pods just to be safe (preparing chunks)");
-            var maxMem = getMaximumTotalChunkMemory(MEMORY_OVERHEAD, 0, 0);
-            int chunkCount = getChunkCount(nThreads, inputSize, maxMem);
-            LOGGER.info("Count Chunkula: " + chunkCount);
-            Split[] splits = Split.createSplits(inputSize, chunkCount);
-            //endregion
-            //region split it up (logically) by telling chunk sorters where they're going to sort
-            ChunkSorter[] chunkSorters = new ChunkSorter[chunkCount];
-            for (int i = 0; i < splits.length; i++) {
-                var split = splits[i];
-                var chunkSorter = new ChunkSorter(inputFileChannel, scratchFileChannel, split);
-                chunkSorters[i] = chunkSorter;
+        metrics = new Metrics(inputSize, nThreads);
+        boolean done = false;
+        try {
+            if (!presorted && options.detectRuns && detectRuns()) {
+                LOGGER.info("doing the world a favor and ending another java process (all done)");
+            } else if (inMemory) {
+                var phase = metrics.begin("in-memory sort", 0);
+                InMemoryLongSorter.sortFile(inputPath, outputPath, inputSize, options);
+                phase.end(inputSize, inputSize, inputSize / Long.BYTES);
+                LOGGER.info("doing the world a favor and ending another java process (all done)");
+            } else {
+                if (isAsync() || isReplacementSelection()) blockIO = new BlockIO(options.blockBytes, options.ioDepth, options.ioThreads);
+                try {
+                    sortAndMerge();
+                } finally {
+                    if (blockIO != null) blockIO.close();
+                    blockIO = null;
+                }
             }
+            done = true;
+        } finally {
+            // a checkpointed sort keeps its scratch when it fails, so it can be resumed
+            if (scratch != null && (done || checkpoint == null)) scratch.close();
+        }
+        if (checkpoint != null) checkpoint.delete(false);
+        if (options.metricsPath != null) metrics.write(options.metricsPath);
+    }
 
-            //endregion
-            //region create a pool to manage threads, give it tasks (chunk sorter), then wait for it to finish executing them all
-            LOGGER.info("these sheets are so soft! just look at that thread count: " + nThreads);
-            LOGGER.info("is this expired? its getting chunky (queueing chunk sort jobs)");
-            ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-            var futures = executor.invokeAll(List.of(chunkSorters));
-            LOGGER.info("YUCK! SOMEONE SORTED IN THE POOL! (joining sort threads)");
-            executor.shutdown();  //tell the pool we're done giving it work
-            LOGGER.info("I'LL BE BACK! (awaiting sort threadpool termination)");
-            // blocks until all tasks complete
-            boolean timedOut = !executor.awaitTermination(THREADPOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            if (timedOut) throw new RuntimeException("sort threadpool timed out");
-            LOGGER.info("Back to the future- now with parallel timelines! (propagating sorting exceptions)");
-            for (var future : futures) future.get(); // propagate exceptions from child threads
-            LOGGER.info("Nevermind, the timelines collapsed. (no exceptions)");
-            //endregion
+    /**
+     * Scans the input for presortedness (see {@link RunDetector}). Sorted or reversed input is copied straight into
+     * the output; a few natural runs replace the planned splits, to be merged straight from the input.
+     *
+     * @return true if that already took care of the output
+     */
+    private boolean detectRuns() throws IOException, InterruptedException, ExecutionException {
+        var phase = metrics.begin("presortedness scan", 0);
+        // natural runs only pay off when there are fewer of them than there would've been chunks
+        var scan = RunDetector.scan(inputPath, inputSize, nThreads, options.stallSeconds, inMemory ? 0 : chunkCount);
+        phase.end(scan.bytesRead, 0, scan.bytesRead / Long.BYTES);
+        LOGGER.info("judging a book by its cover (" + scan + ")");
+        switch (scan.order) {
+            case SORTED -> {
+                LOGGER.info("nothing to see here (input is already sorted, copying it)");
+                phase = metrics.begin("copy", 0);
+                Files.copy(inputPath, outputPath, REPLACE_EXISTING);
+                phase.end(inputSize, inputSize, inputSize / Long.BYTES);
+                return true;
+            }
+            case REVERSED -> {
+                LOGGER.info("!ereh ees ot gnihton (input is sorted backwards, copying it in reverse)");
+                phase = metrics.begin("reverse copy", 0);
+                RunDetector.reverseCopy(inputPath, outputPath, inputSize, nThreads, options.stallSeconds);
+                phase.end(inputSize, inputSize, inputSize / Long.BYTES);
+                return true;
+            }
+            case RUNS -> {
+                if (inMemory) return false;
+                naturalRuns = true;
+                remainingSplits = new ArrayList<>(scan.runs);
+                for (var run : remainingSplits) run.device = scratch.inputDevice();
+                mergePlan = SortPlanner.planMerge(options, plan.budget, plan.runBytes, remainingSplits.size(), scratch.primary()).mergePlan;
+                LOGGER.info("measuring twice, cutting once (re-planning merge phase for natural runs): " + mergePlan);
+                return false;
+            }
+            default -> {
+                return false;
+            }
         }
+    }
+
+    /**
+     * @return per-phase timings, I/O and skew of the last {@link #sort()}
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Every merge pass flips the data between scratch and output, so with an even number of passes, sorting the runs
+     * into the output (rather than scratch) makes the last pass land in the output. Only possible when the number of
+     * runs is known before they're written. Striped scratch writes the output on the last pass anyway, so there it's
+     * only for when there's no merging to do at all.
+     */
+    private boolean sortsIntoOutput() {
+        if (presorted || naturalRuns || isReplacementSelection()) return false;
+        return scratch.isStriped() ? mergePlan.passes == 0 : mergePlan.passes % 2 == 0;
+    }
+
+    /**
+     * Runs that will be merged at least once are packed (see {@link PackedRun}), the output never is.
+     */
+    private boolean packsRuns() {
+        return options.compressRuns && mergePlan.passes > 0;
+    }
+
+    /**
+     * @return the devices the runs are sorted into, see {@link ScratchSpace}
+     */
+    private int[] getRunDevices() {
+        return sortsIntoOutput() ? new int[]{scratch.outputDevice()} : scratch.side(0);
+    }
+
+    private boolean isAsync() {
+        return options.ioMode == SortOptions.IOMode.ASYNC;
+    }
+
+    private boolean isReplacementSelection() {
+        return options.runGeneration == SortOptions.RunGeneration.REPLACEMENT_SELECTION;
+    }
+
+    private void sortAndMerge() throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        LOGGER.info("starting setup");
+        if (options.mode == SortOptions.Mode.DISTRIBUTION && !presorted && !naturalRuns) {
+            long maxBucketLength = plan.runBytes / Long.BYTES;
+            var distributionSorter = new DistributionSorter(inputPath, outputPath, inputSize, nThreads, options.stallSeconds, chunkCount, maxBucketLength, chunkSorterType, metrics);
+            var phase = metrics.begin("distribution sort", 0);
+            boolean sorted = distributionSorter.sort();
+            phase.end(sorted ? 2 * inputSize : inputSize, sorted ? inputSize : 0, sorted ? inputSize / Long.BYTES : 0);
+            if (sorted) return;
+            LOGGER.warning("sampling went sideways, buckets won't fit in memory (falling back to merge mode)");
+        }
+        LOGGER.info("JUST GIMME SOME ROOM TO BREATHE (preparing scratch space)");
+        preallocate(outputPath, inputSize);
+        if (!presorted || naturalRuns) scratch.preallocate(inputSize);
+        LOGGER.info("these sheets are so soft! just look at that thread count: " + nThreads);
+        pool = new ForkJoinPool(nThreads);
+        watchdog = new Watchdog("sort", options.stallSeconds);
+        // the channels stay open from the first run sorted to the last one merged, since the two overlap
         try (
-                FileChannel scratchFileChannel = FileChannel.open(tempFile, Set.of(DELETE_ON_CLOSE, READ, WRITE));
-                FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(CREATE, READ, WRITE))
+                FileChannel inputFileChannel = presorted ? null : FileChannel.open(inputPath, Set.of(READ));
+                var channels = scratch.open(outputPath, naturalRuns ? runInputs : List.of())
         ) {
-            //region merge & make fun of java
-
-            //  we're going to merge back and forth between scratch and output, and fix it up at the end
-            // i.e., 1st iteration channels[dst] == scratch, then we'll do dst = (dst + 1) % 2
-            // then at the end if the last channels[dst] we wrote to was scratch, we'll just do a quick swap
-            int src = 0, dst = 1;
-            var channels = new FileChannel[]{scratchFileChannel, outputFileChannel};
-            while (remainingSplits.size() > 1) {
-                var mergers = new ArrayList<ChunkMerger>();
-                ArrayList<Split> mergedSplits = new ArrayList<>();
-                var splitPairs = Split.groupSplits(remainingSplits).iterator();
-                LongBuffer[] srcChunks = null;
-                LongBuffer dstBuffer = null;
-
-                assert splitPairs.hasNext();
-                while (splitPairs.hasNext()) {
-                    var pair = splitPairs.next();
-                    assert pair.length == 2 || pair.length <= 1;
-
-                    Split mergedSplit = (pair.length == 2) ? new Split(pair[0], pair[1]) : pair[0];
-                    mergedSplits.add(mergedSplit);
-
-                    srcChunks = getChunks(channels[src], pair);
-                    dstBuffer = channels[dst].map(READ_WRITE, mergedSplit.bytePosition, mergedSplit.byteSize).asLongBuffer();
-                    mergers.add(makeChunkMerger(srcChunks, dstBuffer));
+            try {
+                // whatever hangs off the graph without anything depending on it (phase ends, checkpoints)
+                List<CompletableFuture<Void>> pending = new ArrayList<>();
+                List<CompletableFuture<Void>> sorted;
+                if (presorted) {
+                    LOGGER.info("someone already did the hard part (runs are presorted)");
+                    sorted = Collections.nCopies(remainingSplits.size(), CompletableFuture.completedFuture(null));
+                } else if (naturalRuns) {
+                    LOGGER.info("mother nature did the hard part (merging " + remainingSplits.size() + " natural runs straight from the input)");
+                    sorted = Collections.nCopies(remainingSplits.size(), CompletableFuture.completedFuture(null));
+                } else if (isReplacementSelection()) {
+                    generateRuns(inputFileChannel, channels);
+                    sorted = Collections.nCopies(remainingSplits.size(), CompletableFuture.completedFuture(null));
+                } else {
+                    sorted = sortRuns(inputFileChannel, channels, pending);
                 }
-                //region merge pool
-                checkMergePreconditions(srcChunks, dstBuffer);
-                ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-                var futures = executor.invokeAll(mergers);
-                LOGGER.info("YOU'RE GONNA BE FRIENDS WHETHER YOU LIKE IT OR NOT! (joining merge threads)");
-                executor.shutdown();  //tell the pool we're done giving it work
-                LOGGER.info("GET TO THE CHOPPA! (awaiting merge threadpool termination)");
-                boolean timedOut1 = !executor.awaitTermination(THREADPOOL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-                if (timedOut1) throw new RuntimeException("merge threadpool timed out");
-                LOGGER.info("Hunting bugs from the future- im-doing-my-part.gif (propagating sorting exceptions)");
-                for (var future : futures) future.get(); // propagate exceptions from child threads
-                LOGGER.info("The only good bug is a dead bug. (no exceptions)");
-                //endregion
-                checkMergePostconditions(srcChunks, dstBuffer);
+                if (checkpoint != null && !naturalRuns && remainingSplits.size() > 1) {
+                    // the checkpoint has to see every run, so nothing gets merged until they're all sorted
+                    watchdog.await(allOf(sorted));
+                    checkpointRuns(channels);
+                }
+                mergeRuns(channels, sorted, pending);
+            } finally {
+                // after a failure, tasks that didn't depend on it may still be running, and mustn't outlive the channels
+                pool.shutdownNow();
+                if (!pool.awaitTermination(options.stallSeconds, TimeUnit.SECONDS)) LOGGER.warning("some tasks won't quit, closing up anyway");
+            }
+        }
+        int device = remainingSplits.get(0).device;
+        if (device != scratch.outputDevice()) {
+            // only when the run count wasn't known up front; still beats copying the whole thing over
+            LOGGER.info("wrong room, same house (moving scratch into place)");
+            var phase = metrics.begin("move into place", 0);
+            moveIntoPlace(scratch.get(device), outputPath);
+            phase.end(0, 0, 0);
+        }
+        LOGGER.info("doing the world a favor and ending another java process (all done)");
+    }
+
+    /**
+     * Checks the runs against the checkpoint before resuming from them, or records them once they're sorted.
+     */
+    private void checkpointRuns(ScratchSpace.Channels channels) throws IOException, InterruptedException, ExecutionException {
+        var phase = metrics.begin("checkpoint", resumed ? checkpoint.getRound() : 0);
+        if (resumed) checkpoint.verifyRuns(channels, nThreads, options.stallSeconds);
+        else checkpoint.finishRound(0, remainingSplits, channels, nThreads, options.stallSeconds);
+        phase.end(inputSize, 0, inputSize / Long.BYTES);
+    }
+
+    /**
+     * Queues a sorter for every run on the pool, without waiting for any of them (see {@link #mergeRuns}).
+     *
+     * @param pending gets the end of the phase
+     * @return when each run is sorted, by index
+     */
+    private List<CompletableFuture<Void>> sortRuns(FileChannel inputFileChannel, ScratchSpace.Channels channels, List<CompletableFuture<Void>> pending) throws IOException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        if (inputSize != inputFileChannel.size()) throw new RuntimeException("Abort: input file changed on disk");
+        LOGGER.info("sorting runs into " + (sortsIntoOutput() ? "the output, " + mergePlan.passes + " merge passes will bring them back" : "scratch"));
+
+        //region plan where to split the input file
+        LOGGER.info("can longs get covid? better put them in pods just to be safe (preparing chunks)");
+        LOGGER.info("Count Chunkula: " + chunkCount);
+        var runs = remainingSplits;
+        var runDevices = getRunDevices();
+        for (int i = 0; i < runs.size(); i++) runs.get(i).device = ScratchSpace.stripe(runDevices, i);
+        //endregion
+        //region split it up (logically) by telling chunk sorters where they're going to sort, and queue them up
+        LOGGER.info("is this expired? its getting chunky (queueing chunk sort jobs)");
+        var phase = metrics.begin("sort runs", 0);
+        List<CompletableFuture<Void>> sorted = new ArrayList<>(Collections.nCopies(runs.size(), null));
+        if (blockIO == null) {
+            for (int i = 0; i < runs.size(); i++) {
+                var split = runs.get(i);
+                sorted.set(i, submit(phase.wrap(chunkSorterType.getSimpleName(), ChunkSorter.create(chunkSorterType, inputFileChannel, channels.get(split.device), split, metrics))));
+            }
+        } else {
+            // each thread gets its own sequence of runs, so it can read the next one while sorting this one
+            for (int t = 0; t < Math.min(nThreads, runs.size()); t++) {
+                List<Split> threadSplits = new ArrayList<>();
+                for (int i = t; i < runs.size(); i += nThreads) threadSplits.add(runs.get(i));
+                var kernel = ChunkSorter.create(chunkSorterType, inputFileChannel, channels.get(threadSplits.get(0).device), threadSplits.get(0), metrics);
+                var sequence = submit(phase.wrap(PipelinedChunkSorter.class.getSimpleName(), new PipelinedChunkSorter(blockIO, inputFileChannel, channels.byDevice, threadSplits, kernel, packsRuns())));
+                // its runs are only known to be done once the whole sequence is
+                for (int i = t; i < runs.size(); i += nThreads) sorted.set(i, sequence);
+            }
+        }
+        pending.add(allOf(sorted).thenRun(() -> {
+            LOGGER.info("YUCK! SOMEONE SORTED IN THE POOL! (all runs sorted)");
+            phase.end(inputSize, packsRuns() ? getPackedBytes(runs) : inputSize, inputSize / Long.BYTES);
+        }));
+        //endregion
+        return sorted;
+    }
+
+    /**
+     * Replaces the planned splits with the (fewer, longer, uneven) runs replacement selection makes of the input. Each
+     * thread streams one contiguous segment of the input through its own heap into the same segment of scratch, so the
+     * runs come out back to back (segments are striped across scratch devices, the runs within one can't be).
+     */
+    private void generateRuns(FileChannel inputFileChannel, ScratchSpace.Channels channels) throws IOException, InterruptedException, ExecutionException {
+        if (inputSize != inputFileChannel.size()) throw new RuntimeException("Abort: input file changed on disk");
+        LOGGER.info("king of the hill, one long at a time (generating runs by replacement selection)");
+        long maxRunLength = ChunkSorter.MAX_CHUNK_BYTES / Long.BYTES;
+        var runDevices = scratch.side(0);
+        List<Callable<List<Split>>> generators = new ArrayList<>();
+        var segments = Split.createSplits(inputSize, nThreads);
+        for (int t = 0; t < segments.length; t++) {
+            var segment = segments[t];
+            if (segment.length == 0) continue;
+            int capacity = (int) Math.min(segment.length, plan.runBytes / Long.BYTES);
+            int device = ScratchSpace.stripe(runDevices, t);
+            generators.add(() -> {
+                var reader = blockIO.reader(inputFileChannel, segment.bytePosition, segment.byteSize);
+                var writer = blockIO.writer(channels.get(device), segment.bytePosition);
+                var runs = new ReplacementSelection(capacity, maxRunLength).generate(reader, writer, segment.index);
+                writer.close();
+                for (var run : runs) run.device = device;
+                return runs;
+            });
+        }
+        var phase = metrics.begin("replacement selection", 0);
+        // the run count isn't known until every segment is done, so this one's a barrier
+        List<CompletableFuture<List<Split>>> generating = phase.wrap(ReplacementSelection.class.getSimpleName(), generators).stream().map(this::submit).toList();
+        remainingSplits = new ArrayList<>();
+        for (var runs : generating) remainingSplits.addAll(watchdog.await(runs));
+        phase.end(inputSize, inputSize, inputSize / Long.BYTES);
+        LOGGER.info("Count Chunkula: " + remainingSplits.size() + " (planned for " + chunkCount + " chunks)");
+        mergePlan = SortPlanner.planMerge(options, plan.budget, plan.runBytes, remainingSplits.size(), scratch.primary()).mergePlan;
+        LOGGER.info("measuring twice, cutting once (re-planning merge phase): " + mergePlan);
+    }
+
+    /**
+     * Merges the runs as a dependency graph on the pool, rather than round by round: a group is merged as soon as the
+     * runs it's made of are ready, so merging starts while runs are still being sorted, and a straggler only holds up
+     * what's downstream of it. Unless there's a checkpoint, which has to see whole rounds.
+     * <p>
+     * Rounds still flip between the sides of scratch. A group writes the same positions its inputs were read from by the
+     * round before, and those reads are done by the time its inputs are, so overlapping rounds never trample each other.
+     *
+     * @param sorted  when each of the remaining runs is ready, by index
+     * @param pending gets each round's end
+     */
+    private void mergeRuns(ScratchSpace.Channels channels, List<CompletableFuture<Void>> sorted, List<CompletableFuture<Void>> pending) throws InterruptedException, ExecutionException {
+        //region merge & make fun of java
+
+        //  we're going to merge back and forth between the two sides of scratch (see ScratchSpace), starting from
+        // wherever the runs were sorted into (see sortsIntoOutput), i.e. dstSide = 1 - srcSide after every pass
+        // without striping, side 1 is the output, otherwise the last pass goes straight to the output
+        // natural runs are read from the input, so the first pass can write to whichever side makes the last one
+        // land in the output
+        // resumed runs are wherever the last finished round left them
+        int srcSide = naturalRuns ? (scratch.isStriped() || mergePlan.passes % 2 == 1 ? 0 : 1)
+                : resumed ? scratch.sideOf(remainingSplits.get(0).device)
+                : sortsIntoOutput() ? 1 : 0;
+        int[] outputDevices = {scratch.outputDevice()};
+        int round = resumed ? checkpoint.getRound() : 0;
+        List<Split> runs = remainingSplits;
+        List<CompletableFuture<Void>> ready = sorted;
+        // with a checkpoint, a round only starts once the one before it is recorded
+        CompletableFuture<Void> previousRound = allOf(sorted);
+        while (runs.size() > 1) {
+            var current = new Round(++round);
+            int dstSide = 1 - srcSide;
+            List<Split> mergedSplits = new ArrayList<>();
+            List<CompletableFuture<Void>> merged = new ArrayList<>();
+            var splitGroups = Split.groupSplits(runs, mergePlan.fanIn);
+            var dstDevices = scratch.isStriped() && splitGroups.size() == 1 ? outputDevices : scratch.side(dstSide);
+            // every pass but the last writes packed runs, when asked to
+            boolean packOutput = packsRuns() && splitGroups.size() > 1;
+
+            assert !splitGroups.isEmpty();
+            int first = 0;
+            for (int g = 0; g < splitGroups.size(); g++) {
+                var group = splitGroups.get(g);
+                assert group.length >= 1 && group.length <= mergePlan.fanIn;
+                Split mergedSplit = new Split(group);
+                mergedSplit.device = ScratchSpace.stripe(dstDevices, g);
+                mergedSplits.add(mergedSplit);
+                var inputs = checkpoint != null ? previousRound : allOf(ready.subList(first, first + group.length));
+                // the last group of every round gets its pre/postconditions checked, when assertions are on
+                boolean check = ASSERTIONS && g == splitGroups.size() - 1;
+                merged.add(inputs.thenComposeAsync(ignored -> call(() -> mergeGroup(channels, group, mergedSplit, packOutput, check, current)), pool));
+                first += group.length;
+            }
+            previousRound = allOf(merged).thenRun(() -> call(() -> {
+                if (packOutput) LOGGER.info("vacuum sealed (packed " + inputSize + " bytes of runs into " + getPackedBytes(mergedSplits) + ")");
+                current.phase().end(current.bytesRead.sum(), packOutput ? getPackedBytes(mergedSplits) : inputSize, inputSize / Long.BYTES);
                 LOGGER.info("Ti esrever dna ti pilf nwod gnaht ym tup i");
-                // swap src/dst
-                src = (src + 1) % 2;
-                dst = (dst + 1) % 2;
-                this.remainingSplits = mergedSplits;
+                if (checkpoint != null && mergedSplits.size() > 1) {
+                    var phase = metrics.begin("checkpoint", current.number);
+                    checkpoint.finishRound(current.number, mergedSplits, channels, nThreads, options.stallSeconds);
+                    phase.end(inputSize, 0, inputSize / Long.BYTES);
+                }
+                return null;
+            }));
+            pending.add(previousRound);
+            // swap src/dst
+            srcSide = dstSide;
+            runs = mergedSplits;
+            ready = merged;
+        }
+        pending.add(allOf(ready));
+        LOGGER.info("YOU'RE GONNA BE FRIENDS WHETHER YOU LIKE IT OR NOT! (waiting on the merge tree)");
+        watchdog.await(allOf(pending)); // propagate exceptions from the pool
+        LOGGER.info("The only good bug is a dead bug. (no exceptions)");
+        this.remainingSplits = new ArrayList<>(runs);
+        //endregion
+    }
+
+    /**
+     * Maps (or indexes) one group of runs and its merged split, and queues its mergers on the pool.
+     *
+     * @return when the merged split is written
+     */
+    private CompletableFuture<Void> mergeGroup(ScratchSpace.Channels channels, Split[] group, Split mergedSplit, boolean packOutput, boolean check, Round round) throws IOException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        var phase = round.phase();
+        for (var split : group) round.bytesRead.add(split.frames != null ? split.frames.getByteSize() : split.byteSize);
+        var mergers = new ArrayList<ChunkMerger>();
+        var dstChannel = channels.get(mergedSplit.device);
+        List<PackedRun.Writer> packedParts = packOutput ? new ArrayList<>() : null;
+        // a round with fewer groups than threads would leave cores idle, so split groups up by co-ranking
+        int parts = MergePartitioner.getPartCount(mergedSplit.length, inputSize / Long.BYTES, nThreads);
+        LongBuffer[] srcChunks = null;
+        LongBuffer dstBuffer = null;
+        if (group[0].frames != null) {
+            // packed runs can't be mapped, so they're split up by value through their indexes
+            assert Stream.of(group).allMatch(split -> split.frames != null) : "can't merge packed and raw runs together";
+            var cuts = PackedRun.partition(getFrames(group), getChannels(channels, group), parts);
+            for (int p = 0; p < parts; p++) {
+                mergers.add(makePackedMerger(channels, dstChannel, group, mergedSplit, cuts[p], cuts[p + 1], packedParts));
+            }
+        } else if (canMergeBlocks()) {
+            // block I/O does the reading and writing, so nothing's mapped (or checked): co-ranking reads the few longs it needs
+            var cuts = MergePartitioner.cut(getRuns(channels, group), parts);
+            for (int p = 0; p < parts; p++) {
+                mergers.add(makeBlockMerger(channels, dstChannel, group, mergedSplit, cuts[p], cuts[p + 1], packedParts));
+            }
+        } else {
+            assert !packOutput : "packed runs are only written through block I/O";
+            srcChunks = getChunks(channels, group);
+            dstBuffer = map(metrics, dstChannel, READ_WRITE, mergedSplit.bytePosition, mergedSplit.byteSize).asLongBuffer();
+            for (var part : MergePartitioner.partition(srcChunks, dstBuffer, parts)) {
+                mergers.add(makeChunkMerger(part.presortedChunks, part.output));
+            }
+        }
+        final LongBuffer output = dstBuffer;
+        if (check && srcChunks != null) checkMergePreconditions(channels, group, srcChunks, dstBuffer);
+        List<CompletableFuture<Void>> merging = new ArrayList<>();
+        for (var merger : mergers) merging.add(submit(phase.wrap(merger.getClass().getSimpleName(), merger)));
+        return allOf(merging).thenRun(() -> {
+            if (check && output != null) checkMergePostconditions(mergers, output);
+            if (packedParts != null) mergedSplit.frames = PackedRun.Index.concat(packedParts.stream().map(PackedRun.Writer::getIndex).toList());
+        });
+    }
+
+    /**
+     * One round of the merge tree, as far as metrics go: it starts with its first group and ends with its last.
+     */
+    private class Round {
+        final int number;
+        final LongAdder bytesRead = new LongAdder();
+        private Metrics.Phase phase;
+
+        Round(int number) {
+            this.number = number;
+        }
+
+        synchronized Metrics.Phase phase() {
+            if (phase == null) phase = metrics.begin("merge", number);
+            return phase;
+        }
+    }
+
+    /**
+     * @return when the task is done, having run on the pool (every task that finishes counts as progress)
+     */
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call(task);
+            } finally {
+                watchdog.tick();
             }
-            // src and dst are reversed from the tail of the last iteration of the loop
-            boolean shouldSwap = channels[dst].equals(outputFileChannel);
-            if (shouldSwap) scratchFileChannel.transferTo(0, scratchFileChannel.size(), outputFileChannel);
-            LOGGER.info("doing the world a favor and ending another java process (all done)");
+        }, pool);
+    }
+
+    /**
+     * For the bits of the graph that throw checked exceptions.
+     */
+    private static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private boolean canMergeBlocks() {
+        // only the loser tree merger knows how to read from something other than a buffer
+        return blockIO != null && isAsync() && HybridChunkMerger.class.isAssignableFrom(chunkMergerType);
+    }
+
+    /**
+     * @param from where the part starts in each run of the group
+     * @param to   where it ends
+     * @return a merger that reads its part of the group and writes its part of the merged split through block I/O
+     */
+    private ChunkMerger makeBlockMerger(ScratchSpace.Channels srcChannels, FileChannel dstChannel, Split[] group, Split mergedSplit, long[] from, long[] to, List<PackedRun.Writer> packedParts) {
+        int chonkBytes = mergePlan.chonkLength * Long.BYTES;
+        var sources = new LongSource[group.length];
+        for (int i = 0; i < group.length; i++) {
+            long bytePosition = srcChannels.position(group[i]) + from[i] * Long.BYTES;
+            sources[i] = blockIO.reader(srcChannels.get(group[i].device), bytePosition, (to[i] - from[i]) * Long.BYTES, chonkBytes);
         }
+        long outputOffset = MergePartitioner.rank(from);
+        var sink = makeBlockSink(dstChannel, mergedSplit.bytePosition + outputOffset * Long.BYTES, packedParts);
+        return new HybridChunkMerger(sources, sink, mergePlan.chonkLength);
+    }
+
+    /**
+     * @param from where the part starts in each run of the group
+     * @param to   where it ends
+     * @return a merger that decodes its part of a group of packed runs
+     */
+    private ChunkMerger makePackedMerger(ScratchSpace.Channels srcChannels, FileChannel dstChannel, Split[] group, Split mergedSplit, long[] from, long[] to, List<PackedRun.Writer> packedParts) {
+        int chonkBytes = mergePlan.chonkLength * Long.BYTES;
+        var sources = new LongSource[group.length];
+        long outputOffset = 0;
+        for (int i = 0; i < group.length; i++) {
+            sources[i] = new PackedRun.Reader(blockIO, srcChannels.get(group[i].device), group[i].frames, from[i], to[i], chonkBytes);
+            outputOffset += from[i];
+        }
+        var sink = makeBlockSink(dstChannel, mergedSplit.bytePosition + outputOffset * Long.BYTES, packedParts);
+        return new HybridChunkMerger(sources, sink, mergePlan.chonkLength);
+    }
+
+    /**
+     * @param packedParts null to write raw longs, otherwise where to keep the writer (to get its index afterwards)
+     */
+    private LongSink makeBlockSink(FileChannel dstChannel, long bytePosition, List<PackedRun.Writer> packedParts) {
+        LongSink sink = blockIO.writer(dstChannel, bytePosition);
+        if (packedParts == null) return sink;
+        var packed = new PackedRun.Writer(sink, bytePosition);
+        packedParts.add(packed);
+        return packed;
+    }
+
+    private static long getPackedBytes(List<Split> splits) {
+        return splits.stream().mapToLong(split -> split.frames.getByteSize()).sum();
+    }
+
+    private static PackedRun.Index[] getFrames(Split[] splits) {
+        return Stream.of(splits).map(split -> split.frames).toArray(PackedRun.Index[]::new);
+    }
+
+    /**
+     * @return the splits as runs that co-ranking reads through positional reads, instead of mappings
+     */
+    private static MergePartitioner.SortedRun[] getRuns(ScratchSpace.Channels channels, Split[] splits) {
+        return Stream.of(splits)
+                .map(split -> MergePartitioner.SortedRun.of(channels.get(split.device), channels.position(split), split.length, RecordFormat.LONGS))
+                .toArray(MergePartitioner.SortedRun[]::new);
+    }
+
+    private static FileChannel[] getChannels(ScratchSpace.Channels channels, Split[] splits) {
+        return Stream.of(splits).map(split -> channels.get(split.device)).toArray(FileChannel[]::new);
     }
 
     private ChunkMerger makeChunkMerger(LongBuffer[] srcChunks, LongBuffer dstBuffer) throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-        return this.chunkMergerType.getDeclaredConstructor(
-                LongBuffer[].class, LongBuffer.class).newInstance(srcChunks, dstBuffer);
+        try {
+            // mergers that buffer their input take the chonk length the planner sized them for
+            return this.chunkMergerType.getDeclaredConstructor(
+                    LongBuffer[].class, LongBuffer.class, int.class).newInstance(srcChunks, dstBuffer, mergePlan.chonkLength);
+        } catch (NoSuchMethodException e) {
+            return this.chunkMergerType.getDeclaredConstructor(
+                    LongBuffer[].class, LongBuffer.class).newInstance(srcChunks, dstBuffer);
+        }
     }
 
-    private LongBuffer[] getChunks(FileChannel scratchFileChannel, Split[] splits) throws IOException {
+    private LongBuffer[] getChunks(ScratchSpace.Channels channels, Split[] splits) throws IOException {
         // TODO: what if instead of carving out chunks of a scratch file, create a private memory map?
         //      not sure if supported on Windows
         // TODO: check if OS is windows and install linux in the background
         var scratchChunks = new LongBuffer[(int) splits.length];
         for (int i = 0; i < splits.length; i++) {
-            scratchChunks[i] = scratchFileChannel.map(READ_ONLY, splits[i].bytePosition, splits[i].byteSize).asLongBuffer();
+            scratchChunks[i] = map(metrics, channels.get(splits[i].device), READ_ONLY, channels.position(splits[i]), splits[i].byteSize).asLongBuffer();
         }
         return scratchChunks;
     }
 
-    private void checkMergePostconditions(LongBuffer[] presortedChunks, LongBuffer output) {
+    private void checkMergePostconditions(List<ChunkMerger> mergers, LongBuffer output) {
         //region post-condition verification
         LOGGER.info("(post-merge) first element=" + output.get(0) + " last=" + output.get(output.limit() - 1));
-        assert output.position() == output.limit() : "expected output buffer's position="
-                + output.position() + " to be at limit" + output.limit(); // output is full
-        assert Stream.of(presortedChunks).noneMatch(Buffer::hasRemaining) : "expected all chunks to be drained"; // all elements in scratch space written to output
+        for (var merger : mergers) {
+            if (merger.output == null) continue; // merged through block I/O, only the output can be checked
+            assert merger.output.position() == merger.output.limit() : "expected output buffer's position="
+                    + merger.output.position() + " to be at limit" + merger.output.limit(); // output is full
+            // all elements in scratch space written to output
+            assert Stream.of(merger.presortedChunks).noneMatch(Buffer::hasRemaining) : "expected all chunks to be drained";
+        }
         assert isSorted(output) : "expected output to be sorted";
         LOGGER.info("wow, the chunks are gone! you really can use coconut oil for everything (merge finished)");
         //endregion
     }
 
-    private void checkMergePreconditions(LongBuffer[] presortedChunks, LongBuffer output) {
+    private void checkMergePreconditions(ScratchSpace.Channels channels, Split[] group, LongBuffer[] presortedChunks, LongBuffer output) {
         // NOTE: we always get at least 1 chunk because the floor for # of chunks is the # of threads
         var first = presortedChunks[0];
         // NOTE: we have at least 1 element, otherwise we would have thrown the Abort: empty input error
@@ -212,8 +763,11 @@ class ParallelExternalLongSorter {
         assert Stream.of(presortedChunks).allMatch(c -> c.position() == 0) : "expected scratch chunks to be at position 0";
         // a little counter-intuitive, but they *should* all be 0  because 'position' is relative to the underlying byte
         // buffer's address
-        assert IntStream.range(0, presortedChunks.length - 1).allMatch(
-                i -> presortedChunks[i].limit() == 0 || presortedChunks[i].get(0) != presortedChunks[i + 1].get(0));
+        // the chunks don't alias each other (their values can repeat across chunks, their places in scratch can't)
+        assert IntStream.range(0, group.length - 1).allMatch(
+                i -> group[i].device != group[i + 1].device
+                        || channels.position(group[i]) + group[i].byteSize <= channels.position(group[i + 1]))
+                : "expected scratch chunks not to overlap";
         for (var c : presortedChunks) assert isSorted(c) : "expected scratch chunks to be pre-sorted";
         //endregion
     }
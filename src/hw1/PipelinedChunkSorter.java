@@ -0,0 +1,79 @@
+package hw1;
+
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * Sorts a sequence of splits on one thread through {@link BlockIO} instead of mapping them, so the I/O for
+ * neighbouring runs overlaps with the sorting: while run N is being sorted, the first blocks of run N + 1 are already
+ * being read and the tail of run N - 1 is still being written.
+ */
+class PipelinedChunkSorter implements Callable<Void> {
+    private static final Logger LOGGER = Logger.getLogger(PipelinedChunkSorter.class.getName());
+    private final BlockIO io;
+    private final FileChannel inputFileChannel;
+    private final FileChannel[] outputFileChannels;
+    private final List<Split> splits;
+    private final ChunkSorter kernel;
+    private final boolean pack;
+
+    /**
+     * @param outputFileChannels indexed by {@link Split#device}
+     * @param splits             splits to sort, in order; each one is written to the same position of its output
+     * @param kernel             sorts each run once it's on the heap
+     * @param pack               write the runs as {@link PackedRun}s (and set their {@link Split#frames})
+     */
+    PipelinedChunkSorter(BlockIO io, FileChannel inputFileChannel, FileChannel[] outputFileChannels, List<Split> splits, ChunkSorter kernel, boolean pack) {
+        this.io = io;
+        this.inputFileChannel = inputFileChannel;
+        this.outputFileChannels = outputFileChannels;
+        this.splits = splits;
+        this.kernel = kernel;
+        this.pack = pack;
+    }
+
+    @Override
+    public Void call() {
+        if (splits.isEmpty()) return null;
+        BlockIO.Reader next = reader(splits.get(0));
+        LongSink previous = null;
+        PackedRun.Writer packed = null;
+        Split previousSplit = null;
+        try {
+            for (int i = 0; i < splits.size(); i++) {
+                var split = splits.get(i);
+                long[] values = new long[(int) split.length];
+                for (int read = 0; read < values.length; ) read += next.read(values, read, values.length - read);
+                // start reading ahead into the next run before sorting this one
+                next = (i + 1 < splits.size()) ? reader(splits.get(i + 1)) : null;
+                LOGGER.fine("sorting " + split);
+                values = kernel.sort(values);
+                if (previous != null) close(previous, packed, previousSplit);
+                previous = null;
+                var writer = io.writer(outputFileChannels[split.device], split.bytePosition);
+                packed = pack ? new PackedRun.Writer(writer, split.bytePosition) : null;
+                previous = packed != null ? packed : writer;
+                previous.write(values, 0, values.length);
+                previousSplit = split;
+            }
+            close(previous, packed, previousSplit);
+            previous = null;
+        } finally {
+            // a failed sort or write doesn't leave reads ahead or writes behind running on the I/O thread
+            if (next != null) next.close();
+            if (previous != null) previous.close();
+        }
+        return null;
+    }
+
+    private static void close(LongSink writer, PackedRun.Writer packed, Split split) {
+        writer.close();
+        if (packed != null) split.frames = packed.getIndex();
+    }
+
+    private BlockIO.Reader reader(Split split) {
+        return io.reader(inputFileChannel, split.bytePosition, split.byteSize);
+    }
+}
@@ -0,0 +1,155 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * LSD radix sort, one byte per pass, least significant byte first.
+ * <p>
+ * The histograms for all 8 digits are counted up front in a single (parallel) pass over the chunk, and the prefix sums
+ * of each histogram say where every bucket starts in the destination. Each pass then scatters the chunk between two
+ * heap arrays. The most significant byte has its sign bit flipped, so negative longs land before positive ones. Passes
+ * where every element has the same digit wouldn't move anything and are skipped, which matters for narrow key ranges.
+ */
+public class RadixChunkSorter extends ChunkSorter {
+    // the chunk plus a scatter buffer of the same size
+    static final long HEAP_BYTES_PER_ELEMENT = 2 * Long.BYTES;
+    private static final int DIGITS = Long.BYTES;
+    private static final int RADIX = 256;
+    // below this many elements a stripe is counted on the calling thread
+    private static final int HISTOGRAM_STRIPE_LENGTH = 1 << 20;
+
+    public RadixChunkSorter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split) {
+        super(inputFileChannel, outputFileChannel, split);
+    }
+
+    @Override
+    void sort(LongBuffer input, LongBuffer output) {
+        long[] values = new long[input.remaining()];
+        input.get(values);
+        output.put(sort(values));
+    }
+
+    @Override
+    long[] sort(long[] values) {
+        return radixSort(values);
+    }
+
+    /**
+     * @param values the values to sort (clobbered)
+     * @return an array holding the sorted values, either the given one or a scratch array of the same length
+     */
+    static long[] radixSort(long[] values) {
+        int[][] histograms = ForkJoinPool.commonPool().invoke(new HistogramTask(values, 0, values.length));
+        long[] src = values, dst = new long[values.length];
+        int[] offsets = new int[RADIX];
+        for (int digit = 0; digit < DIGITS; digit++) {
+            int[] histogram = histograms[digit];
+            if (isTrivial(histogram, values.length)) continue;
+            int offset = 0;
+            for (int bucket = 0; bucket < RADIX; bucket++) {
+                offsets[bucket] = offset;
+                offset += histogram[bucket];
+            }
+            int shift = digit * Byte.SIZE, flip = signFlip(digit);
+            for (long value : src) dst[offsets[((int) (value >>> shift) & 0xFF) ^ flip]++] = value;
+            long[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src;
+    }
+
+    /**
+     * Sorts keys and carries a second array along, e.g. where each key's record sits, so records can be gathered in
+     * key order afterwards without ever moving them while sorting.
+     *
+     * @param keys    the keys to sort, sorted in place
+     * @param indices moved along with their keys, in place
+     */
+    static void radixSort(long[] keys, int[] indices) {
+        assert keys.length == indices.length;
+        int[][] histograms = ForkJoinPool.commonPool().invoke(new HistogramTask(keys, 0, keys.length));
+        long[] src = keys, dst = new long[keys.length];
+        int[] srcIndices = indices, dstIndices = new int[indices.length];
+        int[] offsets = new int[RADIX];
+        for (int digit = 0; digit < DIGITS; digit++) {
+            int[] histogram = histograms[digit];
+            if (isTrivial(histogram, keys.length)) continue;
+            int offset = 0;
+            for (int bucket = 0; bucket < RADIX; bucket++) {
+                offsets[bucket] = offset;
+                offset += histogram[bucket];
+            }
+            int shift = digit * Byte.SIZE, flip = signFlip(digit);
+            for (int i = 0; i < src.length; i++) {
+                int to = offsets[((int) (src[i] >>> shift) & 0xFF) ^ flip]++;
+                dst[to] = src[i];
+                dstIndices[to] = srcIndices[i];
+            }
+            long[] tmp = src;
+            src = dst;
+            dst = tmp;
+            int[] tmpIndices = srcIndices;
+            srcIndices = dstIndices;
+            dstIndices = tmpIndices;
+        }
+        if (src != keys) {
+            System.arraycopy(src, 0, keys, 0, keys.length);
+            System.arraycopy(srcIndices, 0, indices, 0, indices.length);
+        }
+    }
+
+    /**
+     * @return what to xor a digit with; flipping the sign bit makes the top byte order negatives before positives
+     */
+    private static int signFlip(int digit) {
+        return digit == DIGITS - 1 ? 0x80 : 0;
+    }
+
+    private static boolean isTrivial(int[] histogram, int length) {
+        for (int count : histogram) {
+            if (count == length) return true;
+            if (count != 0) return false;
+        }
+        return true;
+    }
+
+    private static class HistogramTask extends RecursiveTask<int[][]> {
+        private static final long serialVersionUID = 1L;
+        private final long[] values;
+        private final int from;
+        private final int to;
+
+        HistogramTask(long[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[][] compute() {
+            if (to - from > HISTOGRAM_STRIPE_LENGTH) {
+                int mid = (from + to) >>> 1;
+                var right = new HistogramTask(values, mid, to);
+                right.fork();
+                int[][] histograms = new HistogramTask(values, from, mid).compute();
+                int[][] rightHistograms = right.join();
+                for (int digit = 0; digit < DIGITS; digit++) {
+                    for (int bucket = 0; bucket < RADIX; bucket++) histograms[digit][bucket] += rightHistograms[digit][bucket];
+                }
+                return histograms;
+            }
+            int[][] histograms = new int[DIGITS][RADIX];
+            for (int i = from; i < to; i++) {
+                long value = values[i];
+                for (int digit = 0; digit < DIGITS; digit++) {
+                    histograms[digit][((int) (value >>> (digit * Byte.SIZE)) & 0xFF) ^ signFlip(digit)]++;
+                }
+            }
+            return histograms;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package hw1;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+/**
+ * Sorts one split of fixed-width records into the same position of the output (scratch) file.
+ * <p>
+ * Only (key, record index) pairs are sorted, so however big the payload, the sort moves 12 bytes per record. The
+ * records themselves are then gathered in key order in one pass: random reads from the (mapped) input, sequential
+ * writes to the output.
+ */
+class RecordChunkSorter implements Callable<Void> {
+    // keys and indices, plus the radix sort's scatter arrays of the same size
+    static final long HEAP_BYTES_PER_RECORD = 2 * (Long.BYTES + Integer.BYTES);
+    private static final Logger LOGGER = Logger.getLogger(RecordChunkSorter.class.getName());
+    private final FileChannel inputFileChannel;
+    private final FileChannel outputFileChannel;
+    private final Split split;
+    private final RecordFormat format;
+    private final Metrics metrics; // counts the maps, null = nobody's counting
+
+    RecordChunkSorter(FileChannel inputFileChannel, FileChannel outputFileChannel, Split split, RecordFormat format, Metrics metrics) {
+        assert split.recordBytes == format.recordBytes;
+        this.inputFileChannel = inputFileChannel;
+        this.outputFileChannel = outputFileChannel;
+        this.split = split;
+        this.format = format;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        var input = Utils.map(metrics, inputFileChannel, READ_ONLY, split.bytePosition, split.byteSize);
+        var output = Utils.map(metrics, outputFileChannel, READ_WRITE, split.bytePosition, split.byteSize);
+        int length = (int) split.length;
+        long[] keys = new long[length];
+        int[] indices = new int[length];
+        for (int i = 0; i < length; i++) {
+            keys[i] = format.key(input, i);
+            indices[i] = i;
+        }
+        LOGGER.fine("sorting keys of " + split);
+        RadixChunkSorter.radixSort(keys, indices);
+        gather(input, output, indices);
+        return null;
+    }
+
+    private void gather(ByteBuffer input, ByteBuffer output, int[] indices) {
+        int recordBytes = format.recordBytes;
+        for (int i = 0; i < indices.length; i++) {
+            output.put(i * recordBytes, input, indices[i] * recordBytes, recordBytes);
+        }
+    }
+}
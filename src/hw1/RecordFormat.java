@@ -0,0 +1,38 @@
+package hw1;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-width records: {@code recordBytes} bytes each, sorted by the big-endian 64-bit key that starts
+ * {@code keyOffset} bytes into the record. A bare long is the special case of an 8 byte record keyed at offset 0.
+ */
+class RecordFormat {
+    static final RecordFormat LONGS = new RecordFormat(Long.BYTES, 0);
+    final int recordBytes;
+    final int keyOffset;
+
+    RecordFormat(int recordBytes, int keyOffset) {
+        if (keyOffset < 0 || recordBytes < keyOffset + Long.BYTES) {
+            throw new IllegalArgumentException("a " + recordBytes + " byte record has no room for a key at offset " + keyOffset);
+        }
+        this.recordBytes = recordBytes;
+        this.keyOffset = keyOffset;
+    }
+
+    boolean isLongs() {
+        return recordBytes == Long.BYTES && keyOffset == 0;
+    }
+
+    /**
+     * @param records a buffer of whole records, starting at index 0
+     * @param record  which record
+     */
+    long key(ByteBuffer records, int record) {
+        return records.getLong(record * recordBytes + keyOffset);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordFormat{recordBytes=" + recordBytes + ", keyOffset=" + keyOffset + '}';
+    }
+}
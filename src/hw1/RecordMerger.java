@@ -0,0 +1,134 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static hw1.Utils.MB;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * k-way merges presorted runs of fixed-width records with a {@link LongLoserTree} over their keys. Each run is mapped a
+ * window at a time and each record is copied exactly once, straight from its window into an output block that's
+ * written out positionally (so neither the runs nor the merged output are limited to the size of a single mapping).
+ * <p>
+ * A merger can take just part of each run (see {@link MergePartitioner#cut}), so one group can be merged by several.
+ */
+class RecordMerger extends ChunkMerger {
+    // how much of a run is mapped at a time
+    static final int WINDOW_BYTES = 64 * MB;
+    private final FileChannel inputChannel;
+    private final Run[] runs;
+    private final FileChannel outputChannel;
+    private final long outputBytePosition;
+    private final RecordFormat format;
+    private final int blockBytes;
+    private final Metrics metrics;
+
+    /**
+     * @param inputChannel       where the runs are
+     * @param runs               presorted runs of whole records
+     * @param from               which record of each run to start at
+     * @param to                 which record of each run to stop before
+     * @param outputChannel      where the merged records go
+     * @param outputBytePosition where in the output they start
+     * @param blockBytes         how much output to buffer between writes
+     * @param metrics            where to count the windows' maps (null if nobody's counting)
+     */
+    RecordMerger(FileChannel inputChannel, Split[] runs, long[] from, long[] to, FileChannel outputChannel, long outputBytePosition, RecordFormat format, int blockBytes, Metrics metrics) {
+        super(null, null);
+        this.inputChannel = inputChannel;
+        this.runs = new Run[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            assert runs[i].recordBytes == format.recordBytes;
+            this.runs[i] = new Run(runs[i].bytePosition + from[i] * format.recordBytes, to[i] - from[i]);
+        }
+        this.outputChannel = outputChannel;
+        this.outputBytePosition = outputBytePosition;
+        this.format = format;
+        this.blockBytes = Math.max(format.recordBytes, blockBytes - blockBytes % format.recordBytes);
+        this.metrics = metrics;
+    }
+
+    @Override
+    void merge() {
+        int recordBytes = format.recordBytes;
+        var tree = new LongLoserTree(runs.length);
+        long remaining = 0;
+        for (int i = 0; i < runs.length; i++) {
+            remaining += runs[i].length;
+            if (runs[i].hasRemaining()) tree.set(i, runs[i].key());
+            else tree.exhaust(i);
+        }
+        tree.build();
+        var block = ByteBuffer.allocate((int) Math.min(blockBytes, Math.max(recordBytes, remaining * recordBytes)));
+        long position = outputBytePosition;
+        for (; remaining > 0; remaining--) {
+            var run = runs[tree.winner()];
+            int offset = run.offset();
+            block.put(block.position(), run.window, offset, recordBytes);
+            block.position(block.position() + recordBytes);
+            if (!block.hasRemaining()) position = flush(block, position);
+            if (++run.next < run.length) tree.replay(run.key());
+            else tree.exhaustWinner();
+        }
+        flush(block, position);
+    }
+
+    /**
+     * @return where the next block goes
+     */
+    private long flush(ByteBuffer block, long position) {
+        block.flip();
+        try {
+            while (block.hasRemaining()) position += outputChannel.write(block, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        block.clear();
+        return position;
+    }
+
+    /**
+     * What's left of one run to merge, and the window of it that's mapped.
+     */
+    private class Run {
+        final long bytePosition;
+        final long length;
+        long next = 0; // records taken so far
+        private long windowStart = 0; // the first record in the window
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        Run(long bytePosition, long length) {
+            this.bytePosition = bytePosition;
+            this.length = length;
+        }
+
+        boolean hasRemaining() {
+            return next < length;
+        }
+
+        long key() {
+            int offset = offset(); // maps the window first, if need be
+            return window.getLong(offset + format.keyOffset);
+        }
+
+        /**
+         * @return where the next record starts in the window, having mapped the next window if this one's used up
+         */
+        int offset() {
+            int recordBytes = format.recordBytes;
+            if (next - windowStart >= window.limit() / recordBytes) {
+                long windowRecords = Math.max(1, WINDOW_BYTES / recordBytes);
+                windowStart = next;
+                try {
+                    window = Utils.map(metrics, inputChannel, READ_ONLY, bytePosition + next * recordBytes, Math.min(windowRecords, length - next) * recordBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return (int) (next - windowStart) * recordBytes;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * External sort for files of fixed-width records (see {@link RecordFormat}), the same shape as
+ * {@link ParallelExternalLongSorter}: sort runs in parallel with {@link RecordChunkSorter}s into scratch, then merge
+ * them back and forth between scratch and output with {@link RecordMerger}s until there's one run left. Groups are
+ * split up across threads by co-ranking their keys (see {@link MergePartitioner}), so the last pass isn't one thread.
+ * <p>
+ * Only the long pipeline's defaults are supported (merge mode, mapped I/O, sorted runs, one scratch directory, no
+ * checkpoint), anything else is refused rather than ignored.
+ */
+class RecordSorter {
+    private static final Logger LOGGER = Logger.getLogger(RecordSorter.class.getName());
+    private final Path inputPath;
+    private final Path outputPath;
+    private final SortOptions options;
+    private final RecordFormat format;
+    private Metrics metrics; // of the last sort()
+
+    RecordSorter(Path inputPath, Path outputPath, SortOptions options) {
+        List<String> unsupported = new ArrayList<>();
+        if (options.mode != SortOptions.Mode.MERGE) unsupported.add("mode=" + options.mode);
+        if (options.ioMode != SortOptions.IOMode.MMAP) unsupported.add("io=" + options.ioMode);
+        if (options.runGeneration != SortOptions.RunGeneration.SORT) unsupported.add("runs=" + options.runGeneration);
+        if (options.chunkSorterType != MappedChunkSorter.class) unsupported.add("sorter=" + options.chunkSorterType.getName());
+        if (options.chunkMergerType != HybridChunkMerger.class) unsupported.add("merger=" + options.chunkMergerType.getName());
+        if (options.compressRuns) unsupported.add("compress-runs");
+        if (options.scratchDirs.size() > 1) unsupported.add("scratch-dirs (more than one)");
+        if (options.checkpointPath != null) unsupported.add("checkpoint");
+        if (!unsupported.isEmpty()) {
+            throw new IllegalArgumentException("records are sorted by RecordChunkSorter and merged by RecordMerger, they can't do " + unsupported);
+        }
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.options = options;
+        this.format = options.recordFormat;
+    }
+
+    void sort() throws IOException, InterruptedException, ExecutionException {
+        Utils.validateOutputPath(outputPath);
+        int nThreads = options.nThreads;
+        int recordBytes = format.recordBytes;
+        long inputSize = Files.size(inputPath);
+        if (inputSize == 0) throw new RuntimeException("Abort: input file is empty");
+        if (inputSize % recordBytes != 0) throw new RuntimeException("Abort: input isn't a whole number of " + format);
+
+        //region plan
+        var budget = SortPlanner.getBudget(options);
+        long runRecords = options.runBytes > 0 ? options.runBytes / recordBytes : budget.heapBytes / nThreads / RecordChunkSorter.HEAP_BYTES_PER_RECORD;
+        runRecords = Math.min(runRecords, ChunkSorter.MAX_CHUNK_BYTES / recordBytes);
+        if (runRecords < 1) throw new RuntimeException("It's not possible to sort records of " + format + " with only " + budget);
+        int runCount = SortPlanner.getChunkCount(nThreads, inputSize, runRecords * recordBytes);
+        // records aren't striped (yet), so there's at most one scratch directory
+        var scratch = ScratchSpace.create(options.scratchDirs, outputPath);
+        Path tempFile = scratch.primary();
+        var mergePlan = MergePlanner.plan(runCount, options.fanIn, nThreads, budget.heapBytes, Long.MAX_VALUE, RecordMerger.class, tempFile, 0, 0);
+        LOGGER.info("measuring twice, cutting once (planning record sort): " + format + ", runRecords=" + runRecords + ", " + mergePlan + ", " + budget);
+        //endregion
+
+        List<Split> remainingSplits = List.of(Split.createSplits(inputSize, runCount, recordBytes));
+        long inputLength = inputSize / recordBytes;
+        metrics = new Metrics(inputSize, nThreads);
+        // with an even number of passes, sorting the runs into the output makes the last pass land there too
+        int src = mergePlan.passes % 2 == 0 ? 1 : 0, dst = 1 - src;
+        try {
+            boolean endedInScratch;
+            try (
+                    FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ));
+                    FileChannel scratchFileChannel = FileChannel.open(tempFile, Set.of(READ, WRITE));
+                    FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(CREATE, READ, WRITE))
+            ) {
+                Utils.preallocate(outputPath, inputSize);
+                Utils.preallocate(tempFile, inputSize);
+                var channels = new FileChannel[]{scratchFileChannel, outputFileChannel};
+
+                //region sort runs
+                LOGGER.info("who's got the keys? (sorting record keys and gathering records)");
+                List<Callable<Void>> sorters = new ArrayList<>();
+                for (var split : remainingSplits) {
+                    if (split.length > 0) sorters.add(new RecordChunkSorter(inputFileChannel, channels[src], split, format, metrics));
+                }
+                var phase = metrics.begin("sort runs", 0);
+                Utils.invokeAll(nThreads, options.stallSeconds, phase.wrap(RecordChunkSorter.class.getSimpleName(), sorters), "record sort");
+                phase.end(inputSize, inputSize, inputLength);
+                //endregion
+
+                //region merge back and forth between scratch and output, like the long pipeline
+                for (int round = 1; remainingSplits.size() > 1; round++) {
+                    List<Callable<Void>> mergers = new ArrayList<>();
+                    List<Split> mergedSplits = new ArrayList<>();
+                    for (var group : Split.groupSplits(remainingSplits, mergePlan.fanIn)) {
+                        var mergedSplit = new Split(group);
+                        mergedSplits.add(mergedSplit);
+                        // a round with fewer groups than threads would leave cores idle, so split groups up by co-ranking
+                        var runs = new MergePartitioner.SortedRun[group.length];
+                        for (int i = 0; i < group.length; i++) {
+                            runs[i] = MergePartitioner.SortedRun.of(channels[src], group[i].bytePosition, group[i].length, format);
+                        }
+                        int parts = MergePartitioner.getPartCount(mergedSplit.length, inputLength, nThreads);
+                        var cuts = MergePartitioner.cut(runs, parts);
+                        for (int p = 0; p < parts; p++) {
+                            long bytePosition = mergedSplit.bytePosition + MergePartitioner.rank(cuts[p]) * recordBytes;
+                            mergers.add(new RecordMerger(channels[src], group, cuts[p], cuts[p + 1], channels[dst], bytePosition, format, options.blockBytes, metrics));
+                        }
+                    }
+                    LOGGER.info("YOU'RE GONNA BE FRIENDS WHETHER YOU LIKE IT OR NOT! (merging " + remainingSplits.size() + " record runs in " + mergers.size() + " parts)");
+                    phase = metrics.begin("merge", round);
+                    Utils.invokeAll(nThreads, options.stallSeconds, phase.wrap(RecordMerger.class.getSimpleName(), mergers), "record merge");
+                    phase.end(inputSize, inputSize, inputLength);
+                    src = (src + 1) % 2;
+                    dst = (dst + 1) % 2;
+                    remainingSplits = mergedSplits;
+                }
+                // src and dst are reversed from the tail of the last iteration of the loop
+                endedInScratch = channels[src].equals(scratchFileChannel);
+                //endregion
+            }
+            if (endedInScratch) Utils.moveIntoPlace(tempFile, outputPath);
+        } finally {
+            scratch.close(); // already gone if it was moved into place
+        }
+        if (options.metricsPath != null) metrics.write(options.metricsPath);
+        LOGGER.info("doing the world a favor and ending another java process (all done)");
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+}
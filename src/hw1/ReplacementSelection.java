@@ -0,0 +1,131 @@
+package hw1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run generation by replacement selection, as an alternative to sorting fixed-size chunks.
+ * <p>
+ * A min-heap of {@code capacity} longs is filled from the input. The smallest element is written to the current run
+ * and replaced by the next input element; if that one is smaller than what was just written it can't join the current
+ * run anymore, so it's parked for the next run instead. On random input runs come out about twice the size of the
+ * heap, and presorted (or nearly sorted) input comes out as a single run.
+ * <p>
+ * The heap and the parked elements share one array (Knuth's trick): the heap lives in [0, heapSize), and every time an
+ * element gets parked the heap shrinks by one and the element goes into the slot that frees up. When the heap runs
+ * dry, the parked elements fill the whole array and become the heap for the next run. That keeps it at exactly 8 bytes
+ * per element, same as holding a chunk.
+ */
+class ReplacementSelection {
+    // the heap starts out this big and doubles while filling up, so short inputs don't allocate the whole capacity
+    static final int INITIAL_CAPACITY = 64 * 1024;
+    private final int capacity;
+    private long[] heap;
+    // a run can't be any longer than what a merger can map
+    private final long maxRunLength;
+    private final long[] inputChonk = new long[HybridChunkMerger.CHONK_LENGTH];
+    private final long[] outputChonk = new long[HybridChunkMerger.CHONK_LENGTH];
+    private int inputPosition, inputLimit, outputPosition;
+    private boolean inputExhausted;
+
+    /**
+     * @param capacity     how many elements the heap holds
+     * @param maxRunLength longest run to write before starting a new one regardless
+     */
+    ReplacementSelection(int capacity, long maxRunLength) {
+        assert capacity >= 1 && maxRunLength >= 1;
+        this.capacity = capacity;
+        this.heap = new long[Math.min(capacity, INITIAL_CAPACITY)];
+        this.maxRunLength = maxRunLength;
+    }
+
+    /**
+     * @param input  elements to split into runs
+     * @param output where the runs are written, back to back (the caller closes it)
+     * @param index  where in the file the output starts, in elements
+     * @return the runs written, in order
+     */
+    List<Split> generate(LongSource input, LongSink output, long index) {
+        List<Split> runs = new ArrayList<>();
+        int end = 0;
+        while (end < capacity && hasNext(input)) {
+            if (end == heap.length) heap = Arrays.copyOf(heap, (int) Math.min(capacity, 2L * heap.length));
+            heap[end++] = next(input);
+        }
+        while (end > 0) {
+            // the parked elements (or on the first go, the whole initial fill) become the next run's heap
+            int heapSize = end;
+            heapify(heapSize);
+            long runLength = 0;
+            while (heapSize > 0 && runLength < maxRunLength) {
+                long smallest = heap[0];
+                write(output, smallest);
+                runLength++;
+                if (hasNext(input)) {
+                    long replacement = next(input);
+                    if (replacement >= smallest) {
+                        heap[0] = replacement;
+                    } else {
+                        // too small for this run, park it where the heap's last element was
+                        heapSize--;
+                        heap[0] = heap[heapSize];
+                        heap[heapSize] = replacement;
+                    }
+                } else {
+                    // no more input: the heap shrinks, and the parked elements shift down to close the gap
+                    heapSize--;
+                    heap[0] = heap[heapSize];
+                    end--;
+                    heap[heapSize] = heap[end];
+                }
+                siftDown(0, heapSize);
+            }
+            // if maxRunLength cut the run short, whatever's left in the heap joins the parked elements in the next one
+            flush(output);
+            runs.add(new Split(index, runLength));
+            index += runLength;
+        }
+        return runs;
+    }
+
+    private boolean hasNext(LongSource input) {
+        if (inputPosition < inputLimit) return true;
+        if (inputExhausted) return false;
+        inputPosition = 0;
+        inputLimit = input.read(inputChonk, 0, inputChonk.length);
+        inputExhausted = inputLimit == 0;
+        return !inputExhausted;
+    }
+
+    private long next(LongSource input) {
+        return inputChonk[inputPosition++];
+    }
+
+    private void write(LongSink output, long value) {
+        outputChonk[outputPosition++] = value;
+        if (outputPosition == outputChonk.length) flush(output);
+    }
+
+    private void flush(LongSink output) {
+        if (outputPosition > 0) output.write(outputChonk, 0, outputPosition);
+        outputPosition = 0;
+    }
+
+    private void heapify(int size) {
+        for (int i = size / 2 - 1; i >= 0; i--) siftDown(i, size);
+    }
+
+    private void siftDown(int i, int size) {
+        long value = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= value) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+}
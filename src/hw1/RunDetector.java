@@ -0,0 +1,204 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A quick look at how sorted the input already is, one slice per thread: already sorted (copy it), reversed (copy it
+ * backwards), or made of few enough ascending runs that merging them straight from the input beats sorting chunks
+ * (e.g. appended batches of sorted data).
+ * <p>
+ * Runs are counted by descents (a value smaller than the one before it), so there's one more run than descents. Ties
+ * count as neither, so sorted and reversed both allow duplicates. The scan gives up as soon as there are too many runs
+ * and the input has gone both up and down, which on random input is after the first block of each slice.
+ */
+class RunDetector {
+    enum Order {
+        // non-descending, nothing to do but copy
+        SORTED,
+        // non-ascending, copy it backwards
+        REVERSED,
+        // a few ascending runs, see Scan#runs
+        RUNS,
+        // none of the above
+        UNSORTED,
+    }
+
+    static class Scan {
+        Order order;
+        // the natural runs, when order is RUNS
+        List<Split> runs;
+        // how far the scan got before it knew the answer
+        long bytesRead;
+
+        @Override
+        public String toString() {
+            return "Scan{order=" + order + (runs == null ? "" : ", runs=" + runs.size()) + ", bytesRead=" + bytesRead + '}';
+        }
+    }
+
+    /**
+     * What one slice saw.
+     */
+    private static class Slice {
+        long first, last;
+        long length = 0;
+        boolean ascends = false;
+        long descents = 0;
+        // indexes (in the whole file) of the first maxRuns descents
+        List<Long> boundaries = new ArrayList<>();
+        long bytesRead = 0;
+    }
+
+    /**
+     * @param maxRuns the most natural runs worth merging (0 to only look for sorted or reversed input)
+     */
+    static Scan scan(Path inputPath, long inputSize, int nThreads, int stallSeconds, int maxRuns) throws IOException, InterruptedException, ExecutionException {
+        var giveUp = new AtomicBoolean(false);
+        List<Callable<Slice>> scanners = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(inputPath, Set.of(READ))) {
+            for (var split : Split.createSplits(inputSize, nThreads)) {
+                if (split.length > 0) scanners.add(() -> scan(channel, split, maxRuns, giveUp));
+            }
+            var slices = Utils.invokeAll(nThreads, stallSeconds, scanners, "presortedness scan");
+            var scan = new Scan();
+            scan.bytesRead = slices.stream().mapToLong(slice -> slice.bytesRead).sum();
+            if (giveUp.get()) {
+                scan.order = Order.UNSORTED;
+                return scan;
+            }
+            // stitch the slices together, including what happens where they meet
+            boolean ascends = false;
+            long descents = 0;
+            List<Long> boundaries = new ArrayList<>();
+            long index = 0;
+            for (int i = 0; i < slices.size(); i++) {
+                var slice = slices.get(i);
+                if (i > 0) {
+                    long last = slices.get(i - 1).last;
+                    if (slice.first > last) ascends = true;
+                    if (slice.first < last) {
+                        descents++;
+                        boundaries.add(index);
+                    }
+                }
+                ascends |= slice.ascends;
+                descents += slice.descents;
+                boundaries.addAll(slice.boundaries);
+                index += slice.length;
+            }
+            if (descents == 0) scan.order = Order.SORTED;
+            else if (!ascends) scan.order = Order.REVERSED;
+            else if (descents + 1 <= maxRuns) {
+                scan.order = Order.RUNS;
+                scan.runs = toRuns(boundaries, inputSize / Long.BYTES);
+            } else scan.order = Order.UNSORTED;
+            return scan;
+        }
+    }
+
+    private static Slice scan(FileChannel channel, Split split, int maxRuns, AtomicBoolean giveUp) throws IOException {
+        var slice = new Slice();
+        var block = ByteBuffer.allocateDirect((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, split.byteSize));
+        long[] values = new long[block.capacity() / Long.BYTES];
+        long position = split.bytePosition;
+        long end = split.bytePosition + split.byteSize;
+        long previous = 0;
+        while (position < end && !giveUp.get()) {
+            block.clear().limit((int) Math.min(block.capacity(), end - position));
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) throw new IOException("input shrank while scanning " + split);
+            }
+            int length = block.limit() / Long.BYTES;
+            block.flip().asLongBuffer().get(values, 0, length);
+            if (slice.length == 0) previous = slice.first = values[0];
+            for (int i = 0; i < length; i++) {
+                long value = values[i];
+                if (value > previous) {
+                    slice.ascends = true;
+                } else if (value < previous) {
+                    if (slice.boundaries.size() < maxRuns) slice.boundaries.add(split.index + slice.length + i);
+                    slice.descents++;
+                }
+                previous = value;
+            }
+            slice.length += length;
+            slice.bytesRead += block.limit();
+            position += block.limit();
+            // too many runs to merge, and it's not reversed either
+            if (slice.ascends && slice.descents > 0 && slice.descents >= maxRuns) giveUp.set(true);
+        }
+        slice.last = previous;
+        return slice;
+    }
+
+    /**
+     * @return one split per natural run, cut down to what a chunk can hold
+     */
+    private static List<Split> toRuns(List<Long> boundaries, long length) {
+        long maxRunLength = ChunkSorter.MAX_CHUNK_BYTES / Long.BYTES;
+        List<Split> runs = new ArrayList<>();
+        long start = 0;
+        for (int i = 0; i <= boundaries.size(); i++) {
+            long end = i < boundaries.size() ? boundaries.get(i) : length;
+            for (long from = start; from < end; from += maxRunLength) runs.add(new Split(from, Math.min(maxRunLength, end - from)));
+            start = end;
+        }
+        return runs;
+    }
+
+    /**
+     * Writes the input backwards, one slice of the output per thread.
+     */
+    static void reverseCopy(Path inputPath, Path outputPath, long inputSize, int nThreads, int stallSeconds) throws IOException, InterruptedException, ExecutionException {
+        Utils.preallocate(outputPath, inputSize);
+        try (
+                FileChannel input = FileChannel.open(inputPath, Set.of(READ));
+                FileChannel output = FileChannel.open(outputPath, Set.of(CREATE, WRITE))
+        ) {
+            List<Callable<Void>> copiers = new ArrayList<>();
+            for (var split : Split.createSplits(inputSize, nThreads)) {
+                if (split.length > 0) copiers.add(() -> reverseCopy(input, output, split, inputSize));
+            }
+            Utils.invokeAll(nThreads, stallSeconds, copiers, "reverse copy");
+        }
+    }
+
+    /**
+     * @param split which part of the output to write (it comes from the mirror image of it in the input)
+     */
+    private static Void reverseCopy(FileChannel input, FileChannel output, Split split, long inputSize) throws IOException {
+        var block = ByteBuffer.allocateDirect((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, split.byteSize));
+        long[] values = new long[block.capacity() / Long.BYTES];
+        for (long position = split.bytePosition; position < split.bytePosition + split.byteSize; ) {
+            int bytes = (int) Math.min(block.capacity(), split.bytePosition + split.byteSize - position);
+            long from = inputSize - position - bytes;
+            block.clear().limit(bytes);
+            while (block.hasRemaining()) {
+                if (input.read(block, from + block.position()) < 0) throw new IOException("input shrank while copying " + split);
+            }
+            int length = bytes / Long.BYTES;
+            block.flip().asLongBuffer().get(values, 0, length);
+            for (int i = 0, j = length - 1; i < j; i++, j--) {
+                long value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+            block.clear().asLongBuffer().put(values, 0, length);
+            block.limit(bytes);
+            while (block.hasRemaining()) output.write(block, position + block.position());
+            position += bytes;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,204 @@
+package hw1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * One scratch file per scratch directory (or a single one next to the output, see {@link Utils#createScratchFile}).
+ * <p>
+ * Every file is addressed the same way as the input (a split lives at its own byte position, in whichever file its
+ * {@link Split#device} says), so the files are sparse when there's more than one. Devices are numbered 0..size()-1 for
+ * the scratch files, {@link #outputDevice()} for the output itself, and {@link #inputDevice(int)} for the inputs (which
+ * only hold runs when they're merged straight from them, see {@link RunDetector} and {@link SortedFileMerger}). Several
+ * inputs are addressed as if they were concatenated, see {@link Channels#position}.
+ * <p>
+ * With one scratch file, merges ping-pong between it and the output like they always did. With several, they're split
+ * into two sides (even and odd directories): runs are striped across one side, each merge round reads from one side
+ * and writes to the other (so reads and writes hit different devices), and only the last round writes the output.
+ */
+class ScratchSpace implements Closeable {
+    private final List<Path> files;
+
+    private ScratchSpace(List<Path> files) {
+        this.files = files;
+    }
+
+    /**
+     * @param scratchDirs where to put the scratch files, empty to put a single one next to the output
+     */
+    static ScratchSpace create(List<Path> scratchDirs, Path outputPath) throws IOException {
+        List<Path> files = new ArrayList<>();
+        var scratch = new ScratchSpace(files);
+        try {
+            if (scratchDirs.isEmpty()) files.add(Utils.createScratchFile(outputPath));
+            for (var dir : scratchDirs) files.add(Files.createTempFile(dir, "external-sort-scratch-space", ".tmp"));
+        } catch (IOException | RuntimeException e) {
+            scratch.close();
+            throw e;
+        }
+        return scratch;
+    }
+
+    /**
+     * @param files scratch files left behind by an earlier sort (see {@link Checkpoint})
+     */
+    static ScratchSpace reopen(List<Path> files) {
+        return new ScratchSpace(new ArrayList<>(files));
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    Path get(int device) {
+        return files.get(device);
+    }
+
+    /**
+     * @return the first scratch file, e.g. to ask the planner about the device runs are written to
+     */
+    Path primary() {
+        return files.get(0);
+    }
+
+    int outputDevice() {
+        return files.size();
+    }
+
+    int inputDevice() {
+        return inputDevice(0);
+    }
+
+    /**
+     * @param input which of the inputs given to {@link #open(Path, List)}
+     */
+    int inputDevice(int input) {
+        return files.size() + 1 + input;
+    }
+
+    boolean isStriped() {
+        return files.size() > 1;
+    }
+
+    /**
+     * @param side 0 or 1
+     * @return the devices on that side of the ping-pong; without striping, side 1 is the output
+     */
+    int[] side(int side) {
+        assert side == 0 || side == 1;
+        if (!isStriped()) return new int[]{side == 0 ? 0 : outputDevice()};
+        return IntStream.range(0, files.size()).filter(device -> device % 2 == side).toArray();
+    }
+
+    /**
+     * @return the side the device is on (see {@link #side})
+     */
+    int sideOf(int device) {
+        if (!isStriped()) return device == 0 ? 0 : 1;
+        return device % 2;
+    }
+
+    /**
+     * @param devices one side (see {@link #side})
+     * @param ordinal which run of the round
+     * @return the device the run goes to, round-robin so neighbouring runs (which get merged together) are spread out
+     */
+    static int stripe(int[] devices, int ordinal) {
+        return devices[ordinal % devices.length];
+    }
+
+    /**
+     * @param outputPath null to leave the output alone (e.g. before it's allowed to exist)
+     * @return every scratch file and the output, opened for reading and writing and indexed by device
+     */
+    Channels open(Path outputPath) throws IOException {
+        return open(outputPath, List.of());
+    }
+
+    /**
+     * @param inputPaths empty unless runs are read straight from the inputs (opened for reading only), in the order
+     *                   they're concatenated in
+     */
+    Channels open(Path outputPath, List<Path> inputPaths) throws IOException {
+        var channels = new Channels(new FileChannel[files.size() + 1 + inputPaths.size()]);
+        try {
+            for (int device = 0; device < files.size(); device++) {
+                channels.byDevice[device] = FileChannel.open(files.get(device), Set.of(READ, WRITE));
+            }
+            if (outputPath != null) channels.byDevice[outputDevice()] = FileChannel.open(outputPath, Set.of(CREATE, READ, WRITE));
+            long origin = 0;
+            for (int input = 0; input < inputPaths.size(); input++) {
+                var channel = FileChannel.open(inputPaths.get(input), Set.of(READ));
+                channels.byDevice[inputDevice(input)] = channel;
+                channels.origins[inputDevice(input)] = origin;
+                origin += channel.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            channels.close();
+            throw e;
+        }
+        return channels;
+    }
+
+    void preallocate(long size) throws IOException {
+        for (var file : files) Utils.preallocate(file, size);
+    }
+
+    /**
+     * Deletes whatever scratch files are left (one may already have been moved into place).
+     */
+    @Override
+    public void close() throws IOException {
+        for (var file : files) Files.deleteIfExists(file);
+    }
+
+    @Override
+    public String toString() {
+        return "ScratchSpace" + files;
+    }
+
+    static class Channels implements Closeable {
+        final FileChannel[] byDevice;
+        // where each device's file starts, in the bytes of the (concatenated) input
+        private final long[] origins;
+
+        private Channels(FileChannel[] byDevice) {
+            this.byDevice = byDevice;
+            this.origins = new long[byDevice.length];
+        }
+
+        FileChannel get(int device) {
+            return byDevice[device];
+        }
+
+        /**
+         * @return where the split is in its device's file: its own byte position, except in the second input onwards
+         */
+        long position(Split split) {
+            return split.bytePosition - origins[split.device];
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (var channel : byDevice) {
+                if (channel == null) continue;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+}
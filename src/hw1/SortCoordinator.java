@@ -0,0 +1,260 @@
+package hw1;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sample sort (see {@link DistributionSorter}) across several local JVMs instead of one, so no single heap, collector
+ * or map count limit has to cover the whole input. Each {@link SortWorker} is its own process with its own heap, and
+ * can be pinned to a NUMA node with {@code --worker-command}.
+ * <ol>
+ *     <li>the coordinator samples splitters for the key ranges ("buckets"), sized so each fits in a worker</li>
+ *     <li>each worker counts its slice of the input into the buckets</li>
+ *     <li>the coordinator lays the buckets out back to back in the output, and hands every worker its own region of
+ *     every bucket</li>
+ *     <li>each worker scatters its slice into those regions of the shared output file</li>
+ *     <li>each worker sorts a contiguous block of buckets (i.e. one key range) in place</li>
+ * </ol>
+ * Workers are launched with the same java and classpath as the coordinator and talk to it over their stdin and stdout
+ * (see {@link SortWorker} for the protocol). Every sort option is passed on to them; {@code --threads} is per worker.
+ * <pre>
+ * --workers=4 --worker-jvm-args="-Xmx8g -XX:+UseParallelGC" --worker-command="numactl --cpunodebind={worker} --membind={worker}"
+ * </pre>
+ */
+class SortCoordinator {
+    // seconds to wait for a worker to exit once told to
+    static final int WORKER_EXIT_SECONDS = 10;
+    private static final Logger LOGGER = Logger.getLogger(SortCoordinator.class.getName());
+    private final Path inputPath;
+    private final Path outputPath;
+    private final long inputLength;
+    private final int workerCount;
+    private final Map<String, String> options;
+    private final SortOptions sortOptions;
+
+    /**
+     * @param options the command line's, passed on to every worker; workers, worker-jvm-args (space separated) and
+     *                worker-command (space separated, {worker} is replaced by the worker's number) are the
+     *                coordinator's own
+     */
+    SortCoordinator(Path inputPath, Path outputPath, Map<String, String> options) throws ClassNotFoundException {
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.inputLength = inputPath.toFile().length() / Long.BYTES;
+        this.options = options;
+        this.sortOptions = SortOptions.fromCommandLine(options);
+        if (!sortOptions.recordFormat.isLongs()) throw new IllegalArgumentException("workers only sort longs, not " + sortOptions.recordFormat);
+        this.workerCount = Integer.parseInt(options.getOrDefault("workers", "2"));
+        if (workerCount < 1) throw new IllegalArgumentException("must have at least 1 worker, not " + workerCount);
+        if (inputLength == 0) throw new RuntimeException("Abort: input file is empty");
+    }
+
+    /**
+     * @return false (having written nothing) if sampling produced a bucket too big for a worker, else true
+     */
+    boolean sort() throws IOException, InterruptedException, ExecutionException {
+        Utils.validateOutputPath(outputPath);
+        Utils.preallocate(outputPath, inputLength * Long.BYTES);
+        List<Worker> workers = new ArrayList<>();
+        try {
+            LOGGER.info("calling in the cavalry (launching " + workerCount + " workers)");
+            for (int w = 0; w < workerCount; w++) workers.add(new Worker(w, launch(w)));
+            long rangeBytes = Long.MAX_VALUE;
+            for (var worker : workers) rangeBytes = Math.min(rangeBytes, Long.parseLong(worker.receive("start", "ready")[1]));
+            if (rangeBytes < Long.BYTES) throw new RuntimeException("Abort: workers can't sort even one long, give them more memory");
+
+            //region sample
+            // buckets are planned to be half of what a worker can sort on average, so unevenly sampled ones still fit,
+            // with at least one per worker thread
+            int threadsPerWorker = sortOptions.nThreads;
+            long buckets = Math.max((long) workerCount * threadsPerWorker, (2 * inputLength * Long.BYTES + rangeBytes - 1) / rangeBytes);
+            buckets = Math.min(buckets, inputLength);
+            if (buckets > Utils.MAX_CHUNK_COUNT) throw new RuntimeException("Abort: " + buckets + " buckets is too many, give the workers more memory");
+            int bucketCount = (int) buckets;
+            LOGGER.info("taking a few for the road (sampling splitters for " + bucketCount + " buckets)");
+            long[] splitters;
+            try (FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ))) {
+                splitters = DistributionSorter.sampleSplitters(inputFileChannel, inputLength, bucketCount);
+            }
+            String splittersCommand = "splitters" + join(splitters);
+            broadcast(workers, worker -> worker.call(splittersCommand, "done"), "splitters");
+            //endregion
+
+            //region count
+            LOGGER.info("one long, two long, red long, blue long (workers counting bucket sizes)");
+            var slices = Split.createSplits(inputLength * Long.BYTES, workerCount);
+            List<long[]> counts = broadcast(workers, worker -> {
+                var slice = slices[worker.number];
+                String[] reply = worker.call("count " + slice.index + " " + slice.length, "counts");
+                return Arrays.stream(reply, 1, reply.length).mapToLong(Long::parseLong).toArray();
+            }, "count");
+            long[] bucketLengths = new long[bucketCount];
+            for (long[] workerCounts : counts) {
+                for (int b = 0; b < bucketCount; b++) bucketLengths[b] += workerCounts[b];
+            }
+            long largest = Arrays.stream(bucketLengths).max().orElse(0);
+            LOGGER.info("largest bucket=" + largest + " expected=" + inputLength / bucketCount);
+            if (largest * Long.BYTES > rangeBytes) {
+                LOGGER.warning("sampling went sideways, a bucket won't fit in a worker");
+                Files.delete(outputPath);
+                return false;
+            }
+            //endregion
+
+            //region scatter
+            // bucket b starts where bucket b - 1 ends, and within a bucket worker w writes right after worker w - 1
+            long[][] offsets = new long[workerCount][bucketCount];
+            long[] bucketStarts = new long[bucketCount];
+            long offset = 0;
+            for (int b = 0; b < bucketCount; b++) {
+                bucketStarts[b] = offset;
+                for (int w = 0; w < workerCount; w++) {
+                    offsets[w][b] = offset;
+                    offset += counts.get(w)[b];
+                }
+            }
+            assert offset == inputLength : "expected buckets to hold every element";
+            LOGGER.info("everybody get in line (workers scattering into buckets)");
+            broadcast(workers, worker -> worker.call("scatter" + join(offsets[worker.number]), "done"), "scatter");
+            //endregion
+
+            //region sort buckets in place, a contiguous key range per worker
+            LOGGER.info("tidying up each bucket (workers sorting their key ranges)");
+            broadcast(workers, worker -> {
+                var command = new StringBuilder("sort");
+                int from = (int) ((long) bucketCount * worker.number / workerCount);
+                int to = (int) ((long) bucketCount * (worker.number + 1) / workerCount);
+                for (int b = from; b < to; b++) command.append(' ').append(bucketStarts[b]).append(' ').append(bucketLengths[b]);
+                return worker.call(command.toString(), "done");
+            }, "bucket sort");
+            //endregion
+            return true;
+        } finally {
+            for (var worker : workers) worker.close();
+        }
+    }
+
+    private Process launch(int number) throws IOException {
+        List<String> command = new ArrayList<>();
+        String prefix = options.getOrDefault("worker-command", "").replace("{worker}", String.valueOf(number)).trim();
+        if (!prefix.isEmpty()) command.addAll(List.of(prefix.split("\\s+")));
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        String jvmArgs = options.getOrDefault("worker-jvm-args", "").trim();
+        if (!jvmArgs.isEmpty()) command.addAll(List.of(jvmArgs.split("\\s+")));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), SortWorker.class.getName()));
+        command.addAll(List.of(inputPath.toString(), outputPath.toString()));
+        for (var option : options.entrySet()) {
+            if (Stream.of("workers", "worker-jvm-args", "worker-command").noneMatch(option.getKey()::equals)) {
+                command.add("--" + option.getKey() + "=" + option.getValue());
+            }
+        }
+        LOGGER.fine("launching worker " + number + ": " + command);
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    private interface Request<T> {
+        T send(Worker worker) throws IOException;
+    }
+
+    /**
+     * Not through {@link Utils#invokeAll}: the workers burn their own CPU, not ours, so its watchdog would give up on a
+     * long bucket sort. A worker that dies shows up as the end of its stdout instead.
+     *
+     * @return every worker's answer, in worker order
+     */
+    private static <T> List<T> broadcast(List<Worker> workers, Request<T> request, String name) throws InterruptedException, ExecutionException {
+        List<Callable<T>> requests = new ArrayList<>();
+        for (var worker : workers) requests.add(() -> request.send(worker));
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+        try {
+            List<T> replies = new ArrayList<>();
+            for (var future : executor.invokeAll(requests)) replies.add(future.get()); // propagate exceptions from child threads
+            return replies;
+        } catch (ExecutionException e) {
+            throw new ExecutionException(name + " failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String join(long[] values) {
+        var joined = new StringBuilder();
+        for (long value : values) joined.append(' ').append(value);
+        return joined.toString();
+    }
+
+    /**
+     * One worker process and its end of the protocol.
+     */
+    private static class Worker {
+        final int number;
+        private final Process process;
+        private final BufferedReader in;
+        private final PrintStream out;
+
+        Worker(int number, Process process) {
+            this.number = number;
+            this.process = process;
+            this.in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+            this.out = new PrintStream(process.getOutputStream(), true, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @param expected the first word of a successful reply
+         * @return the reply, split into words
+         */
+        String[] call(String command, String expected) throws IOException {
+            out.println(command);
+            return receive(command.split(" ", 2)[0], expected);
+        }
+
+        String[] receive(String what, String expected) throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new RuntimeException("Abort: worker " + number + " died (exit code " + exitCode() + ") during " + what);
+            if (line.startsWith("error ")) throw new RuntimeException("Abort: worker " + number + " failed to " + what + ": " + line.substring(6));
+            var reply = line.split(" ");
+            // e.g. the JVM itself complaining, before the worker ever got to run
+            if (!reply[0].equals(expected)) throw new RuntimeException("Abort: worker " + number + " said \"" + line + "\" during " + what);
+            return reply;
+        }
+
+        private String exitCode() {
+            try {
+                return process.waitFor(WORKER_EXIT_SECONDS, TimeUnit.SECONDS) ? String.valueOf(process.exitValue()) : "unknown";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "unknown";
+            }
+        }
+
+        void close() throws InterruptedException {
+            if (process.isAlive()) out.println("exit");
+            out.close();
+            if (!process.waitFor(WORKER_EXIT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warning("worker " + number + " won't leave, showing it the door");
+                process.destroyForcibly();
+            }
+        }
+    }
+}
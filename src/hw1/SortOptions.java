@@ -0,0 +1,128 @@
+package hw1;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static hw1.Utils.GB;
+import static hw1.Utils.KB;
+import static hw1.Utils.MB;
+import static hw1.Utils.getChunkMergerClass;
+import static hw1.Utils.getChunkSorterClass;
+
+/**
+ * Knobs for {@link ParallelExternalLongSorter}. Everything has a default, so only set what you care about.
+ */
+class SortOptions {
+    enum Mode {
+        // sort chunks, then merge them
+        MERGE,
+        // partition the input by sampled key ranges, then sort each range where it lands (no merge phase)
+        DISTRIBUTION,
+    }
+
+    enum IOMode {
+        // map splits and let page faults do the reading and writing
+        MMAP,
+        // read ahead and write behind explicitly through BlockIO, overlapping I/O with sorting and merging
+        ASYNC,
+    }
+
+    enum RunGeneration {
+        // sort fixed-size chunks of the input
+        SORT,
+        // stream the input through a heap, runs come out ~2x the heap on random input (see ReplacementSelection)
+        REPLACEMENT_SELECTION,
+    }
+
+    // the in-memory sort has no modes or strategies, so asking for any of these means the external one
+    static final List<String> EXTERNAL_OPTIONS = List.of("mode", "runs", "sorter", "merger", "io", "compress-runs", "run-size", "fan-in");
+
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    Class<? extends ChunkSorter> chunkSorterType = MappedChunkSorter.class;
+    Class<? extends ChunkMerger> chunkMergerType = HybridChunkMerger.class;
+    Mode mode = Mode.MERGE;
+    IOMode ioMode = IOMode.MMAP;
+    RunGeneration runGeneration = RunGeneration.SORT;
+    RecordFormat recordFormat = RecordFormat.LONGS;
+    // sort without scratch when the input fits in the heap budget, unless external sort options say otherwise
+    boolean inMemory = true;
+    // scan for presorted input first: copy it if sorted or reversed, merge its natural runs if there are few (see RunDetector)
+    boolean detectRuns = true;
+    // delta encode and bit-pack intermediate runs (see PackedRun), merged through block I/O only
+    boolean compressRuns = false;
+    // one scratch file per directory, runs are striped across them (see ScratchSpace); empty = next to the output
+    List<Path> scratchDirs = List.of();
+    // keep a job manifest here, and resume from it if it's already there (see Checkpoint), null = don't
+    Path checkpointPath = null;
+    // write a JSON summary of the sort's phases here when done (see Metrics), null = don't
+    Path metricsPath = null;
+    // give up on a sort that's made no progress for this long (see Watchdog)
+    int stallSeconds = Watchdog.DEFAULT_STALL_SECONDS;
+    int blockBytes = BlockIO.DEFAULT_BLOCK_BYTES;
+    int ioDepth = BlockIO.DEFAULT_DEPTH;
+    int ioThreads = BlockIO.DEFAULT_IO_THREADS;
+    // overrides for SortPlanner, 0 = let the planner decide
+    long memoryBytes = 0;
+    long runBytes = 0;
+    int fanIn = 0;
+
+    /**
+     * @param options command line options (--name=value, without the dashes)
+     * @return the defaults, overridden by whichever options were given
+     */
+    static SortOptions fromCommandLine(Map<String, String> options) throws ClassNotFoundException {
+        var sortOptions = new SortOptions();
+        if (options.containsKey("threads")) sortOptions.nThreads = Integer.parseInt(options.get("threads"));
+        if (options.containsKey("sorter")) sortOptions.chunkSorterType = getChunkSorterClass(options.get("sorter"));
+        if (options.containsKey("merger")) sortOptions.chunkMergerType = getChunkMergerClass(options.get("merger"));
+        if (options.containsKey("mode")) sortOptions.mode = Mode.valueOf(options.get("mode").toUpperCase(Locale.ROOT));
+        if (options.containsKey("io")) sortOptions.ioMode = IOMode.valueOf(options.get("io").toUpperCase(Locale.ROOT));
+        if (options.containsKey("runs")) sortOptions.runGeneration = RunGeneration.valueOf(options.get("runs").toUpperCase(Locale.ROOT).replace('-', '_'));
+        if (options.containsKey("record-size") || options.containsKey("key-offset")) {
+            int recordBytes = Integer.parseInt(options.getOrDefault("record-size", String.valueOf(Long.BYTES)));
+            int keyOffset = Integer.parseInt(options.getOrDefault("key-offset", "0"));
+            sortOptions.recordFormat = new RecordFormat(recordBytes, keyOffset);
+        }
+        if (options.containsKey("in-memory")) sortOptions.inMemory = Boolean.parseBoolean(options.get("in-memory"));
+        else if (EXTERNAL_OPTIONS.stream().anyMatch(options::containsKey)) sortOptions.inMemory = false;
+        if (options.containsKey("detect-runs")) sortOptions.detectRuns = Boolean.parseBoolean(options.get("detect-runs"));
+        if (options.containsKey("compress-runs")) sortOptions.compressRuns = Boolean.parseBoolean(options.get("compress-runs"));
+        if (options.containsKey("scratch-dirs")) {
+            sortOptions.scratchDirs = Stream.of(options.get("scratch-dirs").split(",")).map(Paths::get).toList();
+        }
+        if (options.containsKey("checkpoint")) sortOptions.checkpointPath = Paths.get(options.get("checkpoint"));
+        if (options.containsKey("metrics")) sortOptions.metricsPath = Paths.get(options.get("metrics"));
+        if (options.containsKey("stall-timeout")) sortOptions.stallSeconds = Integer.parseInt(options.get("stall-timeout"));
+        if (options.containsKey("block-size")) sortOptions.blockBytes = Integer.parseInt(options.get("block-size"));
+        if (options.containsKey("io-depth")) sortOptions.ioDepth = Integer.parseInt(options.get("io-depth"));
+        if (options.containsKey("io-threads")) sortOptions.ioThreads = Integer.parseInt(options.get("io-threads"));
+        if (options.containsKey("memory")) sortOptions.memoryBytes = parseBytes(options.get("memory"));
+        if (options.containsKey("run-size")) sortOptions.runBytes = parseBytes(options.get("run-size"));
+        if (options.containsKey("fan-in")) sortOptions.fanIn = Integer.parseInt(options.get("fan-in"));
+        if (sortOptions.fanIn == 1 || sortOptions.fanIn < 0) throw new IllegalArgumentException("fan-in must be at least 2");
+        if (sortOptions.stallSeconds < 1) throw new IllegalArgumentException("stall-timeout must be at least 1 second");
+        if (sortOptions.blockBytes < Long.BYTES || sortOptions.blockBytes % Long.BYTES != 0) {
+            throw new IllegalArgumentException("block-size must be a positive multiple of " + Long.BYTES);
+        }
+        return sortOptions;
+    }
+
+    /**
+     * @param size a number of bytes, optionally suffixed with k, m or g (e.g. 512m)
+     */
+    static long parseBytes(String size) {
+        String digits = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        switch (digits.charAt(digits.length() - 1)) {
+            case 'k' -> unit = KB;
+            case 'm' -> unit = MB;
+            case 'g' -> unit = GB;
+        }
+        if (unit != 1) digits = digits.substring(0, digits.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+}
@@ -0,0 +1,333 @@
+package hw1;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static hw1.Utils.MAX_CHUNK_COUNT;
+import static hw1.Utils.MB;
+
+/**
+ * Decides how big the runs are, how many of them get merged at once, and in how many passes, from what the host can
+ * actually spare instead of a fixed overhead. Four budgets go into a plan:
+ * <ul>
+ *     <li>heap: the JVM's max heap (or with a generational collector, its old generation, where big arrays go), minus
+ *     what's already in use and some headroom for the collector</li>
+ *     <li>direct memory: -XX:MaxDirectMemorySize (which defaults to the max heap), minus what's already in use; only
+ *     block I/O buffers come out of it</li>
+ *     <li>physical memory: MemAvailable from /proc/meminfo, or the cgroup's limit minus its usage when that's
+ *     smaller. A heap bigger than this gets swapped or OOM killed, however big -Xmx says it may be</li>
+ *     <li>page cache: whatever physical memory the heap leaves over. Mapped runs are only as fast as their pages
+ *     staying resident, so that's what bounds them</li>
+ * </ul>
+ * Runs are sized from the per-thread working set of the chosen {@link ChunkSorter}, and the merge from that of the
+ * chosen {@link ChunkMerger} (see {@link MergePlanner}). Any of it can be overridden through {@link SortOptions}.
+ */
+class SortPlanner {
+    // collectors want some empty heap to work with, and big arrays need a contiguous spot to land
+    static final double HEAP_HEADROOM_FRACTION = 0.25;
+    static final long MIN_HEAP_HEADROOM = 16 * MB;
+    // runs smaller than this aren't worth a merge source of their own
+    static final long MIN_RUN_BYTES = MB - (MB % Long.BYTES);
+    private static final Logger LOGGER = Logger.getLogger(SortPlanner.class.getName());
+
+    static class Budget {
+        final long heapBytes;
+        final long directBytes;
+        final long physicalBytes;
+        final long pageCacheBytes;
+
+        Budget(long heapBytes, long directBytes, long physicalBytes, long pageCacheBytes) {
+            this.heapBytes = heapBytes;
+            this.directBytes = directBytes;
+            this.physicalBytes = physicalBytes;
+            this.pageCacheBytes = pageCacheBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Budget{heap=" + heapBytes + ", direct=" + directBytes + ", physical=" + physicalBytes + ", pageCache=" + pageCacheBytes + '}';
+        }
+    }
+
+    static class Plan {
+        final Budget budget;
+        final int nThreads;
+        // the biggest run a sorter may be handed; the runs actually planned are inputSize / chunkCount
+        final long runBytes;
+        final int chunkCount;
+        final MergePlanner.Plan mergePlan;
+
+        Plan(Budget budget, int nThreads, long runBytes, int chunkCount, MergePlanner.Plan mergePlan) {
+            this.budget = budget;
+            this.nThreads = nThreads;
+            this.runBytes = runBytes;
+            this.chunkCount = chunkCount;
+            this.mergePlan = mergePlan;
+        }
+
+        @Override
+        public String toString() {
+            return "SortPlan{threads=" + nThreads + ", runBytes=" + runBytes + ", chunkCount=" + chunkCount
+                    + ", fanIn=" + mergePlan.fanIn + ", passes=" + mergePlan.passes + ", chonkLength=" + mergePlan.chonkLength
+                    + ", " + budget + '}';
+        }
+    }
+
+    /**
+     * @param options     what to sort with, and any overrides
+     * @param inputSize   size of the input, in bytes
+     * @param scratchPath a path on the device the runs are written to
+     */
+    static Plan plan(SortOptions options, long inputSize, Path scratchPath) {
+        var budget = getBudget(options);
+        int nThreads = options.nThreads;
+        long runBytes = getMaxRunBytes(options, budget);
+        if (runBytes < Long.BYTES) throw new RuntimeException("It's not possible to sort an input of size " + inputSize + " with only " + budget);
+        // the page cache only bounds runs for speed: when that makes for more runs than there can be memory maps, bigger
+        // runs (as big as the heap allows) beat not sorting at all
+        long fewestRunBytes = (inputSize + MAX_CHUNK_COUNT - 1) / MAX_CHUNK_COUNT;
+        fewestRunBytes += (Long.BYTES - fewestRunBytes % Long.BYTES) % Long.BYTES;
+        if (runBytes < fewestRunBytes) {
+            long heapRunBytes = Math.min(getRunBytes(options, budget, false), ChunkSorter.MAX_CHUNK_BYTES);
+            long raised = Math.max(runBytes, Math.min(fewestRunBytes, heapRunBytes - heapRunBytes % Long.BYTES));
+            LOGGER.warning("too many runs of " + runBytes + " bytes for the memory map limit, making them " + raised + " bytes instead");
+            runBytes = raised;
+        }
+        int chunkCount = getChunkCount(nThreads, inputSize, runBytes);
+        return planMerge(options, budget, runBytes, chunkCount, scratchPath);
+    }
+
+    /**
+     * @return the biggest run every thread can be sorting at once (e.g. to tell a {@link SortCoordinator} how big a
+     *      key range this JVM can take), 0 if not even one long fits
+     */
+    static long getMaxRunBytes(SortOptions options, Budget budget) {
+        long runBytes = options.runBytes > 0 ? options.runBytes : getRunBytes(options, budget, true);
+        return Math.max(0, Math.min(runBytes - runBytes % Long.BYTES, ChunkSorter.MAX_CHUNK_BYTES));
+    }
+
+    /**
+     * Plans for runs that were (or are being) sorted already, e.g. from a stream whose size wasn't known up front.
+     *
+     * @param runBytes the biggest run
+     * @param runCount how many runs there are
+     */
+    static Plan planMerge(SortOptions options, Budget budget, long runBytes, int runCount, Path scratchPath) {
+        int nThreads = options.nThreads;
+        int readAheadDepth = options.ioMode == SortOptions.IOMode.ASYNC ? options.ioDepth : 0;
+        // block I/O writers are the only other thing drawing on direct memory while merging
+        long writerBytes = (long) nThreads * (readAheadDepth + 1) * options.blockBytes;
+        long directBytes = readAheadDepth == 0 ? Long.MAX_VALUE : Math.max(0, budget.directBytes - writerBytes);
+        int sourceHeapBytes = options.compressRuns ? PackedRun.READER_HEAP_BYTES : 0;
+        var mergePlan = MergePlanner.plan(runCount, options.fanIn, nThreads, budget.heapBytes, directBytes,
+                options.chunkMergerType, scratchPath, readAheadDepth, sourceHeapBytes);
+        return new Plan(budget, nThreads, runBytes, runCount, mergePlan);
+    }
+
+    /**
+     * Streamed runs are read onto the heap whatever the sorter, and one more run fills up while every thread sorts
+     * one of its own. A run that was just spilled may not have been collected yet by the time the next one is
+     * allocated, so that's one more again.
+     *
+     * @return the biggest run to cut from a stream
+     */
+    static long getStreamingRunBytes(SortOptions options, Budget budget) {
+        if (options.runBytes > 0) return Math.min(options.runBytes - options.runBytes % Long.BYTES, ChunkSorter.MAX_CHUNK_BYTES);
+        long runBytes;
+        if (options.runGeneration == SortOptions.RunGeneration.REPLACEMENT_SELECTION) {
+            // a single heap, and the runs it writes are streamed rather than held
+            runBytes = budget.heapBytes;
+        } else {
+            long heapBytesPerElement = Math.max(Long.BYTES, ChunkSorter.getHeapBytesPerElement(options.chunkSorterType));
+            runBytes = budget.heapBytes / (options.nThreads + 2) / heapBytesPerElement * Long.BYTES;
+        }
+        runBytes = Math.min(runBytes, ChunkSorter.MAX_CHUNK_BYTES);
+        if (runBytes < Long.BYTES) throw new RuntimeException("It's not possible to sort a stream with only " + budget);
+        return runBytes;
+    }
+
+    /**
+     * @param fitPageCache whether mapped runs have to stay resident too (they're just slower when they don't)
+     * @return the largest run every thread can sort at the same time without running out of heap, direct memory or
+     *      page cache
+     */
+    private static long getRunBytes(SortOptions options, Budget budget, boolean fitPageCache) {
+        boolean replacementSelection = options.runGeneration == SortOptions.RunGeneration.REPLACEMENT_SELECTION;
+        boolean async = options.ioMode == SortOptions.IOMode.ASYNC || replacementSelection;
+        long heapBytesPerElement = ChunkSorter.getHeapBytesPerElement(options.chunkSorterType);
+        // pipelined sorters read every run onto the heap, whatever the kernel, and replacement selection's heap is
+        // exactly one long per element
+        if (async) heapBytesPerElement = Math.max(Long.BYTES, heapBytesPerElement);
+        if (replacementSelection) heapBytesPerElement = Long.BYTES;
+        long runBytes = ChunkSorter.MAX_CHUNK_BYTES;
+        if (heapBytesPerElement > 0) runBytes = Math.min(runBytes, budget.heapBytes / options.nThreads / heapBytesPerElement * Long.BYTES);
+        if (async) {
+            // each thread has a reader and a writer, each holding up to depth + 1 blocks
+            long ioBytes = 2L * options.nThreads * (options.ioDepth + 1) * options.blockBytes;
+            if (ioBytes > budget.directBytes) throw new RuntimeException("not enough direct memory for " + ioBytes + " bytes of I/O buffers, have " + budget.directBytes);
+        } else if (fitPageCache) {
+            // a mapped run has its input and its output pages resident at the same time
+            runBytes = Math.min(runBytes, Math.max(MIN_RUN_BYTES, budget.pageCacheBytes / options.nThreads / 2));
+        }
+        return runBytes;
+    }
+
+    /**
+     * @return the fewest runs (at least one per thread) no bigger than runBytes
+     */
+    static int getChunkCount(int nThreads, long inputSize, long runBytes) {
+        long count = Math.max(nThreads, (inputSize + runBytes - 1) / runBytes);
+        if (count > MAX_CHUNK_COUNT) {
+            LOGGER.severe("nThreads=%d inputSize=%d runBytes=%d count=%d".formatted(nThreads, inputSize, runBytes, count));
+            throw new RuntimeException("It's not possible to sort an input of size " + inputSize + " in runs of " + runBytes + " without running out of memory maps");
+        }
+        return (int) count;
+    }
+
+    static Budget getBudget(SortOptions options) {
+        var runtime = Runtime.getRuntime();
+        long heapInUse = runtime.totalMemory() - runtime.freeMemory();
+        long heapMax = runtime.maxMemory();
+        // generational collectors put big arrays straight into the old generation, which is only part of the heap
+        MemoryUsage largestPool = null;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            var usage = pool.getUsage();
+            if (largestPool == null || usage.getMax() > largestPool.getMax()) largestPool = usage;
+        }
+        if (largestPool != null && largestPool.getMax() > 0 && largestPool.getMax() < heapMax) {
+            heapMax = largestPool.getMax();
+            heapInUse = largestPool.getUsed();
+        }
+        long headroom = Math.max(MIN_HEAP_HEADROOM, (long) (heapMax * HEAP_HEADROOM_FRACTION));
+        long physical = getAvailablePhysicalMemory();
+        // what the heap has already committed is counted as used by the OS, but it's ours to reuse
+        long heap = Math.min(heapMax, saturatedAdd(physical, runtime.totalMemory())) - heapInUse - headroom;
+        if (options.memoryBytes > 0) heap = options.memoryBytes;
+        heap = Math.max(0, heap);
+        long direct = Math.max(0, getMaxDirectMemory() - getDirectMemoryUsed());
+        long pageCache = Math.max(0, physical - Math.max(0, heap - runtime.totalMemory()));
+        return new Budget(heap, direct, physical, pageCache);
+    }
+
+    /**
+     * @return bytes that can be allocated (or cached) before the OS starts swapping or the cgroup starts reclaiming
+     */
+    static long getAvailablePhysicalMemory() {
+        long available = readMeminfo("MemAvailable");
+        long cgroupLimit = readCgroup("memory.max", "memory.limit_in_bytes");
+        if (cgroupLimit > 0) {
+            long usage = Math.max(0, readCgroup("memory.current", "memory.usage_in_bytes"));
+            // clean page cache is charged to the cgroup, but gets reclaimed before anyone is OOM killed
+            long reclaimable = Math.max(0, readCgroupStat("inactive_file", "total_inactive_file"));
+            available = Math.min(available, Math.max(0, cgroupLimit - usage + reclaimable));
+        }
+        return available;
+    }
+
+    private static long getMaxDirectMemory() {
+        try {
+            var hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long max = Long.parseLong(hotspot.getVMOption("MaxDirectMemorySize").getValue());
+            if (max > 0) return max;
+        } catch (RuntimeException e) {
+            LOGGER.fine("couldn't read MaxDirectMemorySize: " + e);
+        }
+        return Runtime.getRuntime().maxMemory(); // the JVM's default
+    }
+
+    private static long getDirectMemoryUsed() {
+        for (var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    /**
+     * Best effort, linux only.
+     *
+     * @return the value of a /proc/meminfo field in bytes, or Long.MAX_VALUE if we can't tell
+     */
+    private static long readMeminfo(String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/meminfo"))) {
+                if (line.startsWith(field + ":")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.fine("couldn't read " + field + " from /proc/meminfo: " + e);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Best effort, linux only: reads a file from this process's memory cgroup (v2 first, then v1).
+     *
+     * @return the value in bytes, or -1 if there's no such file or no limit
+     */
+    private static long readCgroup(String v2File, String v1File) {
+        for (Path file : new Path[]{getCgroupDirectory(true).resolve(v2File), getCgroupDirectory(false).resolve(v1File)}) {
+            try {
+                if (!Files.isReadable(file)) continue;
+                String value = Files.readString(file).trim();
+                if (value.equals("max")) return -1;
+                long bytes = Long.parseLong(value);
+                // v1 says "no limit" with a huge page-aligned number instead
+                return bytes >= Long.MAX_VALUE / 2 ? -1 : bytes;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.fine("couldn't read " + file + ": " + e);
+            }
+        }
+        return -1;
+    }
+
+    private static long readCgroupStat(String v2Field, String v1Field) {
+        for (Path file : new Path[]{getCgroupDirectory(true).resolve("memory.stat"), getCgroupDirectory(false).resolve("memory.stat")}) {
+            try {
+                if (!Files.isReadable(file)) continue;
+                String field = file.startsWith(Path.of("/sys/fs/cgroup/memory")) ? v1Field : v2Field;
+                for (String line : Files.readAllLines(file)) {
+                    if (line.startsWith(field + " ")) return Long.parseLong(line.substring(field.length() + 1).trim());
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.fine("couldn't read " + file + ": " + e);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * /proc/self/cgroup has lines like "0::/some/path" (v2) or "4:memory:/some/path" (v1). Inside a container the
+     * path often doesn't exist in the container's view of /sys/fs/cgroup, in which case the mount root is ours.
+     */
+    private static Path getCgroupDirectory(boolean v2) {
+        Path root = Path.of(v2 ? "/sys/fs/cgroup" : "/sys/fs/cgroup/memory");
+        try {
+            List<String> lines = Files.readAllLines(Path.of("/proc/self/cgroup"));
+            for (String line : lines) {
+                String[] fields = line.split(":", 3);
+                if (fields.length < 3) continue;
+                boolean matches = v2 ? fields[0].equals("0") && fields[1].isEmpty() : List.of(fields[1].split(",")).contains("memory");
+                if (!matches) continue;
+                Path directory = root.resolve(fields[2].substring(1));
+                return Files.isDirectory(directory) ? directory : root;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.fine("couldn't read /proc/self/cgroup: " + e);
+        }
+        return root;
+    }
+
+    private static long saturatedAdd(long x, long y) {
+        long sum = x + y;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+}
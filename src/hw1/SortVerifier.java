@@ -0,0 +1,147 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Checks that the output is a sorted permutation of the input, streaming both in big blocks (one slice of each file
+ * per thread), so it costs one sequential read of each and can stay on for every sort.
+ * <p>
+ * Permutation is checked with an order-independent multiset hash: the count, plus two sums (mod 2^64) of differently
+ * mixed values. Sums, not xors, so duplicates don't cancel out; two mixes, so a wrong output only slips through with
+ * odds of about 2^-128. Sortedness is checked within each slice, then across the slices' boundaries.
+ * <pre>
+ * java -cp out hw1.SortVerifier array.bin sorted.bin [threads]
+ * </pre>
+ */
+class SortVerifier {
+    // a different mix for the second sum
+    private static final long SALT = 0x6A09E667F3BCC909L;
+    private static final Logger LOGGER = Logger.getLogger(SortVerifier.class.getName());
+
+    /**
+     * What's in a file (or a slice of one), as far as verification cares.
+     */
+    static class Digest {
+        long count = 0;
+        long sum = 0;
+        long saltedSum = 0;
+        // index of the first value that's smaller than the one before it, -1 if there isn't one
+        long unsortedAt = -1;
+        long first;
+        long last;
+
+        /**
+         * @param next the digest of the slice right after this one
+         */
+        void append(Digest next) {
+            if (next.count == 0) return;
+            if (unsortedAt < 0 && count > 0 && next.first < last) unsortedAt = count;
+            if (unsortedAt < 0 && next.unsortedAt >= 0) unsortedAt = count + next.unsortedAt;
+            if (count == 0) first = next.first;
+            last = next.last;
+            count += next.count;
+            sum += next.sum;
+            saltedSum += next.saltedSum;
+        }
+
+        boolean isPermutationOf(Digest that) {
+            return count == that.count && sum == that.sum && saltedSum == that.saltedSum;
+        }
+
+        @Override
+        public String toString() {
+            return "Digest{count=" + count + ", sum=" + Long.toHexString(sum) + ", saltedSum=" + Long.toHexString(saltedSum)
+                    + ", unsortedAt=" + unsortedAt + '}';
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args.length < 2) throw new IllegalArgumentException("usage: SortVerifier <input> <output> [threads]");
+        int nThreads = args.length < 3 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[2]);
+        verify(Paths.get(args[0]), Paths.get(args[1]), nThreads, Watchdog.DEFAULT_STALL_SECONDS);
+    }
+
+    /**
+     * @param inputPath null to only check that the output is sorted (e.g. when the input was piped in)
+     * @throws RuntimeException if the output isn't a sorted permutation of the input
+     */
+    static void verify(Path inputPath, Path outputPath, int nThreads, int stallSeconds) throws IOException, InterruptedException, ExecutionException {
+        verify(inputPath == null ? List.of() : List.of(inputPath), outputPath, nThreads, stallSeconds);
+    }
+
+    /**
+     * @param inputPaths everything that went into the output (e.g. the files {@link SortedFileMerger} merged), empty
+     *                   to only check that the output is sorted
+     */
+    static void verify(List<Path> inputPaths, Path outputPath, int nThreads, int stallSeconds) throws IOException, InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        var output = digest(outputPath, nThreads, stallSeconds);
+        if (output.unsortedAt >= 0) throw new RuntimeException("Abort: output is not sorted at index " + output.unsortedAt);
+        if (!inputPaths.isEmpty()) {
+            // the hash is order-independent, so the inputs' digests just add up
+            var input = new Digest();
+            for (var inputPath : inputPaths) input.append(digest(inputPath, nThreads, stallSeconds));
+            if (!output.isPermutationOf(input)) {
+                throw new RuntimeException("Abort: output is not a permutation of the input (input " + input + ", output " + output + ")");
+            }
+        }
+        LOGGER.info("trust, but verify (%s %,d longs in %.3fs)".formatted(
+                inputPaths.isEmpty() ? "checked the order of" : "checked the order and checksum of", output.count, (System.nanoTime() - start) / 1e9));
+    }
+
+    static Digest digest(Path path, int nThreads, int stallSeconds) throws IOException, InterruptedException, ExecutionException {
+        try (FileChannel channel = FileChannel.open(path, Set.of(READ))) {
+            long size = channel.size();
+            if (size % Long.BYTES != 0) throw new RuntimeException("Abort: " + path + " isn't a whole number of longs");
+            List<Callable<Digest>> digesters = new ArrayList<>();
+            for (var split : Split.createSplits(size, nThreads)) digesters.add(() -> digest(channel, split));
+            var digest = new Digest();
+            for (var slice : Utils.invokeAll(nThreads, stallSeconds, digesters, "verification")) digest.append(slice);
+            return digest;
+        }
+    }
+
+    static Digest digest(FileChannel channel, Split split) throws IOException {
+        var digest = new Digest();
+        var block = ByteBuffer.allocateDirect((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, Math.max(Long.BYTES, split.byteSize)));
+        long[] values = new long[block.capacity() / Long.BYTES];
+        long position = split.bytePosition;
+        long end = split.bytePosition + split.byteSize;
+        long sum = 0, saltedSum = 0, previous = Long.MIN_VALUE;
+        while (position < end) {
+            block.clear().limit((int) Math.min(block.capacity(), end - position));
+            while (block.hasRemaining()) {
+                int n = channel.read(block, position + block.position());
+                if (n < 0) throw new IOException("file shrank while verifying " + split);
+            }
+            int length = block.limit() / Long.BYTES;
+            block.flip().asLongBuffer().get(values, 0, length);
+            if (digest.count == 0) digest.first = values[0];
+            for (int i = 0; i < length; i++) {
+                long value = values[i];
+                if (value < previous && digest.unsortedAt < 0) digest.unsortedAt = digest.count + i;
+                previous = value;
+                sum += Distribution.mix(value);
+                saltedSum += Distribution.mix(value ^ SALT);
+            }
+            digest.count += length;
+            position += block.limit();
+        }
+        digest.last = previous;
+        digest.sum = sum;
+        digest.saltedSum = saltedSum;
+        return digest;
+    }
+}
@@ -0,0 +1,164 @@
+package hw1;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * One worker JVM of a {@link SortCoordinator}, which launches it and drives it over its stdin and stdout, one command
+ * per line. Logs go to stderr, like everywhere else.
+ * <pre>
+ * &lt; ready [biggest range it can sort, in bytes]
+ * &gt; splitters [s1] [s2] ...           (the bucket boundaries, see DistributionSorter#bucketOf)
+ * &gt; count [index] [length]            (this worker's slice of the input)
+ * &lt; counts [c0] [c1] ...              (of the slice's elements in each bucket)
+ * &gt; scatter [o0] [o1] ...             (where the slice's elements of each bucket go in the output)
+ * &lt; done
+ * &gt; sort [index] [length] ...         (buckets of the output to sort in place)
+ * &lt; done
+ * &gt; exit
+ * </pre>
+ * Anything that goes wrong is answered with {@code error [message]} instead.
+ */
+class SortWorker {
+    private static final Logger LOGGER = Logger.getLogger(SortWorker.class.getName());
+    private final FileChannel inputFileChannel;
+    private final FileChannel outputFileChannel;
+    private final SortOptions options;
+    private long[] splitters;
+    // the slice split up some more, one mapping each, and how many of each one's elements are in each bucket
+    private Split[] splits;
+    private List<long[]> counts;
+
+    private SortWorker(FileChannel inputFileChannel, FileChannel outputFileChannel, SortOptions options) {
+        this.inputFileChannel = inputFileChannel;
+        this.outputFileChannel = outputFileChannel;
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        if (positional.size() != 2) throw new IllegalArgumentException("usage: SortWorker <input> <output> [--name=value ...]");
+        var sortOptions = SortOptions.fromCommandLine(options);
+        Path inputPath = Paths.get(positional.get(0));
+        Path outputPath = Paths.get(positional.get(1));
+        var in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+        // only the protocol goes to stdout
+        var out = new PrintStream(System.out, true, StandardCharsets.US_ASCII);
+        System.setOut(System.err);
+        try (
+                FileChannel inputFileChannel = FileChannel.open(inputPath, Set.of(READ));
+                FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(READ, WRITE))
+        ) {
+            var worker = new SortWorker(inputFileChannel, outputFileChannel, sortOptions);
+            out.println("ready " + SortPlanner.getMaxRunBytes(sortOptions, SortPlanner.getBudget(sortOptions)));
+            for (String line; (line = in.readLine()) != null && !line.equals("exit"); ) {
+                try {
+                    out.println(worker.handle(line.split(" ")));
+                } catch (Exception e) {
+                    LOGGER.severe("couldn't " + line.split(" ")[0] + ": " + e);
+                    out.println("error " + String.valueOf(e).replace('\n', ' '));
+                }
+            }
+        }
+        LOGGER.info("clocking out (worker done)");
+    }
+
+    /**
+     * @return the reply
+     */
+    private String handle(String[] command) throws Exception {
+        long[] arguments = Arrays.stream(command, 1, command.length).mapToLong(Long::parseLong).toArray();
+        switch (command[0]) {
+            case "splitters" -> {
+                splitters = arguments;
+                return "done";
+            }
+            case "count" -> {
+                return "counts " + join(count(new Split(arguments[0], arguments[1])));
+            }
+            case "scatter" -> {
+                scatter(arguments);
+                return "done";
+            }
+            case "sort" -> {
+                List<Split> buckets = new ArrayList<>();
+                for (int i = 0; i < arguments.length; i += 2) buckets.add(new Split(arguments[i], arguments[i + 1]));
+                sort(buckets);
+                return "done";
+            }
+            default -> throw new IllegalArgumentException("unknown command " + command[0]);
+        }
+    }
+
+    private long[] count(Split slice) throws Exception {
+        // at least one split per thread, and none bigger than a single mapping
+        int splitCount = (int) Math.max(options.nThreads, (slice.byteSize + ChunkSorter.MAX_CHUNK_BYTES - 1) / ChunkSorter.MAX_CHUNK_BYTES);
+        splits = Split.createSplits(slice.byteSize, splitCount);
+        List<Callable<long[]>> counters = new ArrayList<>();
+        for (var split : splits) {
+            split.index += slice.index;
+            split.bytePosition += slice.bytePosition;
+            counters.add(() -> DistributionSorter.count(inputFileChannel, split, splitters, null));
+        }
+        counts = Utils.invokeAll(options.nThreads, options.stallSeconds, counters, "count");
+        long[] total = new long[splitters.length + 1];
+        for (long[] splitCounts : counts) {
+            for (int b = 0; b < total.length; b++) total[b] += splitCounts[b];
+        }
+        return total;
+    }
+
+    /**
+     * @param offsets where the slice's elements of each bucket start; within a bucket, split t writes right after t - 1
+     */
+    private void scatter(long[] offsets) throws Exception {
+        long[] next = offsets.clone();
+        List<Callable<Void>> scatterers = new ArrayList<>();
+        for (int t = 0; t < splits.length; t++) {
+            var split = splits[t];
+            long[] splitOffsets = next.clone();
+            for (int b = 0; b < next.length; b++) next[b] += counts.get(t)[b];
+            scatterers.add(() -> DistributionSorter.scatter(inputFileChannel, outputFileChannel, split, splitters, splitOffsets, null));
+        }
+        Utils.invokeAll(options.nThreads, options.stallSeconds, scatterers, "scatter");
+    }
+
+    private void sort(List<Split> buckets) throws Exception {
+        List<ChunkSorter> bucketSorters = new ArrayList<>();
+        for (var bucket : buckets) {
+            if (bucket.length > 1) bucketSorters.add(ChunkSorter.create(options.chunkSorterType, outputFileChannel, outputFileChannel, bucket, null));
+        }
+        Utils.invokeAll(options.nThreads, options.stallSeconds, bucketSorters, "bucket sort");
+    }
+
+    private static String join(long[] values) {
+        var joined = new StringBuilder();
+        for (long value : values) joined.append(joined.length() == 0 ? "" : " ").append(value);
+        return joined.toString();
+    }
+}
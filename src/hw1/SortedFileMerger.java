@@ -0,0 +1,97 @@
+package hw1;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Merges files of longs that are each sorted already (e.g. shards from upstream, or earlier jobs' outputs) into one
+ * sorted output, without sorting anything.
+ * <p>
+ * Every input is a run (or a few, when it's bigger than a chunk can be), merged straight from where it is by
+ * {@link ParallelExternalLongSorter} the same way natural runs are: the first merge round reads the inputs instead of
+ * scratch, so there's no run sorting and no pass writing runs to scratch. With few enough inputs for a single round,
+ * that round writes the output directly.
+ */
+class SortedFileMerger {
+    private static final Logger LOGGER = Logger.getLogger(SortedFileMerger.class.getName());
+    private final List<Path> inputPaths;
+    private final Path outputPath;
+    private final SortOptions options;
+    private final boolean checkInputs;
+
+    /**
+     * @param inputPaths  sorted files of longs, empty ones are fine
+     * @param checkInputs read every input once first, to make sure it really is sorted (the merge would quietly
+     *                    produce unsorted output otherwise)
+     */
+    public SortedFileMerger(List<Path> inputPaths, Path outputPath, SortOptions options, boolean checkInputs) {
+        if (inputPaths.isEmpty()) throw new IllegalArgumentException("nothing to merge");
+        if (!options.recordFormat.isLongs()) throw new IllegalArgumentException("can only merge files of longs, not " + options.recordFormat);
+        this.inputPaths = inputPaths;
+        this.outputPath = outputPath;
+        this.options = options;
+        this.checkInputs = checkInputs;
+    }
+
+    public void merge() throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        Utils.validateOutputPath(outputPath);
+        List<Path> inputs = new ArrayList<>();
+        for (var path : inputPaths) {
+            assert Files.isReadable(path) : path + " is not readable";
+            long size = Files.size(path);
+            if (size % Long.BYTES != 0) throw new RuntimeException("Abort: " + path + " isn't a whole number of longs");
+            if (size > 0) inputs.add(path);
+        }
+        LOGGER.info("the band's getting back together (merging " + inputs.size() + " sorted files, " + (inputPaths.size() - inputs.size()) + " empty ones skipped)");
+        if (checkInputs) checkSorted(inputs);
+        if (inputs.size() <= 1) {
+            LOGGER.info("a band of one (nothing to merge, copying)");
+            if (inputs.isEmpty()) Files.createFile(outputPath);
+            else Files.copy(inputs.get(0), outputPath);
+            return;
+        }
+
+        var scratch = ScratchSpace.create(options.scratchDirs, outputPath);
+        boolean merging = false;
+        try {
+            // each input is one run, cut down to what a chunk can hold, at its place in the inputs put end to end
+            long maxRunLength = ChunkSorter.MAX_CHUNK_BYTES / Long.BYTES;
+            List<Split> runs = new ArrayList<>();
+            long index = 0, runBytes = 0;
+            for (int input = 0; input < inputs.size(); input++) {
+                long end = index + Files.size(inputs.get(input)) / Long.BYTES;
+                for (long from = index; from < end; from += maxRunLength) {
+                    var run = new Split(from, Math.min(maxRunLength, end - from));
+                    run.device = scratch.inputDevice(input);
+                    runs.add(run);
+                    runBytes = Math.max(runBytes, run.byteSize);
+                }
+                index = end;
+            }
+            LOGGER.info("Count Chunkula: " + runs.size());
+            var plan = SortPlanner.planMerge(options, SortPlanner.getBudget(options), runBytes, runs.size(), scratch.primary());
+            merging = true; // the merge deletes the scratch files once it's done with them
+            new ParallelExternalLongSorter(scratch, runs, inputs, outputPath, options, plan).sort();
+        } finally {
+            if (!merging) scratch.close();
+        }
+    }
+
+    /**
+     * @throws RuntimeException if any input isn't sorted
+     */
+    private void checkSorted(List<Path> inputs) throws IOException, InterruptedException, ExecutionException {
+        long start = System.nanoTime();
+        for (var path : inputs) {
+            var digest = SortVerifier.digest(path, options.nThreads, options.stallSeconds);
+            if (digest.unsortedAt >= 0) throw new RuntimeException("Abort: " + path + " is not sorted at index " + digest.unsortedAt);
+        }
+        LOGGER.info("checking IDs at the door (%d inputs are sorted, %.3fs)".formatted(inputs.size(), (System.nanoTime() - start) / 1e9));
+    }
+}
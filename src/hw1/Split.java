@@ -2,68 +2,91 @@ package hw1;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.IntStream;
 
 public class Split implements Comparable<Split>{
     // for use with raw byte buffer
     long bytePosition;
     long byteSize;
-    // for use with long buffer
+    // for use with long buffer (or, for fixed-width records, in units of records)
     long index;
     long length;
-
-    public Split(Split left, Split right) {
-        this(left.index, left.length + right.length);
-        // check that these are two contiguous splits
-        assert left.index < right.index;
-        assert right.index == left.index + left.length;
+    int recordBytes;
+    // which file the split is in, when it could be in more than one (see ScratchSpace)
+    int device;
+    // where the frames are when the split holds a PackedRun, null when it's raw longs
+    PackedRun.Index frames;
+
+    public Split(Split... contiguous) {
+        this(contiguous[0].index, Arrays.stream(contiguous).mapToLong(s -> s.length).sum(), contiguous[0].recordBytes);
+        // check that these are contiguous splits
+        for (int i = 0; i < contiguous.length - 1; i++) {
+            assert contiguous[i + 1].index == contiguous[i].index + contiguous[i].length;
+            assert contiguous[i + 1].recordBytes == contiguous[i].recordBytes;
+        }
     }
 
     public Split(long index, long length) {
-        this.bytePosition = index * Long.BYTES;
-        this.byteSize = length * Long.BYTES;
+        this(index, length, Long.BYTES);
+    }
+
+    public Split(long index, long length, int recordBytes) {
+        this.bytePosition = index * recordBytes;
+        this.byteSize = length * recordBytes;
         this.index = index;
         this.length = length;
+        this.recordBytes = recordBytes;
     }
 
     @Override
     public String toString() {
-        return "Split{bytePosition=" + bytePosition + ", byteSize=" + byteSize + ", index=" + index + ", length=" + length + '}';
+        return "Split{bytePosition=" + bytePosition + ", byteSize=" + byteSize + ", index=" + index + ", length=" + length + ", device=" + device + '}';
     }
 
     /**
      * @param splits input splits, must be of length >= 1 and in sequence (no overlaps, ordered by index, no "holes")
-     * @return array of pairs of splits for merging- unless the length of splits is odd, then the first "pair"
-     *      actually contains only one element
+     * @param fanIn  the maximum number of splits per group
+     * @return groups of contiguous splits for merging; the group count is the minimum needed for the given fan-in and
+     *      group sizes differ by at most one, smaller groups first
      */
-    public static ArrayList<Split[]> groupSplits(ArrayList<Split> splits) {
+    public static ArrayList<Split[]> groupSplits(List<Split> splits, int fanIn) {
         //region check preconditions
         assert splits.size() >= 1;
+        assert fanIn >= 2;
         assert splits.get(0).index == 0;
         for (int i = 0; i < splits.size() - 1; i++) {
             var x = splits.get(i);
             var y = splits.get(i+1);
-            assert x.length <= y.length && x.index <= y.index && x.index + x.length == y.index : ""+x+y;
+            assert x.index <= y.index && x.index + x.length == y.index : ""+x+y;
         }
         //endregion
 
-        ArrayList<Split[]> splitPairs = new ArrayList<>();
-        var it = splits.iterator();
-        if (splits.size() % 2 == 1) {
-            splitPairs.add(new Split[]{it.next()});
-        }
-        while (it.hasNext()) {
-            splitPairs.add(new Split[]{it.next(), it.next()});
+        int groupCount = (splits.size() + fanIn - 1) / fanIn;
+        int smallGroupSize = splits.size() / groupCount;
+        int largeGroupCount = splits.size() % groupCount;
+        ArrayList<Split[]> groups = new ArrayList<>(groupCount);
+        int from = 0;
+        for (int g = 0; g < groupCount; g++) {
+            int size = (g < groupCount - largeGroupCount) ? smallGroupSize : smallGroupSize + 1;
+            groups.add(splits.subList(from, from + size).toArray(new Split[0]));
+            from += size;
         }
-        return splitPairs;
+        assert from == splits.size();
+        return groups;
     }
+
     public static Split[] createSplits(long totalByteSize, int splitCount) {
-        // check preconditions: 0 <= totalByteSize && 1 <= splitCount && totalByteSize % Long.BYTES == 0
+        return createSplits(totalByteSize, splitCount, Long.BYTES);
+    }
+
+    public static Split[] createSplits(long totalByteSize, int splitCount, int recordBytes) {
+        // check preconditions: 0 <= totalByteSize && 1 <= splitCount && totalByteSize % recordBytes == 0
         assert totalByteSize >= 0 : "totalByteSize must be >= 0";
         assert 1 <= splitCount : "there cannot be fewer than one split";
-        assert totalByteSize % Long.BYTES == 0 : "totalByteSize must be a multiple of Long.BYTES";
+        assert totalByteSize % recordBytes == 0 : "totalByteSize must be a multiple of recordBytes";
 
-        long totalLength = totalByteSize / Long.BYTES;
+        long totalLength = totalByteSize / recordBytes;
         long typicalSplitLength = totalLength / splitCount;
         long lastSplitLength = typicalSplitLength;
         if (totalLength % splitCount != 0) {
@@ -75,15 +98,19 @@ public class Split implements Comparable<Split>{
         long currentIndex = 0;
         for (int i = 0; i < splits.length; i++) {
             long splitLength = (i == splits.length - 1) ? lastSplitLength : typicalSplitLength;
+            // with fewer elements than splits, the tail end of the splits is left empty
+            splitLength = Math.max(0, Math.min(splitLength, totalLength - currentIndex));
 
-            splits[i] = new Split(currentIndex, splitLength);
+            splits[i] = new Split(currentIndex, splitLength, recordBytes);
             currentIndex += splitLength;
         }
 
         // check post-conditions
         // all splits have the same size, except the final split which may be slightly smaller than the rest
+        // (or, when there are fewer elements than splits, except the empty ones at the end)
         Split first = splits[0], last = splits[splits.length - 1];
-        assert IntStream.range(0, splits.length - 1).allMatch(i -> splits[i].byteSize == first.byteSize);
+        assert IntStream.range(0, splits.length - 1).allMatch(i -> splits[i].byteSize == first.byteSize
+                || splits[i + 1].byteSize == 0);
         assert first.byteSize >= last.byteSize;
 
         // our splits have a cumulative size equal to the input total size
@@ -134,6 +161,28 @@ public class Split implements Comparable<Split>{
                 && (splits[1].index == 34) && (splits[1].length == 34)
                 && (splits[2].index == 68) && (splits[2].length == 32);
 
+        // test grouping: 5 splits with a fan-in of 2 -> a single, then two pairs
+        var groups = Split.groupSplits(List.of(Split.createSplits(Long.BYTES * 100, 5)), 2);
+        assert groups.size() == 3 && groups.get(0).length == 1 && groups.get(1).length == 2 && groups.get(2).length == 2;
+
+        // test grouping: 10 splits with a fan-in of 4 -> 3 groups of 3, 3, 4
+        groups = Split.groupSplits(List.of(Split.createSplits(Long.BYTES * 100, 10)), 4);
+        assert groups.size() == 3 && groups.get(0).length == 3 && groups.get(1).length == 3 && groups.get(2).length == 4;
+        assert new Split(groups.get(2)).index == 60 && new Split(groups.get(2)).length == 40;
+
+        // test fewer elements than splits
+        splits = Split.createSplits(Long.BYTES * 5, 4);
+        assert (splits.length == 4)
+                && (splits[0].length == 2) && (splits[1].length == 2)
+                && (splits[2].index == 4) && (splits[2].length == 1)
+                && (splits[3].index == 5) && (splits[3].length == 0);
+
+        // test fixed-width records: 10 records of 24 bytes
+        splits = Split.createSplits(24 * 10, 3, 24);
+        assert (splits.length == 3) && (splits[1].index == 4) && (splits[1].bytePosition == 24 * 4)
+                && (splits[2].length == 2) && (splits[2].byteSize == 24 * 2);
+        assert new Split(splits[1], splits[2]).byteSize == 24 * 6;
+
         System.out.println("Self-testing passed.");
     }
 
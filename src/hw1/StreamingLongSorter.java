@@ -0,0 +1,268 @@
+package hw1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sorts longs from a stream of unknown length (a pipe, stdin, a socket) without landing the input on disk first.
+ * <p>
+ * Runs are cut from the stream as it arrives and handed to a pool that sorts them and spills them to a scratch file,
+ * while the next run is already being read. At the end of the stream the runs are merged by
+ * {@link ParallelExternalLongSorter} as usual. A stream that fits in a single run is sorted in memory and written
+ * straight to the output, without touching scratch at all.
+ * <p>
+ * A stream can't be sampled up front or read again to resume, and its runs are spilled raw, so distribution mode,
+ * checkpoints and packed runs are refused rather than ignored.
+ */
+class StreamingLongSorter {
+    // the first run starts out small and grows, so a short stream doesn't allocate a whole run's worth of heap
+    static final int INITIAL_RUN_LENGTH = 64 * 1024;
+    private static final Logger LOGGER = Logger.getLogger(StreamingLongSorter.class.getName());
+    private final ReadableByteChannel input;
+    private final Path outputPath;
+    private final SortOptions options;
+
+    public StreamingLongSorter(ReadableByteChannel input, Path outputPath, SortOptions options) {
+        if (!options.recordFormat.isLongs()) throw new IllegalArgumentException("records can't be streamed, use RecordSorter on a file of " + options.recordFormat);
+        List<String> unsupported = new ArrayList<>();
+        if (options.mode != SortOptions.Mode.MERGE) unsupported.add("mode=" + options.mode);
+        if (options.compressRuns) unsupported.add("compress-runs");
+        if (options.checkpointPath != null) unsupported.add("checkpoint");
+        if (!unsupported.isEmpty()) {
+            throw new IllegalArgumentException("a stream is cut into runs and merged, it can't do " + unsupported);
+        }
+        this.input = input;
+        this.outputPath = outputPath;
+        this.options = options;
+    }
+
+    public StreamingLongSorter(InputStream input, Path outputPath, SortOptions options) {
+        this(Channels.newChannel(input), outputPath, options);
+    }
+
+    public void sort() throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        Utils.validateOutputPath(outputPath);
+        var budget = SortPlanner.getBudget(options);
+        long runBytes = SortPlanner.getStreamingRunBytes(options, budget);
+        int runLength = (int) (runBytes / Long.BYTES);
+        LOGGER.info("drinking from the firehose (streaming runs of up to " + runLength + " longs)");
+        // only sort(long[]) is used, so the sorter doesn't need channels or a split
+        var kernel = ChunkSorter.create(options.chunkSorterType, null, null, null, null);
+        var source = new StreamSource(input, options.blockBytes);
+        if (options.runGeneration == SortOptions.RunGeneration.REPLACEMENT_SELECTION) {
+            generateRuns(source, budget, runLength);
+            return;
+        }
+
+        long[] values = readRun(source, Math.min(runLength, INITIAL_RUN_LENGTH), runLength);
+        if (values.length == 0) throw new RuntimeException("Abort: input stream is empty");
+        if (values.length < runLength && source.isExhausted()) {
+            LOGGER.info("that's it? (stream fits in one run, sorting in memory)");
+            try (FileChannel outputFileChannel = FileChannel.open(outputPath, Set.of(CREATE_NEW, WRITE))) {
+                write(outputFileChannel, kernel.sort(values), 0);
+            }
+            return;
+        }
+
+        var scratch = ScratchSpace.create(options.scratchDirs, outputPath);
+        List<Split> runs = new ArrayList<>();
+        boolean merging = false;
+        try {
+            try (var channels = scratch.open(null)) {
+                spill(source, values, runLength, kernel, channels, scratch.side(0), runs);
+            }
+            LOGGER.info("Count Chunkula: " + runs.size());
+            var plan = SortPlanner.planMerge(options, budget, runBytes, runs.size(), scratch.primary());
+            merging = true; // the merge deletes the scratch files once it's done with them
+            new ParallelExternalLongSorter(scratch, runs, outputPath, options, plan).sort();
+        } finally {
+            if (!merging) scratch.close();
+        }
+    }
+
+    /**
+     * Streams the input through a single replacement selection heap into scratch, then merges whatever runs came out.
+     */
+    private void generateRuns(StreamSource source, SortPlanner.Budget budget, int heapLength) throws IOException, InterruptedException, ExecutionException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+        LOGGER.info("king of the hill, one long at a time (generating runs by replacement selection)");
+        var scratch = ScratchSpace.create(options.scratchDirs, outputPath);
+        boolean merging = false;
+        try {
+            List<Split> runs;
+            try (
+                    // one heap, one stream of runs, so they all go to the first device
+                    FileChannel scratchFileChannel = FileChannel.open(scratch.primary(), Set.of(WRITE));
+                    var io = new BlockIO(options.blockBytes, options.ioDepth, options.ioThreads)
+            ) {
+                var writer = io.writer(scratchFileChannel, 0);
+                runs = new ReplacementSelection(heapLength, ChunkSorter.MAX_CHUNK_BYTES / Long.BYTES).generate(source, writer, 0);
+                writer.close();
+            }
+            if (runs.isEmpty()) throw new RuntimeException("Abort: input stream is empty");
+            LOGGER.info("Count Chunkula: " + runs.size());
+            var plan = SortPlanner.planMerge(options, budget, (long) heapLength * Long.BYTES, runs.size(), scratch.primary());
+            merging = true; // the merge deletes the scratch files once it's done with them
+            new ParallelExternalLongSorter(scratch, runs, outputPath, options, plan).sort();
+        } finally {
+            if (!merging) scratch.close();
+        }
+    }
+
+    /**
+     * Sorts and writes runs on a pool while the calling thread reads the next one. At most nThreads runs are being
+     * sorted or written at once, so together with the one being read that's nThreads + 1 runs on the heap (see
+     * {@link SortPlanner#getStreamingRunBytes}). Runs are striped across the given scratch devices.
+     */
+    private void spill(StreamSource source, long[] first, int runLength, ChunkSorter kernel, ScratchSpace.Channels channels, int[] runDevices, List<Split> runs) throws InterruptedException, ExecutionException {
+        int nThreads = options.nThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        var permits = new Semaphore(nThreads);
+        List<Future<Void>> futures = new ArrayList<>();
+        long index = 0;
+        try {
+            long[] values = first;
+            while (values.length > 0) {
+                var run = new Split(index, values.length);
+                run.device = ScratchSpace.stripe(runDevices, runs.size());
+                runs.add(run);
+                index += values.length;
+                long[] unsorted = values;
+                futures.add(executor.submit(() -> {
+                    try {
+                        write(channels.get(run.device), kernel.sort(unsorted), run.bytePosition);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+                propagateFailures(futures);
+                permits.acquire();
+                values = source.isExhausted() ? new long[0] : readRun(source, runLength, runLength);
+            }
+        } finally {
+            executor.shutdown();  //tell the pool we're done giving it work
+        }
+        LOGGER.info("I'LL BE BACK! (awaiting spill threadpool termination)");
+        // each run that finishes is progress (on top of the CPU its sort burns)
+        var watchdog = new Watchdog("spill", options.stallSeconds);
+        for (var future : futures) {
+            watchdog.await(future); // propagate exceptions from child threads
+            watchdog.tick();
+        }
+    }
+
+    /**
+     * Doesn't wait on anything, just stops reading the stream early if a run already failed to sort or spill.
+     */
+    private static void propagateFailures(List<Future<Void>> futures) throws InterruptedException, ExecutionException {
+        for (Iterator<Future<Void>> it = futures.iterator(); it.hasNext(); ) {
+            var future = it.next();
+            if (!future.isDone()) continue;
+            future.get();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return up to maxLength values from the source; shorter (and trimmed to fit) only at the end of the stream
+     */
+    private static long[] readRun(StreamSource source, int initialLength, int maxLength) {
+        long[] values = new long[initialLength];
+        int length = 0;
+        while (true) {
+            if (length == values.length) {
+                if (length == maxLength) return values;
+                values = Arrays.copyOf(values, (int) Math.min(maxLength, 2L * values.length));
+            }
+            int n = source.read(values, length, values.length - length);
+            if (n == 0) break;
+            length += n;
+        }
+        return length == values.length ? values : Arrays.copyOf(values, length);
+    }
+
+    private static void write(FileChannel channel, long[] values, long bytePosition) throws IOException {
+        var block = ByteBuffer.allocate((int) Math.min(BlockIO.DEFAULT_BLOCK_BYTES, (long) values.length * Long.BYTES));
+        LongBuffer view = block.asLongBuffer();
+        for (int offset = 0; offset < values.length; ) {
+            int n = Math.min(view.capacity(), values.length - offset);
+            view.clear();
+            view.put(values, offset, n);
+            block.clear().limit(n * Long.BYTES);
+            while (block.hasRemaining()) bytePosition += channel.write(block, bytePosition);
+            offset += n;
+        }
+    }
+
+    /**
+     * Reads longs off a channel a block at a time, carrying over any partial long a read leaves behind.
+     */
+    private static class StreamSource implements LongSource {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer block;
+        private boolean endOfStream = false;
+
+        StreamSource(ReadableByteChannel channel, int blockBytes) {
+            this.channel = channel;
+            this.block = ByteBuffer.allocateDirect(blockBytes);
+            block.flip(); // starts out empty
+        }
+
+        @Override
+        public int read(long[] dst, int offset, int length) {
+            if (block.remaining() < Long.BYTES) fill();
+            int n = Math.min(length, block.remaining() / Long.BYTES);
+            block.asLongBuffer().get(dst, offset, n);
+            block.position(block.position() + n * Long.BYTES);
+            return n;
+        }
+
+        boolean isExhausted() {
+            if (block.remaining() < Long.BYTES) fill();
+            return block.remaining() < Long.BYTES;
+        }
+
+        private void fill() {
+            block.compact();
+            try {
+                while (!endOfStream && block.position() < Long.BYTES) {
+                    if (channel.read(block) < 0) endOfStream = true;
+                }
+                // keep reading while the channel has more to give right away, up to a full block
+                while (!endOfStream && block.hasRemaining()) {
+                    int n = channel.read(block);
+                    if (n < 0) endOfStream = true;
+                    if (n <= 0) break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                block.flip();
+            }
+            if (endOfStream && block.remaining() % Long.BYTES != 0) {
+                throw new RuntimeException("Abort: input stream ended " + block.remaining() % Long.BYTES + " bytes into a long");
+            }
+        }
+    }
+}
@@ -1,14 +1,29 @@
 package hw1;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
 class Utils {
     public static final int KB = (int) Math.pow(10, 3);
     public static final int MB = (int) Math.pow(10, 6);
@@ -22,80 +37,14 @@ class Utils {
     public static final int MAX_CHUNK_COUNT = MAX_MAP_COUNT / LOG_BASE_2_OF_64000; // 4000
     private static final Logger LOGGER = Logger.getLogger(Utils.class.getName());
 
-    /**
-     * This utility function gives an approximation for how much memory can safely be allocated
-     * toward holding chunks of input data on the heap before an OOM error occurs.
-     *
-     * @param fixedOverhead        a fixed amount of memory to reserve, in bytes
-     * @param dynamicOverhead      an amount of memory per concurrent chunk to reserve, in bytes
-     * @param concurrentChunkCount number of chunks expected to be held in memory at the same time
-     * @return the maximum amount of memory available, minus the calculated overhead
-     */
-    @SuppressWarnings("SameParameterValue")
-    static long getMaximumTotalChunkMemory(long fixedOverhead, long dynamicOverhead, long concurrentChunkCount) {
-        //  Maximum heap size: "Smaller of 1/4th of the physical memory or 1 GB"
-        //      src: https://docs.oracle.com/javase/8/docs/technotes/guides/vm/gc-ergonomics.html
-        //      this doesn't seem to have changed since then (as of september 2021)
-        //      for oracle java, but other implementations may vary.
-        long overhead = (dynamicOverhead * concurrentChunkCount) + fixedOverhead;
-        return Runtime.getRuntime().maxMemory() - overhead;
-    }
-
     static Class<? extends ChunkMerger> getChunkMergerClass(String className) throws ClassNotFoundException {
-        return (Class<? extends ChunkMerger>) Class.forName(className);
+        return Class.forName(className).asSubclass(ChunkMerger.class);
     }
 
-
-    /**
-     * implementation is basically a binary search for the minimum returnValue satisfying the
-     * conditions:
-     * (1) nThreads * (inputSize / returnValue) <= availableMemory
-     * (2) returnValue <= nThreads
-     * (3) no other (known) system resource (e.g., max memory map count) would be exhausted if
-     * (returnValue * log2 returnValue) of the resource is consumed
-     *
-     * @param nThreads        how many threads will concurrently hold a chunk in memory
-     * @param inputSize       the size (bytes) of the input file to be split into chunks
-     * @param availableMemory how much memory is available to each chunk
-     * @return the minimum number of chunks that the inputByteSize must be split into
-     */
-    public static int getChunkCount(int nThreads, long inputSize, long availableMemory) {
-        int lowerBound = nThreads;
-        int upperBound = MAX_CHUNK_COUNT;
-        if (lowerBound > upperBound)
-            throw new RuntimeException("Cannot allocate enough memory maps to support this request");
-
-        long memoryUsed;
-        int count = lowerBound;
-
-        while (lowerBound < upperBound) {
-            count = (upperBound + lowerBound) / 2;
-            memoryUsed = getMemoryUsed(nThreads, inputSize, count);
-
-            if (memoryUsed > availableMemory) {
-                // not enough mem, we need at least 1 more than current count
-                count += 1;
-                lowerBound = count;
-            } else {
-                // plenty of mem, we may (or may not) be able to use fewer chunks
-                upperBound = count;
-            }
-            LOGGER.finest("nThreads=%d inputSize=%d count=%d availableMemory=%d memoryUsed=%d upperBound=%d lowerBound=%d".formatted(
-                    nThreads, inputSize, count, availableMemory, memoryUsed, upperBound, lowerBound));
-        }
-        if (getMemoryUsed(nThreads, inputSize, count) > availableMemory) {
-            LOGGER.severe("nThreads=%d inputSize=%d count=%d availableMemory=%d".formatted(
-                    nThreads, inputSize, count, availableMemory));
-            throw new RuntimeException(
-                    "It's not possible to sort an input of size " + inputSize + "with only " + availableMemory);
-        }
-        return count;
+    static Class<? extends ChunkSorter> getChunkSorterClass(String className) throws ClassNotFoundException {
+        return Class.forName(className).asSubclass(ChunkSorter.class);
     }
 
-    private static long getMemoryUsed(int nThreads, long inputSize, int count) {
-        long chunkSize = (inputSize / count);
-        return chunkSize * nThreads;
-    }
 
     /**
      * Only use for test/validation (uses {@link Stream#parallel}, which is probably not allowed
@@ -136,6 +85,91 @@ class Utils {
         assert Files.isWritable(parent) : "parent directory of output path isn't writable";
     }
 
+    /**
+     * Scratch goes next to the output rather than in the system temp dir, so it's on the same file system and can be
+     * renamed into place instead of copied (see {@link #moveIntoPlace}).
+     */
+    static Path createScratchFile(Path outputPath) throws IOException {
+        return Files.createTempFile(outputPath.toAbsolutePath().getParent(), "external-sort-scratch-space", ".tmp");
+    }
+
+    /**
+     * Sets the file's length up front, so it isn't grown a block at a time by concurrent positional writes. Java has no
+     * portable fallocate, so on most file systems this reserves the size, not the blocks (i.e. the file is sparse).
+     */
+    static void preallocate(Path path, long size) throws IOException {
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) file.setLength(size);
+        }
+    }
+
+    /**
+     * {@link FileChannel#map}, counted in the sort's metrics (see {@link Metrics#maps}).
+     *
+     * @param metrics the sort's, or null if nobody's counting
+     */
+    static MappedByteBuffer map(Metrics metrics, FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+        if (metrics != null) metrics.maps.increment();
+        return channel.map(mode, position, size);
+    }
+
+    /**
+     * Replaces target with source, atomically if the file system allows it.
+     */
+    static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warning("can't rename atomically, moving the old fashioned way: " + e.getMessage());
+            Files.move(source, target, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * {@link #invokeAll(int, int, List, String)} with the default stall timeout, for tools that don't take
+     * {@link SortOptions}.
+     */
+    static <T> List<T> invokeAll(int nThreads, List<? extends Callable<T>> tasks, String name) throws InterruptedException, ExecutionException {
+        return invokeAll(nThreads, Watchdog.DEFAULT_STALL_SECONDS, tasks, name);
+    }
+
+    /**
+     * Runs tasks on a fresh fixed thread pool, waits for all of them, and rethrows the first exception any of them threw.
+     *
+     * @param nThreads     pool size
+     * @param stallSeconds how long the tasks can go without progress before giving up on them (see {@link Watchdog})
+     * @param tasks        tasks to run
+     * @param name         what to call the pool in errors
+     * @return the tasks' results, in the same order as the tasks
+     */
+    static <T> List<T> invokeAll(int nThreads, int stallSeconds, List<? extends Callable<T>> tasks, String name) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        var watchdog = new Watchdog(name, stallSeconds);
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (var task : tasks) {
+            futures.add(executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    watchdog.tick();
+                }
+            }));
+        }
+        executor.shutdown();  //tell the pool we're done giving it work
+        List<T> results = new ArrayList<>(futures.size());
+        ExecutionException failure = null;
+        for (var future : futures) {
+            // wait for every task, even after one failed, so none is still running when the caller cleans up
+            try {
+                results.add(watchdog.await(future));
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure; // propagate exceptions from child threads
+        return results;
+    }
+
     public static class ChunkHeadComparator implements Comparator<LongBuffer> {
         /**
          * @param x a chunk to compare
@@ -0,0 +1,72 @@
+package hw1;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Waits on tasks for as long as they're getting somewhere, instead of for a fixed time that a big enough input would
+ * outlast.
+ * <p>
+ * Progress is a task finishing (see {@link #tick()}) or the process burning CPU, which merging and sorting do plenty
+ * of even when waiting on I/O (page faults, copies). A task that's deadlocked, or stuck on a dead disk, does neither,
+ * and gets given up on after {@link SortOptions#stallSeconds} of that.
+ */
+class Watchdog {
+    static final int DEFAULT_STALL_SECONDS = 60;
+    // how often to check on progress
+    static final int CHECK_SECONDS = 5;
+    // less CPU than this (of one core) between checks doesn't count, an idle JVM still uses a little
+    static final double MIN_CPU_FRACTION = 0.01;
+    private static final Logger LOGGER = Logger.getLogger(Watchdog.class.getName());
+    private final String name;
+    private final long stallNanos;
+    private final LongAdder ticks = new LongAdder();
+
+    /**
+     * @param name         what's being waited on, for the error message
+     * @param stallSeconds how long without progress before giving up
+     */
+    Watchdog(String name, int stallSeconds) {
+        if (stallSeconds < 1) throw new IllegalArgumentException("stall timeout must be at least a second, not " + stallSeconds);
+        this.name = name;
+        this.stallNanos = TimeUnit.SECONDS.toNanos(stallSeconds);
+    }
+
+    /**
+     * Counts as progress, e.g. whenever a task finishes.
+     */
+    void tick() {
+        ticks.increment();
+    }
+
+    /**
+     * @return the future's result, once it has one
+     * @throws RuntimeException if nothing got done for too long (the future is cancelled)
+     */
+    <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        long lastTicks = ticks.sum();
+        long lastCpu = Metrics.getProcessCpuTime();
+        long lastProgress = System.nanoTime();
+        while (true) {
+            try {
+                return future.get(CHECK_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                long now = System.nanoTime();
+                long currentTicks = ticks.sum();
+                long cpu = Metrics.getProcessCpuTime();
+                boolean busy = lastCpu >= 0 && cpu - lastCpu > MIN_CPU_FRACTION * TimeUnit.SECONDS.toNanos(CHECK_SECONDS);
+                if (currentTicks != lastTicks || busy) lastProgress = now;
+                else if (now - lastProgress > stallNanos) {
+                    future.cancel(true);
+                    throw new RuntimeException("Abort: " + name + " made no progress for " + TimeUnit.NANOSECONDS.toSeconds(now - lastProgress) + "s");
+                } else LOGGER.warning("is this thing on? (" + name + " hasn't made progress for " + TimeUnit.NANOSECONDS.toSeconds(now - lastProgress) + "s)");
+                lastTicks = currentTicks;
+                lastCpu = cpu;
+            }
+        }
+    }
+}
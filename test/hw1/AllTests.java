@@ -0,0 +1,25 @@
+package hw1;
+
+/**
+ * Runs every test class (see {@link Tests}), stopping at the first failure.
+ */
+class AllTests {
+    public static void main(String[] args) throws Exception {
+        BlockIOTest.main(args);
+        CheckpointTest.main(args);
+        DistributionSorterTest.main(args);
+        HybridChunkMergerTest.main(args);
+        LongBufferSortTest.main(args);
+        LongSelectorTest.main(args);
+        MergePartitionerTest.main(args);
+        PackedRunTest.main(args);
+        ParallelExternalLongSorterTest.main(args);
+        RadixChunkSorterTest.main(args);
+        RecordSorterTest.main(args);
+        ReplacementSelectionTest.main(args);
+        RunDetectorTest.main(args);
+        SortCoordinatorTest.main(args);
+        StreamingLongSorterTest.main(args);
+        System.out.println("all tests passed");
+    }
+}
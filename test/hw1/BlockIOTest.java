@@ -0,0 +1,168 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static hw1.Tests.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Read-ahead and write-behind (see {@link BlockIO} and {@link PipelinedChunkSorter}): ranges read back exactly
+ * whatever the block size and depth, partial blocks get written, and a sort that fails part way still finishes the
+ * I/O it started.
+ */
+class BlockIOTest {
+    public static void main(String[] args) throws Exception {
+        run("BlockIO: ranges read back", BlockIOTest::rangesReadBack);
+        run("BlockIO: writes land where they start", BlockIOTest::writesLandWhereTheyStart);
+        run("BlockIO: a reader closed early", BlockIOTest::readerClosedEarly);
+        run("PipelinedChunkSorter: sorts every split", BlockIOTest::pipelineSortsEverySplit);
+        run("PipelinedChunkSorter: a failed sort finishes its I/O", BlockIOTest::failedSortFinishesItsIO);
+    }
+
+    static void rangesReadBack() throws Exception {
+        long[] values = random(10_000, 80);
+        Path path = writeLongs(tempDir().resolve("input.bin"), values);
+        try (FileChannel channel = FileChannel.open(path, Set.of(READ))) {
+            for (int depth : new int[]{1, 2, 3}) {
+                // blocks that don't divide the range, and one bigger than it
+                for (int blockBytes : new int[]{8, 24, 4096, 1 << 20}) {
+                    try (var io = new BlockIO(blockBytes, depth, 1)) {
+                        checkEquals(values, read(io.reader(channel, 0, values.length * Long.BYTES), values.length), "whole file, depth " + depth + ", blocks of " + blockBytes);
+                        long[] range = read(io.reader(channel, 17 * Long.BYTES, 5000 * Long.BYTES), 5000);
+                        checkEquals(Arrays.copyOfRange(values, 17, 5017), range, "a range, depth " + depth + ", blocks of " + blockBytes);
+                        check(io.reader(channel, 64, 0).read(new long[1], 0, 1) == 0, "expected an empty range to read nothing");
+                    }
+                }
+            }
+        }
+    }
+
+    static void writesLandWhereTheyStart() throws Exception {
+        long[] values = random(3001, 81);
+        Path path = writeLongs(tempDir().resolve("output.bin"), new long[4000]);
+        try (
+                var io = new BlockIO(4096, 2, 2);
+                FileChannel channel = FileChannel.open(path, Set.of(READ, WRITE))
+        ) {
+            var writer = io.writer(channel, 500 * Long.BYTES);
+            // odd sized writes, and a last block that's only partly full
+            for (int offset = 0; offset < values.length; offset += 123) writer.write(values, offset, Math.min(123, values.length - offset));
+            writer.close();
+        }
+        long[] expected = new long[4000];
+        System.arraycopy(values, 0, expected, 500, values.length);
+        checkEquals(expected, readLongs(path), "written from 500 on");
+    }
+
+    static void readerClosedEarly() throws Exception {
+        long[] values = random(100_000, 82);
+        Path path = writeLongs(tempDir().resolve("input.bin"), values);
+        try (
+                var io = new BlockIO(4096, 3, 1);
+                FileChannel channel = FileChannel.open(path, Set.of(READ))
+        ) {
+            var reader = io.reader(channel, 0, values.length * Long.BYTES);
+            long[] some = new long[10];
+            reader.read(some, 0, some.length);
+            reader.close();
+            check(reader.read(some, 0, some.length) == 0, "expected a closed reader to have nothing left");
+            // the I/O thread isn't stuck on it either
+            checkEquals(Arrays.copyOf(values, 100), read(io.reader(channel, 0, 100 * Long.BYTES), 100), "a reader after the closed one");
+        }
+    }
+
+    static void pipelineSortsEverySplit() throws Exception {
+        long[] values = random(50_000, 83);
+        var splits = List.of(Split.createSplits(values.length * (long) Long.BYTES, 5));
+        for (boolean pack : new boolean[]{false, true}) {
+            var dir = tempDir();
+            Path input = writeLongs(dir.resolve("input.bin"), values);
+            Path output = writeLongs(dir.resolve("output.bin"), new long[values.length]);
+            try (
+                    var io = new BlockIO(4096, 2, 1);
+                    FileChannel inputFileChannel = FileChannel.open(input, Set.of(READ));
+                    FileChannel outputFileChannel = FileChannel.open(output, Set.of(READ, WRITE))
+            ) {
+                var kernel = ChunkSorter.create(MappedChunkSorter.class, null, null, null, null);
+                new PipelinedChunkSorter(io, inputFileChannel, new FileChannel[]{outputFileChannel}, splits, kernel, pack).call();
+                for (var split : splits) {
+                    long[] expected = sorted(Arrays.copyOfRange(values, (int) split.index, (int) (split.index + split.length)));
+                    long[] run;
+                    if (pack) {
+                        var reader = new PackedRun.Reader(io, outputFileChannel, split.frames, 0, split.length, 4096);
+                        run = new long[(int) split.length];
+                        for (int n = 0; n < run.length; ) n += reader.read(run, n, run.length - n);
+                    } else {
+                        run = Arrays.copyOfRange(readLongs(output), (int) split.index, (int) (split.index + split.length));
+                    }
+                    checkEquals(expected, run, (pack ? "packed " : "") + split);
+                }
+            }
+        }
+    }
+
+    static void failedSortFinishesItsIO() throws Exception {
+        long[] values = random(30_000, 84);
+        var splits = List.of(Split.createSplits(values.length * (long) Long.BYTES, 3));
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), values);
+        Path output = writeLongs(dir.resolve("output.bin"), new long[values.length]);
+        // blocks bigger than a run, so a run only gets written once its writer is closed
+        try (
+                var io = new BlockIO(1 << 20, 2, 1);
+                FileChannel inputFileChannel = FileChannel.open(input, Set.of(READ));
+                FileChannel outputFileChannel = FileChannel.open(output, Set.of(READ, WRITE))
+        ) {
+            var kernel = new FailingChunkSorter(1);
+            try {
+                new PipelinedChunkSorter(io, inputFileChannel, new FileChannel[]{outputFileChannel}, splits, kernel, false).call();
+                throw new AssertionError("expected the second sort to fail");
+            } catch (IllegalStateException expected) {
+                // the first run was sorted and written before the second one failed
+            }
+        }
+        long[] expected = new long[values.length];
+        var first = splits.get(0);
+        System.arraycopy(sorted(Arrays.copyOf(values, (int) first.length)), 0, expected, 0, (int) first.length);
+        checkEquals(expected, readLongs(output), "the first run (and nothing else)");
+    }
+
+    /**
+     * Sorts like {@link ChunkSorter} does, until the given call.
+     */
+    private static class FailingChunkSorter extends ChunkSorter {
+        private int callsLeft;
+
+        FailingChunkSorter(int successfulCalls) {
+            super(null, null, null);
+            this.callsLeft = successfulCalls;
+        }
+
+        @Override
+        void sort(LongBuffer input, LongBuffer output) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        long[] sort(long[] values) {
+            if (callsLeft-- == 0) throw new IllegalStateException("out of sorts");
+            return super.sort(values);
+        }
+    }
+
+    private static long[] read(LongSource source, int length) {
+        long[] values = new long[length];
+        for (int n = 0; n < length; ) {
+            int read = source.read(values, n, length - n);
+            check(read > 0, "expected " + length + " values, ran out after " + n);
+            n += read;
+        }
+        check(source.read(new long[1], 0, 1) == 0, "expected nothing past " + length + " values");
+        return values;
+    }
+}
@@ -0,0 +1,198 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static hw1.Tests.*;
+
+/**
+ * Job manifests (see {@link Checkpoint}): what a finished round records reads back, bad rounds and stale manifests are
+ * refused, and a sort picks up from the last finished round (or starts over when there isn't one).
+ */
+class CheckpointTest {
+    private static final int THREADS = 2;
+    private static final int STALL_SECONDS = Watchdog.DEFAULT_STALL_SECONDS;
+
+    public static void main(String[] args) throws Exception {
+        run("Checkpoint: finished rounds read back", CheckpointTest::finishedRoundsReadBack);
+        run("Checkpoint: unsorted runs are refused", CheckpointTest::unsortedRunsAreRefused);
+        run("Checkpoint: corrupted merges are refused", CheckpointTest::corruptedMergesAreRefused);
+        run("Checkpoint: other sorts' manifests are refused", CheckpointTest::otherSortsManifestsAreRefused);
+        run("Checkpoint: a checkpointed sort cleans up", CheckpointTest::checkpointedSortCleansUp);
+        run("Checkpoint: a sort resumes after the runs", CheckpointTest::sortResumesAfterTheRuns);
+        run("Checkpoint: a resume checks the runs first", CheckpointTest::resumeChecksTheRuns);
+        run("Checkpoint: no finished round starts over", CheckpointTest::noFinishedRoundStartsOver);
+    }
+
+    /**
+     * A sort that died right after sorting its runs into scratch (and checkpointing them).
+     */
+    private static class Job {
+        final long[] values;
+        final Path inputPath;
+        final Path outputPath;
+        final Path checkpointPath;
+        final ScratchSpace scratch;
+        final List<Split> runs;
+        final Checkpoint checkpoint;
+
+        Job(int length, int runCount, long seed) throws Exception {
+            var dir = tempDir();
+            values = random(length, seed);
+            inputPath = writeLongs(dir.resolve("input.bin"), values);
+            outputPath = dir.resolve("output.bin");
+            checkpointPath = dir.resolve("sort.checkpoint");
+            scratch = ScratchSpace.create(List.of(), outputPath);
+            runs = List.of(Split.createSplits(Files.size(inputPath), runCount));
+            long[] sortedRuns = values.clone();
+            for (var run : runs) Arrays.sort(sortedRuns, (int) run.index, (int) (run.index + run.length));
+            writeLongs(scratch.primary(), sortedRuns);
+            checkpoint = Checkpoint.create(checkpointPath, inputPath, Files.size(inputPath), outputPath, scratch, "test plan");
+            try (var channels = scratch.open(null)) {
+                checkpoint.finishRound(0, runs, channels, THREADS, STALL_SECONDS);
+            }
+        }
+
+        void sort() throws Exception {
+            new ParallelExternalLongSorter(inputPath, outputPath, options(checkpointPath)).sort();
+        }
+
+        void checkDone() throws IOException {
+            checkEquals(sorted(values), readLongs(outputPath), "resumed sort's output");
+            check(!Files.exists(checkpointPath), "expected the manifest to be gone once the sort is done");
+            check(!Files.exists(scratch.primary()), "expected the scratch file to be gone once the sort is done");
+        }
+    }
+
+    static void finishedRoundsReadBack() throws Exception {
+        var job = new Job(10_000, 4, 20);
+        var loaded = Checkpoint.load(job.checkpointPath);
+        check(loaded.getRound() == 0 && loaded.hasFinishedRound(), "expected round 0 to be finished, found " + loaded);
+        check(loaded.getScratchFiles().equals(List.of(job.scratch.primary())), "expected the scratch file, found " + loaded.getScratchFiles());
+        var runs = loaded.getRuns();
+        check(runs.size() == job.runs.size(), "expected " + job.runs.size() + " runs, found " + runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            check(runs.get(i).index == job.runs.get(i).index && runs.get(i).length == job.runs.get(i).length, "expected " + job.runs.get(i) + ", found " + runs.get(i));
+        }
+        loaded.validate(job.inputPath, Files.size(job.inputPath), job.outputPath);
+        try (var channels = job.scratch.open(null)) {
+            loaded.verifyRuns(channels, THREADS, STALL_SECONDS);
+        }
+        job.scratch.close();
+    }
+
+    static void unsortedRunsAreRefused() throws Exception {
+        var job = new Job(10_000, 4, 21);
+        var unsorted = List.of(new Split(0, 10_000)); // the runs side by side aren't sorted as a whole
+        try (var channels = job.scratch.open(null)) {
+            checkAborts(() -> job.checkpoint.finishRound(1, unsorted, channels, THREADS, STALL_SECONDS), "unsorted");
+        }
+        check(Checkpoint.load(job.checkpointPath).getRound() == 0, "expected the refused round not to be recorded");
+        job.scratch.close();
+    }
+
+    static void corruptedMergesAreRefused() throws Exception {
+        var job = new Job(10_000, 4, 22);
+        long[] merged = sorted(job.values);
+        var mergedRun = new Split(0, merged.length);
+        mergedRun.device = job.scratch.outputDevice();
+        // sorted, but one value was lost (and another one doubled up) along the way
+        long[] lossy = merged.clone();
+        lossy[5000] = lossy[5001];
+        writeLongs(job.outputPath, lossy);
+        try (var channels = job.scratch.open(job.outputPath)) {
+            checkAborts(() -> job.checkpoint.finishRound(1, List.of(mergedRun), channels, THREADS, STALL_SECONDS), "corrupted");
+        }
+        writeLongs(job.outputPath, merged);
+        try (var channels = job.scratch.open(job.outputPath)) {
+            job.checkpoint.finishRound(1, List.of(mergedRun), channels, THREADS, STALL_SECONDS);
+        }
+        var loaded = Checkpoint.load(job.checkpointPath);
+        check(loaded.getRound() == 1 && loaded.getRuns().size() == 1, "expected round 1 to leave one run, found " + loaded);
+        job.scratch.close();
+    }
+
+    static void otherSortsManifestsAreRefused() throws Exception {
+        var job = new Job(1000, 2, 23);
+        var loaded = Checkpoint.load(job.checkpointPath);
+        checkAborts(() -> loaded.validate(job.inputPath, Files.size(job.inputPath) - Long.BYTES, job.outputPath), "inputSize");
+        checkAborts(() -> loaded.validate(job.inputPath, Files.size(job.inputPath), job.outputPath.resolveSibling("other.bin")), "output");
+        // the input changed since (its modification time did, anyway)
+        Files.setLastModifiedTime(job.inputPath, FileTime.fromMillis(0));
+        checkAborts(() -> loaded.validate(job.inputPath, Files.size(job.inputPath), job.outputPath), "inputModified");
+        job.scratch.close();
+    }
+
+    static void checkpointedSortCleansUp() throws Exception {
+        var dir = tempDir();
+        long[] values = random(200_000, 24);
+        Path inputPath = writeLongs(dir.resolve("input.bin"), values);
+        Path outputPath = dir.resolve("output.bin");
+        Path checkpointPath = dir.resolve("sort.checkpoint");
+        new ParallelExternalLongSorter(inputPath, outputPath, options(checkpointPath)).sort();
+        checkEquals(sorted(values), readLongs(outputPath), "checkpointed sort's output");
+        check(!Files.exists(checkpointPath), "expected the manifest to be gone once the sort is done");
+        try (var files = Files.list(dir)) {
+            check(files.count() == 2, "expected only the input and output to be left");
+        }
+    }
+
+    static void sortResumesAfterTheRuns() throws Exception {
+        var job = new Job(100_000, 8, 25);
+        job.sort();
+        job.checkDone();
+    }
+
+    static void resumeChecksTheRuns() throws Exception {
+        var job = new Job(100_000, 8, 26);
+        // still sorted, but not what was checkpointed
+        long[] scratch = readLongs(job.scratch.primary());
+        scratch[(int) job.runs.get(3).index] = Long.MIN_VALUE;
+        writeLongs(job.scratch.primary(), scratch);
+        checkAborts(job::sort, "doesn't match");
+        check(Files.exists(job.checkpointPath), "expected the manifest to be kept when the resume fails");
+        job.scratch.close();
+    }
+
+    static void noFinishedRoundStartsOver() throws Exception {
+        var dir = tempDir();
+        long[] values = random(100_000, 27);
+        Path inputPath = writeLongs(dir.resolve("input.bin"), values);
+        Path outputPath = dir.resolve("output.bin");
+        Path checkpointPath = dir.resolve("sort.checkpoint");
+        // died before sorting its runs, leaving its scratch and half an output behind
+        var scratch = ScratchSpace.create(List.of(), outputPath);
+        Checkpoint.create(checkpointPath, inputPath, Files.size(inputPath), outputPath, scratch, "test plan");
+        writeLongs(outputPath, random(1000, 28));
+        new ParallelExternalLongSorter(inputPath, outputPath, options(checkpointPath)).sort();
+        checkEquals(sorted(values), readLongs(outputPath), "restarted sort's output");
+        check(!Files.exists(scratch.primary()), "expected the abandoned scratch file to be deleted");
+        check(!Files.exists(checkpointPath), "expected the manifest to be gone once the sort is done");
+    }
+
+    private static SortOptions options(Path checkpointPath) {
+        var options = new SortOptions();
+        options.nThreads = THREADS;
+        options.inMemory = false;
+        options.detectRuns = false;
+        options.runBytes = 64 * 1024;
+        options.fanIn = 2;
+        options.checkpointPath = checkpointPath;
+        return options;
+    }
+
+    private static void checkAborts(Test test, String reason) throws Exception {
+        try {
+            test.run();
+        } catch (RuntimeException e) {
+            check(e.getMessage() != null && e.getMessage().startsWith("Abort") && e.getMessage().contains(reason),
+                    "expected an abort because of " + reason + ", found " + e);
+            return;
+        }
+        throw new AssertionError("expected an abort because of " + reason);
+    }
+}
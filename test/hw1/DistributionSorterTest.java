@@ -0,0 +1,68 @@
+package hw1;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * Sample sort (see {@link DistributionSorter}): splitters put every key in the right bucket, buckets land back to back
+ * and sorted, and a sample that leaves a bucket too big to sort backs out without writing anything.
+ */
+class DistributionSorterTest {
+    public static void main(String[] args) throws Exception {
+        run("DistributionSorter: buckets of keys", DistributionSorterTest::bucketsOfKeys);
+        run("DistributionSorter: sorts random input", DistributionSorterTest::sortsRandomInput);
+        run("DistributionSorter: sorts duplicate heavy input", DistributionSorterTest::sortsDuplicateHeavyInput);
+        run("DistributionSorter: a bucket too big backs out", DistributionSorterTest::bucketTooBigBacksOut);
+    }
+
+    static void bucketsOfKeys() {
+        long[] splitters = {-10, 0, 0, 10};
+        check(DistributionSorter.bucketOf(splitters, Long.MIN_VALUE) == 0, "expected the smallest key in the first bucket");
+        check(DistributionSorter.bucketOf(splitters, -10) == 1, "expected a splitter to start its bucket");
+        check(DistributionSorter.bucketOf(splitters, -1) == 1, "expected -1 in bucket 1");
+        // a repeated splitter leaves an empty bucket behind it
+        check(DistributionSorter.bucketOf(splitters, 0) == 3, "expected 0 past both of its splitters");
+        check(DistributionSorter.bucketOf(splitters, Long.MAX_VALUE) == 4, "expected the largest key in the last bucket");
+        check(DistributionSorter.bucketOf(new long[0], 5) == 0, "expected one bucket without splitters");
+    }
+
+    static void sortsRandomInput() throws Exception {
+        long[] values = random(200_000, 60);
+        checkEquals(sorted(values), sort(values, 8, values.length), "random input");
+    }
+
+    static void sortsDuplicateHeavyInput() throws Exception {
+        // the samples (and so the splitters) are mostly the same few values, leaving plenty of empty buckets
+        var random = new Random(61);
+        long[] values = new long[200_000];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextInt(5) - 2;
+        checkEquals(sorted(values), sort(values, 8, values.length), "few distinct values");
+        long[] allEqual = new long[10_000];
+        Arrays.fill(allEqual, 99);
+        checkEquals(allEqual, sort(allEqual, 4, allEqual.length), "one value");
+    }
+
+    static void bucketTooBigBacksOut() throws Exception {
+        long[] values = new long[10_000];
+        Arrays.fill(values, 7);
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), values);
+        Path output = dir.resolve("output.bin");
+        boolean sorted = new DistributionSorter(input, output, Files.size(input), 2, Watchdog.DEFAULT_STALL_SECONDS, 4, 1000, MappedChunkSorter.class, null).sort();
+        check(!sorted, "expected a bucket of 10000 to be too big for a limit of 1000");
+        check(!Files.exists(output) || Files.size(output) == 0, "expected nothing to be written");
+    }
+
+    private static long[] sort(long[] values, int chunkCount, long maxBucketLength) throws Exception {
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), values);
+        Path output = dir.resolve("output.bin");
+        boolean sorted = new DistributionSorter(input, output, Files.size(input), 3, Watchdog.DEFAULT_STALL_SECONDS, chunkCount, maxBucketLength, MappedChunkSorter.class, null).sort();
+        check(sorted, "expected every bucket to fit");
+        return readLongs(output);
+    }
+}
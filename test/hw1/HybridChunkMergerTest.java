@@ -0,0 +1,137 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * The loser tree and the merger built on it (see {@link LongLoserTree} and {@link HybridChunkMerger}): winners come out
+ * in order whatever the number of sources, and runs that are empty or run dry early drop out without a trace.
+ */
+class HybridChunkMergerTest {
+    public static void main(String[] args) throws Exception {
+        run("LongLoserTree: winners come out in order", HybridChunkMergerTest::winnersComeOutInOrder);
+        run("LongLoserTree: exhausted sources lose every match", HybridChunkMergerTest::exhaustedSourcesLose);
+        run("LongLoserTree: rebuilding starts a new tournament", HybridChunkMergerTest::rebuildingStartsOver);
+        run("HybridChunkMerger: runs of every length merge", HybridChunkMergerTest::runsOfEveryLengthMerge);
+        run("HybridChunkMerger: empty runs are skipped", HybridChunkMergerTest::emptyRunsAreSkipped);
+        run("HybridChunkMerger: runs that run dry early", HybridChunkMergerTest::runsThatRunDryEarly);
+        run("HybridChunkMerger: sources and sinks", HybridChunkMergerTest::sourcesAndSinks);
+    }
+
+    static void winnersComeOutInOrder() {
+        // odd sizes too, the leaves aren't padded to a power of two
+        for (int k = 1; k <= 9; k++) {
+            long[][] runs = runs(k, 50, k);
+            checkEquals(sorted(concat(runs)), drain(runs), k + " sources");
+        }
+    }
+
+    static void exhaustedSourcesLose() {
+        // extremes and ties against each other, with a source that has nothing from the start
+        long[][] runs = {{Long.MIN_VALUE, 0, Long.MAX_VALUE}, {}, {Long.MAX_VALUE, Long.MAX_VALUE}, {Long.MIN_VALUE}, {}};
+        checkEquals(sorted(concat(runs)), drain(runs), "extremes and empty sources");
+        long[][] allEmpty = {{}, {}, {}};
+        var tree = new LongLoserTree(allEmpty.length);
+        for (int i = 0; i < allEmpty.length; i++) tree.exhaust(i);
+        tree.build();
+        check(tree.isExhausted(tree.winner()), "expected the winner of nothing to be exhausted");
+    }
+
+    static void rebuildingStartsOver() {
+        var tree = new LongLoserTree(4);
+        for (int i = 0; i < 4; i++) tree.set(i, 10 - i);
+        tree.build();
+        check(tree.winner() == 3 && tree.winnerKey() == 7, "expected source 3 to win with 7, found " + tree.winner());
+        tree.exhaustWinner();
+        tree.exhaustWinner();
+        // the same tree, new keys: nothing left over from the last tournament
+        for (int i = 0; i < 4; i++) tree.set(i, i);
+        tree.build();
+        check(tree.winner() == 0 && tree.winnerKey() == 0, "expected source 0 to win with 0, found " + tree.winner());
+    }
+
+    static void runsOfEveryLengthMerge() {
+        var random = new Random(3);
+        for (int k : new int[]{1, 2, 3, 16, 100}) {
+            long[][] runs = new long[k][];
+            for (int i = 0; i < k; i++) runs[i] = sorted(random(random.nextInt(2000), k * 1000L + i));
+            // chonks smaller than the runs, so they're refilled over and over
+            for (int chonkLength : new int[]{1, 7, HybridChunkMerger.CHONK_LENGTH}) {
+                checkEquals(sorted(concat(runs)), merge(runs, chonkLength), k + " runs, chonks of " + chonkLength);
+            }
+        }
+    }
+
+    static void emptyRunsAreSkipped() {
+        long[][] runs = {{}, sorted(random(1000, 4)), {}, {}, sorted(random(10, 5)), {}};
+        checkEquals(sorted(concat(runs)), merge(runs, 16), "empty runs in between");
+        checkEquals(new long[0], merge(new long[][]{{}, {}}, 16), "only empty runs");
+        long[] only = sorted(random(100, 6));
+        checkEquals(only, merge(new long[][]{{}, only, {}}, 16), "one run among empty ones");
+    }
+
+    static void runsThatRunDryEarly() {
+        // every run but the last is done long before it, which gets drained in bulk once it's on its own
+        long[][] runs = {{1, 2, 3}, {-5, 0}, new long[5000]};
+        for (int i = 0; i < runs[2].length; i++) runs[2][i] = i - 10;
+        checkEquals(sorted(concat(runs)), merge(runs, 4), "runs of very different lengths");
+        long[] value = new long[1000];
+        Arrays.fill(value, 42);
+        long[][] ties = {value, value.clone(), {42}, {41, 42, 43}};
+        checkEquals(sorted(concat(ties)), merge(ties, 8), "one value over and over");
+    }
+
+    static void sourcesAndSinks() {
+        long[][] runs = runs(5, 3000, 7);
+        var sources = new LongSource[runs.length];
+        for (int i = 0; i < runs.length; i++) sources[i] = LongSource.of(LongBuffer.wrap(runs[i]));
+        var output = LongBuffer.allocate(concat(runs).length);
+        new HybridChunkMerger(sources, LongSink.of(output), 64).call();
+        checkEquals(sorted(concat(runs)), output.array(), "merged through sources and sinks");
+    }
+
+    /**
+     * Takes every key out of a loser tree, one winner at a time.
+     */
+    private static long[] drain(long[][] runs) {
+        var tree = new LongLoserTree(runs.length);
+        int[] positions = new int[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            if (runs[i].length > 0) tree.set(i, runs[i][0]);
+            else tree.exhaust(i);
+        }
+        tree.build();
+        long[] merged = new long[concat(runs).length];
+        for (int n = 0; n < merged.length; n++) {
+            int winner = tree.winner();
+            check(!tree.isExhausted(winner), "expected a live winner with " + (merged.length - n) + " keys left");
+            merged[n] = tree.winnerKey();
+            if (++positions[winner] < runs[winner].length) tree.replay(runs[winner][positions[winner]]);
+            else tree.exhaustWinner();
+        }
+        check(tree.isExhausted(tree.winner()), "expected every source to be exhausted at the end");
+        return merged;
+    }
+
+    private static long[] merge(long[][] runs, int chonkLength) {
+        var chunks = new LongBuffer[runs.length];
+        for (int i = 0; i < runs.length; i++) chunks[i] = LongBuffer.wrap(runs[i]);
+        var output = LongBuffer.allocate(concat(runs).length);
+        new HybridChunkMerger(chunks, output, chonkLength).call();
+        check(output.position() == output.limit(), "expected the output to be full, it's at " + output.position() + " of " + output.limit());
+        return output.array();
+    }
+
+    private static long[][] runs(int k, int length, long seed) {
+        long[][] runs = new long[k][];
+        for (int i = 0; i < k; i++) runs[i] = sorted(random(length, seed * 100 + i));
+        return runs;
+    }
+
+    private static long[] concat(long[][] runs) {
+        return Arrays.stream(runs).flatMapToLong(Arrays::stream).toArray();
+    }
+}
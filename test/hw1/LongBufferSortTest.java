@@ -0,0 +1,99 @@
+package hw1;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import static hw1.Tests.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sorting in place through a buffer (see {@link LongBufferSort} and {@link MappedChunkSorter}): every length around
+ * the insertion sort and ninther cutoffs, the patterns that hurt quicksorts, and only the range it was asked to sort.
+ */
+class LongBufferSortTest {
+    public static void main(String[] args) throws Exception {
+        run("LongBufferSort: lengths around the cutoffs", LongBufferSortTest::lengthsAroundTheCutoffs);
+        run("LongBufferSort: patterns that hurt quicksort", LongBufferSortTest::patternsThatHurtQuicksort);
+        run("LongBufferSort: only the given range", LongBufferSortTest::onlyTheGivenRange);
+        run("LongBufferSort: direct buffers of either byte order", LongBufferSortTest::directBuffers);
+        run("MappedChunkSorter: sorts a split where it lies", LongBufferSortTest::mappedChunkSorter);
+    }
+
+    static void lengthsAroundTheCutoffs() {
+        for (int length : new int[]{0, 1, 2, 3, 31, 32, 33, 34, 127, 128, 129, 130, 1000}) {
+            checkSorts(random(length, length), "random, length " + length);
+        }
+    }
+
+    static void patternsThatHurtQuicksort() {
+        int n = 100_000;
+        var random = new Random(40);
+        long[] ascending = new long[n], descending = new long[n], organPipe = new long[n], sawtooth = new long[n], fewDistinct = new long[n], allEqual = new long[n];
+        for (int i = 0; i < n; i++) {
+            ascending[i] = i;
+            descending[i] = n - i;
+            organPipe[i] = Math.min(i, n - i);
+            sawtooth[i] = i % 1000;
+            fewDistinct[i] = random.nextInt(3);
+            allEqual[i] = -1;
+        }
+        checkSorts(ascending, "ascending");
+        checkSorts(descending, "descending");
+        checkSorts(organPipe, "organ pipe");
+        checkSorts(sawtooth, "sawtooth");
+        checkSorts(fewDistinct, "few distinct");
+        checkSorts(allEqual, "all equal");
+        checkSorts(new long[]{Long.MAX_VALUE, Long.MIN_VALUE, 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE}, "extremes");
+    }
+
+    static void onlyTheGivenRange() {
+        long[] values = random(5000, 41);
+        var buffer = LongBuffer.wrap(values.clone());
+        LongBufferSort.sort(buffer, 1000, 4000);
+        long[] expected = values.clone();
+        Arrays.sort(expected, 1000, 4000);
+        checkEquals(expected, buffer.array(), "sorting [1000, 4000)");
+        check(buffer.position() == 0, "expected the buffer's position to be left alone");
+    }
+
+    static void directBuffers() {
+        long[] values = random(50_000, 42);
+        for (var order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            var buffer = ByteBuffer.allocateDirect(values.length * Long.BYTES).order(order).asLongBuffer();
+            buffer.put(values).flip();
+            LongBufferSort.sort(buffer);
+            long[] sorted = new long[values.length];
+            buffer.get(sorted);
+            checkEquals(sorted(values), sorted, order + " direct buffer");
+        }
+    }
+
+    static void mappedChunkSorter() throws Exception {
+        long[] values = random(30_000, 43);
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), values);
+        Path output = writeLongs(dir.resolve("output.bin"), new long[values.length]);
+        var split = new Split(10_000, 15_000);
+        try (
+                FileChannel inputFileChannel = FileChannel.open(input, Set.of(READ));
+                FileChannel outputFileChannel = FileChannel.open(output, Set.of(READ, WRITE))
+        ) {
+            ChunkSorter.create(MappedChunkSorter.class, inputFileChannel, outputFileChannel, split, null).call();
+        }
+        long[] expected = new long[values.length];
+        System.arraycopy(sorted(Arrays.copyOfRange(values, 10_000, 25_000)), 0, expected, 10_000, 15_000);
+        checkEquals(expected, readLongs(output), "split [10000, 25000) of the output");
+    }
+
+    private static void checkSorts(long[] values, String message) {
+        var buffer = LongBuffer.wrap(values.clone());
+        LongBufferSort.sort(buffer);
+        checkEquals(sorted(values), buffer.array(), message);
+    }
+}
@@ -0,0 +1,92 @@
+package hw1;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static hw1.Tests.*;
+
+/**
+ * Selection without sorting (see {@link LongSelector}), checked against sorting: the k smallest and largest, nearest
+ * rank percentiles, and the edge cases that trip up radix select (one value over and over, the extremes of long).
+ */
+class LongSelectorTest {
+    public static void main(String[] args) throws Exception {
+        run("LongSelector: smallest and largest", LongSelectorTest::smallestAndLargest);
+        run("LongSelector: k past the end", LongSelectorTest::kPastTheEnd);
+        run("LongSelector: percentiles are nearest rank", LongSelectorTest::percentilesAreNearestRank);
+        run("LongSelector: percentiles of a repeated value", LongSelectorTest::percentilesOfARepeatedValue);
+        run("LongSelector: percentiles over a tiny heap", LongSelectorTest::percentilesOverATinyHeap);
+        run("LongSelector: quickselect", LongSelectorTest::quickselect);
+    }
+
+    static void smallestAndLargest() throws Exception {
+        long[] values = random(100_000, 4);
+        long[] sorted = sorted(values);
+        var selector = new LongSelector(write(values), options(4));
+        checkEquals(Arrays.copyOf(sorted, 100), selector.smallest(100), "smallest 100");
+        checkEquals(Arrays.copyOfRange(sorted, sorted.length - 100, sorted.length), selector.largest(100), "largest 100");
+        check(selector.smallest(0).length == 0, "expected nothing for k = 0");
+    }
+
+    static void kPastTheEnd() throws Exception {
+        long[] values = {3, Long.MIN_VALUE, -1, Long.MAX_VALUE, 3};
+        var selector = new LongSelector(write(values), options(2));
+        checkEquals(sorted(values), selector.smallest(10), "smallest 10 of 5");
+        checkEquals(sorted(values), selector.largest(10), "largest 10 of 5");
+    }
+
+    static void percentilesAreNearestRank() throws Exception {
+        long[] values = random(100_001, 5);
+        long[] sorted = sorted(values);
+        double[] percents = {0, 0.5, 25, 50, 90, 99.9, 100};
+        long[] expected = new long[percents.length];
+        for (int i = 0; i < percents.length; i++) {
+            long rank = (long) Math.ceil(percents[i] / 100 * sorted.length);
+            expected[i] = sorted[(int) Math.max(0, rank - 1)];
+        }
+        checkEquals(expected, new LongSelector(write(values), options(3)).percentiles(percents), "percentiles");
+    }
+
+    static void percentilesOfARepeatedValue() throws Exception {
+        long[] values = new long[50_000];
+        Arrays.fill(values, -7);
+        values[0] = Long.MIN_VALUE;
+        values[values.length - 1] = Long.MAX_VALUE;
+        long[] percentiles = new LongSelector(write(values), options(2)).percentiles(new double[]{0, 50, 100});
+        checkEquals(new long[]{Long.MIN_VALUE, -7, Long.MAX_VALUE}, percentiles, "percentiles of mostly -7");
+    }
+
+    static void percentilesOverATinyHeap() throws Exception {
+        // too little heap for a bucket's candidates, so the radix passes have to go deeper
+        long[] values = new long[200_000];
+        var random = random(values.length, 6);
+        for (int i = 0; i < values.length; i++) values[i] = random[i] & 0xFFFF_FFFFL;
+        long[] sorted = sorted(values);
+        var options = options(2);
+        options.memoryBytes = 64 * 1024;
+        long[] percentiles = new LongSelector(write(values), options).percentiles(new double[]{10, 50});
+        checkEquals(new long[]{sorted[20_000 - 1], sorted[100_000 - 1]}, percentiles, "percentiles over a tiny heap");
+    }
+
+    static void quickselect() {
+        long[] values = random(10_001, 7);
+        long[] sorted = sorted(values);
+        for (int k : new int[]{0, 1, 5000, 10_000}) {
+            long selected = LongSelector.quickselect(values.clone(), k);
+            check(selected == sorted[k], "expected the " + k + "th smallest to be " + sorted[k] + ", found " + selected);
+        }
+        long[] ties = new long[1000];
+        Arrays.fill(ties, 9);
+        check(LongSelector.quickselect(ties, 500) == 9, "expected ties to select themselves");
+    }
+
+    private static Path write(long[] values) throws Exception {
+        return writeLongs(tempDir().resolve("input.bin"), values);
+    }
+
+    private static SortOptions options(int nThreads) {
+        var options = new SortOptions();
+        options.nThreads = nThreads;
+        return options;
+    }
+}
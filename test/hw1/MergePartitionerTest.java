@@ -0,0 +1,149 @@
+package hw1;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import static hw1.Tests.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Co-ranking (see {@link MergePartitioner}): cuts take exactly the first r elements of the merged output, even when
+ * the same key is spread over several runs, and merging the parts separately gives the same output as one merge.
+ */
+class MergePartitionerTest {
+    public static void main(String[] args) throws Exception {
+        run("MergePartitioner: cuts take the first r elements", MergePartitionerTest::cutsTakeTheFirstElements);
+        run("MergePartitioner: duplicate keys across runs", MergePartitionerTest::duplicateKeysAcrossRuns);
+        run("MergePartitioner: empty runs", MergePartitionerTest::emptyRuns);
+        run("MergePartitioner: parts merge like the whole", MergePartitionerTest::partsMergeLikeTheWhole);
+        run("MergePartitioner: runs read from a file", MergePartitionerTest::runsReadFromAFile);
+        run("MergePartitioner: part counts", MergePartitionerTest::partCounts);
+    }
+
+    static void cutsTakeTheFirstElements() {
+        long[][] runs = {sorted(random(1000, 10)), sorted(random(1, 11)), sorted(random(2500, 12))};
+        long total = Arrays.stream(runs).mapToLong(run -> run.length).sum();
+        for (long rank : new long[]{0, 1, 2, 999, 1000, 1001, total / 2, total - 1, total}) checkCut(runs, rank);
+    }
+
+    static void duplicateKeysAcrossRuns() {
+        // a handful of values, every one of them in every run, so most cuts land in the middle of a tie
+        var random = new Random(13);
+        long[][] runs = new long[5][];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = new long[200 + 100 * i];
+            for (int j = 0; j < runs[i].length; j++) runs[i][j] = random.nextInt(4) - 2;
+            Arrays.sort(runs[i]);
+        }
+        long total = Arrays.stream(runs).mapToLong(run -> run.length).sum();
+        for (long rank = 0; rank <= total; rank += 37) checkCut(runs, rank);
+        checkCut(runs, total);
+        // nothing but one value, everywhere
+        long[][] same = new long[4][300];
+        for (var run : same) Arrays.fill(run, Long.MIN_VALUE);
+        for (long rank : new long[]{0, 1, 299, 300, 301, 899, 1200}) checkCut(same, rank);
+    }
+
+    static void emptyRuns() {
+        long[][] runs = {{}, sorted(random(100, 14)), {}, {5, 5, 5}, {}};
+        for (long rank = 0; rank <= 103; rank++) checkCut(runs, rank);
+        checkCut(new long[][]{{}, {}}, 0);
+    }
+
+    static void partsMergeLikeTheWhole() {
+        var random = new Random(15);
+        long[][] runs = new long[6][];
+        for (int i = 0; i < runs.length; i++) {
+            // keys from a narrow range, so parts start and end inside runs of ties
+            runs[i] = new long[1000 + random.nextInt(1000)];
+            for (int j = 0; j < runs[i].length; j++) runs[i][j] = random.nextInt(50);
+            Arrays.sort(runs[i]);
+        }
+        runs[2] = new long[0];
+        var chunks = new LongBuffer[runs.length];
+        for (int i = 0; i < runs.length; i++) chunks[i] = LongBuffer.wrap(runs[i]);
+        long[] expected = sorted(Arrays.stream(runs).flatMapToLong(Arrays::stream).toArray());
+        for (int parts : new int[]{1, 2, 3, 7, 64}) {
+            var output = LongBuffer.allocate(expected.length);
+            int outputOffset = 0;
+            for (var part : MergePartitioner.partition(chunks, output, parts)) {
+                check(part.outputOffset == outputOffset, "expected a part at " + outputOffset + ", found one at " + part.outputOffset);
+                outputOffset += part.output.limit();
+                new HybridChunkMerger(part.presortedChunks, part.output).call();
+            }
+            check(outputOffset == expected.length, "expected the parts to cover the output");
+            checkEquals(expected, output.array(), parts + " parts");
+        }
+    }
+
+    static void runsReadFromAFile() throws Exception {
+        // runs of 16 byte records, keys at offset 4, in one file: co-ranking reads only the keys it needs
+        var format = new RecordFormat(16, 4);
+        long[][] keys = {sorted(random(300, 16)), sorted(random(500, 17))};
+        var path = tempDir().resolve("records.bin");
+        try (FileChannel channel = FileChannel.open(path, Set.of(CREATE, READ, WRITE))) {
+            var runs = new MergePartitioner.SortedRun[keys.length];
+            long bytePosition = 0;
+            for (int i = 0; i < keys.length; i++) {
+                var records = ByteBuffer.allocate(keys[i].length * format.recordBytes);
+                for (int r = 0; r < keys[i].length; r++) {
+                    records.putInt(r * format.recordBytes, -1);
+                    records.putLong(r * format.recordBytes + format.keyOffset, keys[i][r]);
+                    records.putInt(r * format.recordBytes + 12, -1);
+                }
+                while (records.hasRemaining()) channel.write(records, bytePosition + records.position());
+                runs[i] = MergePartitioner.SortedRun.of(channel, bytePosition, keys[i].length, format);
+                bytePosition += keys[i].length * (long) format.recordBytes;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                for (int r = 0; r < keys[i].length; r += 50) check(runs[i].get(r) == keys[i][r], "expected key " + r + " of run " + i + " to read back");
+            }
+            var cuts = MergePartitioner.cut(runs, 4);
+            for (int p = 1; p < 4; p++) {
+                check(Arrays.equals(cuts[p], MergePartitioner.coRank(buffers(keys), MergePartitioner.rank(cuts[p]))),
+                        "expected cut " + p + " to be the same as over buffers");
+            }
+        }
+    }
+
+    static void partCounts() {
+        int min = MergePartitioner.MIN_PART_LENGTH;
+        check(MergePartitioner.getPartCount(10, 10, 8) == 1, "expected a tiny group to stay whole");
+        check(MergePartitioner.getPartCount(100L * min, 100L * min, 8) == 8, "expected one part per thread for a lone group");
+        check(MergePartitioner.getPartCount(50L * min, 100L * min, 8) == 4, "expected half the threads for half the round");
+        check(MergePartitioner.getPartCount(3L * min, 3L * min, 8) == 3, "expected no part under the minimum length");
+    }
+
+    /**
+     * Checks that co-ranking takes exactly rank elements, and that nothing it took is bigger than anything it left.
+     */
+    private static void checkCut(long[][] runs, long rank) {
+        long[] cuts = MergePartitioner.coRank(buffers(runs), rank);
+        check(MergePartitioner.rank(cuts) == rank, "expected cuts adding up to " + rank + ", found " + Arrays.toString(cuts));
+        long largestTaken = Long.MIN_VALUE, smallestLeft = Long.MAX_VALUE;
+        boolean tookAny = false, leftAny = false;
+        for (int i = 0; i < runs.length; i++) {
+            check(0 <= cuts[i] && cuts[i] <= runs[i].length, "expected cut " + cuts[i] + " inside run " + i);
+            if (cuts[i] > 0) {
+                largestTaken = Math.max(largestTaken, runs[i][(int) cuts[i] - 1]);
+                tookAny = true;
+            }
+            if (cuts[i] < runs[i].length) {
+                smallestLeft = Math.min(smallestLeft, runs[i][(int) cuts[i]]);
+                leftAny = true;
+            }
+        }
+        check(!tookAny || !leftAny || largestTaken <= smallestLeft,
+                "at rank " + rank + " took " + largestTaken + " but left " + smallestLeft + " behind, cuts " + Arrays.toString(cuts));
+    }
+
+    private static MergePartitioner.SortedRun[] buffers(long[][] runs) {
+        var sortedRuns = new MergePartitioner.SortedRun[runs.length];
+        for (int i = 0; i < runs.length; i++) sortedRuns[i] = MergePartitioner.SortedRun.of(LongBuffer.wrap(runs[i]));
+        return sortedRuns;
+    }
+}
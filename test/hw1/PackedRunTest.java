@@ -0,0 +1,128 @@
+package hw1;
+
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import static hw1.Tests.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Delta encoding and bit packing (see {@link PackedRun}): frames decode to what was encoded at every bit width, and
+ * runs read back through the index, whole or in co-ranked parts.
+ */
+class PackedRunTest {
+    public static void main(String[] args) throws Exception {
+        run("PackedRun: every width round trips", PackedRunTest::everyWidthRoundTrips);
+        run("PackedRun: odd frames round trip", PackedRunTest::oddFramesRoundTrip);
+        run("PackedRun: a run reads back whole and in ranges", PackedRunTest::runReadsBack);
+        run("PackedRun: partition cuts runs by value", PackedRunTest::partitionCutsByValue);
+    }
+
+    static void everyWidthRoundTrips() {
+        var random = new Random(42);
+        for (int width = 0; width <= Long.SIZE; width++) {
+            long[] values = new long[PackedRun.FRAME_LENGTH];
+            values[0] = width == Long.SIZE ? Long.MIN_VALUE : random.nextLong();
+            long mask = width == Long.SIZE ? -1L : (1L << width) - 1;
+            for (int i = 1; i < values.length; i++) {
+                // the deltas wrap, so sorting is only up to the caller; the encoding doesn't mind either way
+                values[i] = values[i - 1] + (random.nextLong() & mask);
+            }
+            // make sure the widest delta is there, so the frame is exactly this wide
+            if (width > 0) values[values.length - 1] = values[values.length - 2] + mask;
+            checkRoundTrip(values, width);
+        }
+    }
+
+    static void oddFramesRoundTrip() {
+        checkRoundTrip(new long[]{7}, 0);
+        checkRoundTrip(new long[]{5, 5, 5, 5}, 0);
+        checkRoundTrip(new long[]{Long.MIN_VALUE, Long.MAX_VALUE}, Long.SIZE);
+        checkRoundTrip(new long[]{-3, -2, 0, 1, 1, 1, 100}, 7);
+    }
+
+    private static void checkRoundTrip(long[] values, int expectedWidth) {
+        int width = PackedRun.getWidth(values, 0, values.length);
+        check(width == expectedWidth, "expected width " + expectedWidth + ", found " + width);
+        long[] words = new long[PackedRun.getWordCount(values.length, width)];
+        int n = PackedRun.encode(values, 0, values.length, width, words);
+        check(n == words.length, "expected " + words.length + " words, wrote " + n);
+        long[] decoded = new long[values.length];
+        PackedRun.decode(words, values.length, width, decoded, 0);
+        checkEquals(values, decoded, "width " + width + " didn't round trip");
+    }
+
+    static void runReadsBack() throws Exception {
+        long[] values = sorted(random(3 * PackedRun.FRAME_LENGTH + 17, 1));
+        var path = tempDir().resolve("packed.bin");
+        try (
+                var io = new BlockIO(4096, 2, 1);
+                FileChannel channel = FileChannel.open(path, Set.of(CREATE, READ, WRITE))
+        ) {
+            var index = write(io, channel, 64, values);
+            check(index.length == values.length, "expected the index to hold " + values.length + " values, found " + index.length);
+            check(index.frameCount == 4, "expected 4 frames, found " + index.frameCount);
+            checkEquals(values, read(io, channel, index, 0, values.length), "the whole run didn't read back");
+            // a range that starts and ends mid-frame
+            long from = PackedRun.FRAME_LENGTH / 2, to = 2 * PackedRun.FRAME_LENGTH + 3;
+            checkEquals(Arrays.copyOfRange(values, (int) from, (int) to), read(io, channel, index, from, to), "part of the run didn't read back");
+            check(read(io, channel, index, 5, 5).length == 0, "expected an empty range to read nothing");
+        }
+    }
+
+    static void partitionCutsByValue() throws Exception {
+        long[][] runs = {sorted(random(5000, 2)), sorted(random(3000, 3)), new long[]{42}};
+        var dir = tempDir();
+        try (var io = new BlockIO(4096, 2, 1)) {
+            var channels = new FileChannel[runs.length];
+            var indexes = new PackedRun.Index[runs.length];
+            try {
+                for (int i = 0; i < runs.length; i++) {
+                    channels[i] = FileChannel.open(dir.resolve("run" + i + ".bin"), Set.of(CREATE, READ, WRITE));
+                    indexes[i] = write(io, channels[i], 1000, runs[i]);
+                }
+                int parts = 4;
+                long[][] cuts = PackedRun.partition(indexes, channels, parts);
+                long largestSoFar = Long.MIN_VALUE;
+                for (int p = 0; p < parts; p++) {
+                    long smallest = Long.MAX_VALUE, largest = Long.MIN_VALUE;
+                    for (int i = 0; i < runs.length; i++) {
+                        check(cuts[p][i] <= cuts[p + 1][i], "expected cuts to only move forward");
+                        long[] part = read(io, channels[i], indexes[i], cuts[p][i], cuts[p + 1][i]);
+                        checkEquals(Arrays.copyOfRange(runs[i], (int) cuts[p][i], (int) cuts[p + 1][i]), part, "part " + p + " of run " + i);
+                        for (long value : part) {
+                            smallest = Math.min(smallest, value);
+                            largest = Math.max(largest, value);
+                        }
+                    }
+                    check(smallest >= largestSoFar, "expected part " + p + " to start where part " + (p - 1) + " ended");
+                    largestSoFar = Math.max(largestSoFar, largest);
+                }
+                for (int i = 0; i < runs.length; i++) check(cuts[parts][i] == runs[i].length, "expected the last cut at the end of run " + i);
+            } finally {
+                for (var channel : channels) if (channel != null) channel.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the values in odd-sized pieces, so frames don't line up with writes.
+     */
+    private static PackedRun.Index write(BlockIO io, FileChannel channel, long bytePosition, long[] values) {
+        var writer = new PackedRun.Writer(io.writer(channel, bytePosition), bytePosition);
+        for (int offset = 0; offset < values.length; offset += 333) writer.write(values, offset, Math.min(333, values.length - offset));
+        writer.close();
+        return writer.getIndex();
+    }
+
+    private static long[] read(BlockIO io, FileChannel channel, PackedRun.Index index, long from, long to) {
+        var reader = new PackedRun.Reader(io, channel, index, from, to, 4096);
+        long[] values = new long[(int) (to - from)];
+        int offset = 0;
+        for (int n; (n = reader.read(values, offset, Math.min(100, values.length - offset))) > 0; ) offset += n;
+        check(offset == values.length, "expected " + values.length + " values, read " + offset);
+        return values;
+    }
+}
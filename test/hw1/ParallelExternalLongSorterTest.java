@@ -0,0 +1,85 @@
+package hw1;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * The whole sort (see {@link ParallelExternalLongSorter}) on the inputs that trip up its merge checks: runs that start
+ * with the same value, or hold nothing but a few values. The checks only run with -ea, which is how these should run.
+ */
+class ParallelExternalLongSorterTest {
+    public static void main(String[] args) throws Exception {
+        run("ParallelExternalLongSorter: duplicate heavy merges", ParallelExternalLongSorterTest::duplicateHeavyMerges);
+        run("ParallelExternalLongSorter: duplicate heavy distribution", ParallelExternalLongSorterTest::duplicateHeavyDistribution);
+        run("ParallelExternalLongSorter: partial longs are refused", ParallelExternalLongSorterTest::partialLongsAreRefused);
+    }
+
+    static void duplicateHeavyMerges() throws Exception {
+        long[] fewDistinct = fewDistinct(300_000, 3, 70);
+        long[] oneValue = fewDistinct(100_000, 1, 71);
+        for (var ioMode : SortOptions.IOMode.values()) {
+            var options = external(ioMode);
+            checkEquals(sorted(fewDistinct), sort(fewDistinct, options), "few distinct values, io=" + ioMode);
+            checkEquals(oneValue, sort(oneValue, options), "one value, io=" + ioMode);
+        }
+    }
+
+    static void duplicateHeavyDistribution() throws Exception {
+        long[] values = fewDistinct(300_000, 4, 72);
+        var options = external(SortOptions.IOMode.MMAP);
+        options.mode = SortOptions.Mode.DISTRIBUTION;
+        // big enough for a whole value's worth of bucket, or it falls back to merging
+        options.runBytes = 1024 * 1024;
+        checkEquals(sorted(values), sort(values, options), "few distinct values");
+    }
+
+    static void partialLongsAreRefused() throws Exception {
+        // 12 bytes fits in memory, 64K and a bit doesn't
+        for (int size : new int[]{12, 64 * 1024 + 4}) {
+            for (var options : new SortOptions[]{new SortOptions(), external(SortOptions.IOMode.MMAP)}) {
+                var dir = tempDir();
+                Path input = Files.write(dir.resolve("input.bin"), new byte[size]);
+                Path output = dir.resolve("output.bin");
+                try {
+                    new ParallelExternalLongSorter(input, output, options).sort();
+                    throw new AssertionError("expected " + size + " bytes to be refused");
+                } catch (RuntimeException e) {
+                    check(String.valueOf(e.getMessage()).startsWith("Abort: input isn't a whole number of longs"), "expected a partial long to abort, found " + e);
+                }
+                check(!Files.exists(output), "expected nothing to be written for " + size + " bytes");
+            }
+        }
+    }
+
+    /**
+     * @return small runs merged a few at a time, so there are several rounds of merges with several parts each
+     */
+    static SortOptions external(SortOptions.IOMode ioMode) {
+        var options = new SortOptions();
+        options.nThreads = 2;
+        options.inMemory = false;
+        options.detectRuns = false;
+        options.ioMode = ioMode;
+        options.runBytes = 64 * 1024;
+        options.fanIn = 4;
+        return options;
+    }
+
+    static long[] sort(long[] values, SortOptions options) throws Exception {
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), values);
+        Path output = dir.resolve("output.bin");
+        new ParallelExternalLongSorter(input, output, options).sort();
+        return readLongs(output);
+    }
+
+    private static long[] fewDistinct(int length, int distinct, long seed) {
+        var random = new Random(seed);
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) values[i] = random.nextInt(distinct) * 1000L - 1000;
+        return values;
+    }
+}
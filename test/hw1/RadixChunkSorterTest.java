@@ -0,0 +1,70 @@
+package hw1;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * LSD radix sort (see {@link RadixChunkSorter}): negative keys go before positive ones, passes over a digit every key
+ * shares are skipped without losing track of which array holds the result, and carried indices follow their keys.
+ */
+class RadixChunkSorterTest {
+    public static void main(String[] args) throws Exception {
+        run("RadixChunkSorter: signed keys", RadixChunkSorterTest::signedKeys);
+        run("RadixChunkSorter: skipped passes", RadixChunkSorterTest::skippedPasses);
+        run("RadixChunkSorter: striped histograms", RadixChunkSorterTest::stripedHistograms);
+        run("RadixChunkSorter: indices follow their keys", RadixChunkSorterTest::indicesFollowTheirKeys);
+    }
+
+    static void signedKeys() {
+        checkSorts(new long[]{1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0, -256, 255, 256, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1}, "extremes");
+        checkSorts(random(10_000, 50), "random");
+        long[] negatives = random(10_000, 51);
+        for (int i = 0; i < negatives.length; i++) negatives[i] = -Math.abs(negatives[i] >> 1) - 1;
+        checkSorts(negatives, "only negatives");
+        checkSorts(new long[0], "empty");
+        checkSorts(new long[]{-7}, "one key");
+    }
+
+    static void skippedPasses() {
+        var random = new Random(52);
+        // only the lowest byte varies, so 7 of the 8 passes are skipped (an odd number of passes actually run)
+        long[] lowByte = new long[5000];
+        for (int i = 0; i < lowByte.length; i++) lowByte[i] = 0x1234_5678_0000_0000L | random.nextInt(256);
+        checkSorts(lowByte, "only the lowest byte varies");
+        // two bytes vary, an even number of passes
+        long[] twoBytes = new long[5000];
+        for (int i = 0; i < twoBytes.length; i++) twoBytes[i] = -random.nextInt(1 << 16) - 1;
+        checkSorts(twoBytes, "two bytes vary, all negative");
+        // only the sign byte varies
+        long[] signByte = new long[5000];
+        for (int i = 0; i < signByte.length; i++) signByte[i] = (long) (random.nextInt(256) - 128) << 56;
+        checkSorts(signByte, "only the sign byte varies");
+        long[] allEqual = new long[1000];
+        Arrays.fill(allEqual, Long.MIN_VALUE);
+        checkSorts(allEqual, "all equal");
+    }
+
+    static void stripedHistograms() {
+        // past a stripe's worth, the histograms are counted in parallel and added up
+        checkSorts(random((1 << 20) + (1 << 19) + 3, 53), "a stripe and a half");
+    }
+
+    static void indicesFollowTheirKeys() {
+        long[] keys = random(20_000, 54);
+        for (int i = 0; i < keys.length; i += 3) keys[i] = keys[i] & 0xFF; // some ties, some positives
+        long[] original = keys.clone();
+        int[] indices = new int[keys.length];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        RadixChunkSorter.radixSort(keys, indices);
+        checkEquals(sorted(original), keys, "keys");
+        for (int i = 0; i < keys.length; i++) check(original[indices[i]] == keys[i], "expected index " + indices[i] + " to follow key " + keys[i]);
+        // LSD passes are stable, so ties keep their input order
+        for (int i = 1; i < keys.length; i++) check(keys[i - 1] != keys[i] || indices[i - 1] < indices[i], "expected ties to keep their order at " + i);
+    }
+
+    private static void checkSorts(long[] values, String message) {
+        checkEquals(sorted(values), RadixChunkSorter.radixSort(values.clone()), message);
+    }
+}
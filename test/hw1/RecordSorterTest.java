@@ -0,0 +1,171 @@
+package hw1;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * Sorting fixed-width records (see {@link RecordSorter}): records come out in key order with their payloads intact,
+ * across merge rounds that are split up between threads, and options records can't do are refused (here and by
+ * everything else that only sorts longs).
+ */
+class RecordSorterTest {
+    public static void main(String[] args) throws Exception {
+        run("RecordSorter: keys in the middle of records", RecordSorterTest::keysInTheMiddleOfRecords);
+        run("RecordSorter: duplicate keys", RecordSorterTest::duplicateKeys);
+        run("RecordSorter: one run, no merging", RecordSorterTest::oneRunNoMerging);
+        run("RecordSorter: partial records are refused", RecordSorterTest::partialRecordsAreRefused);
+        run("RecordSorter: options records can't do are refused", RecordSorterTest::optionsRecordsCantDoAreRefused);
+        run("RecordSorter: long sorters refuse records", RecordSorterTest::longSortersRefuseRecords);
+    }
+
+    static void keysInTheMiddleOfRecords() throws Exception {
+        var format = new RecordFormat(24, 4);
+        var random = new Random(110);
+        long[] keys = new long[200_000];
+        for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong();
+        // several rounds of merges, the last ones over groups big enough to be split up between threads
+        check(MergePartitioner.getPartCount(keys.length, keys.length, 3) > 1, "expected the last merge to be split up");
+        checkSorts(format, keys, options(format, 24 * 10_000, 4));
+        checkSorts(format, Arrays.copyOf(keys, 5000), options(format, 24 * 100, 2));
+    }
+
+    static void duplicateKeys() throws Exception {
+        var format = new RecordFormat(16, 0);
+        var random = new Random(111);
+        long[] keys = new long[40_000];
+        for (int i = 0; i < keys.length; i++) keys[i] = random.nextInt(3) - 1;
+        checkSorts(format, keys, options(format, 16 * 1000, 3));
+    }
+
+    static void oneRunNoMerging() throws Exception {
+        var format = new RecordFormat(12, 4);
+        long[] keys = random(1000, 112);
+        var options = options(format, 0, 0);
+        options.nThreads = 1;
+        checkSorts(format, keys, options);
+    }
+
+    static void partialRecordsAreRefused() throws Exception {
+        var format = new RecordFormat(24, 4);
+        var dir = tempDir();
+        Path input = dir.resolve("input.bin");
+        Files.write(input, new byte[24 * 10 + 5]);
+        Path output = dir.resolve("output.bin");
+        try {
+            new RecordSorter(input, output, options(format, 0, 0)).sort();
+        } catch (RuntimeException e) {
+            check(e.getMessage().startsWith("Abort: input isn't a whole number"), "expected a partial record to abort, found " + e);
+            check(!Files.exists(output), "expected nothing to be written");
+            return;
+        }
+        throw new AssertionError("expected a partial record to abort");
+    }
+
+    static void optionsRecordsCantDoAreRefused() throws Exception {
+        var format = new RecordFormat(24, 4);
+        var dir = tempDir();
+        Path input = dir.resolve("input.bin");
+        Path output = dir.resolve("output.bin");
+        var distribution = options(format, 0, 0);
+        distribution.mode = SortOptions.Mode.DISTRIBUTION;
+        var async = options(format, 0, 0);
+        async.ioMode = SortOptions.IOMode.ASYNC;
+        var checkpointed = options(format, 0, 0);
+        checkpointed.checkpointPath = dir.resolve("sort.checkpoint");
+        checkRefused(() -> new RecordSorter(input, output, distribution), "mode=DISTRIBUTION");
+        checkRefused(() -> new RecordSorter(input, output, async), "io=ASYNC");
+        checkRefused(() -> new RecordSorter(input, output, checkpointed), "checkpoint");
+    }
+
+    static void longSortersRefuseRecords() throws Exception {
+        var format = new RecordFormat(16, 4);
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), random(100, 113));
+        Path output = dir.resolve("output.bin");
+        var options = options(format, 0, 0);
+        checkRefused(() -> new ParallelExternalLongSorter(input, output, options), "RecordSorter");
+        checkRefused(() -> new StreamingLongSorter(new ByteArrayInputStream(new byte[160]), output, options), "RecordSorter");
+        check(!Files.exists(output), "expected nothing to be written");
+    }
+
+    /**
+     * @param mention what the refusal should name (the option refused, or what to use instead)
+     */
+    private static void checkRefused(Test test, String mention) throws Exception {
+        try {
+            test.run();
+        } catch (IllegalArgumentException e) {
+            check(e.getMessage().contains(mention), "expected a refusal naming " + mention + ", found " + e.getMessage());
+            return;
+        }
+        throw new AssertionError("expected a refusal naming " + mention);
+    }
+
+    /**
+     * Writes records with the given keys (the rest of each record holds its index, for checking payloads), sorts them
+     * and checks that every record came out whole and in key order.
+     */
+    private static void checkSorts(RecordFormat format, long[] keys, SortOptions options) throws Exception {
+        var dir = tempDir();
+        Path input = dir.resolve("input.bin");
+        Path output = dir.resolve("output.bin");
+        var records = ByteBuffer.allocate(keys.length * format.recordBytes);
+        for (int i = 0; i < keys.length; i++) writeRecord(records, format, i, keys[i], i);
+        Files.write(input, records.array());
+        new RecordSorter(input, output, options).sort();
+
+        var sorted = ByteBuffer.wrap(Files.readAllBytes(output));
+        check(sorted.capacity() == records.capacity(), "expected " + records.capacity() + " bytes, found " + sorted.capacity());
+        boolean[] seen = new boolean[keys.length];
+        long previous = Long.MIN_VALUE;
+        for (int r = 0; r < keys.length; r++) {
+            long key = format.key(sorted, r);
+            int index = payload(sorted, format, r);
+            check(key >= previous, "expected record " + r + " to be in key order");
+            check(index >= 0 && index < keys.length && !seen[index], "expected record " + r + " to hold a payload seen once, found " + index);
+            check(keys[index] == key, "expected record " + r + " to keep its own payload");
+            var expected = ByteBuffer.allocate(format.recordBytes);
+            writeRecord(expected, format, 0, key, index);
+            check(Arrays.equals(expected.array(), Arrays.copyOfRange(sorted.array(), r * format.recordBytes, (r + 1) * format.recordBytes)),
+                    "expected record " + r + " to come out whole");
+            seen[index] = true;
+            previous = key;
+        }
+    }
+
+    /**
+     * Every byte outside the key holds a byte of the record's index, so a torn record doesn't go unnoticed.
+     */
+    private static void writeRecord(ByteBuffer records, RecordFormat format, int record, long key, int index) {
+        int start = record * format.recordBytes;
+        for (int b = 0; b < format.recordBytes; b++) records.put(start + b, (byte) (index >>> (8 * (b % 4))));
+        records.putLong(start + format.keyOffset, key);
+    }
+
+    private static int payload(ByteBuffer records, RecordFormat format, int record) {
+        int start = record * format.recordBytes;
+        // the first four bytes outside the key hold the index's bytes, whichever positions they landed in
+        int index = 0;
+        for (int b = 0, found = 0; found < 4; b++) {
+            if (b >= format.keyOffset && b < format.keyOffset + Long.BYTES) continue;
+            index |= (records.get(start + b) & 0xFF) << (8 * (b % 4));
+            found++;
+        }
+        return index;
+    }
+
+    private static SortOptions options(RecordFormat format, long runBytes, int fanIn) {
+        var options = new SortOptions();
+        options.nThreads = 3;
+        options.recordFormat = format;
+        options.runBytes = runBytes;
+        options.fanIn = fanIn;
+        return options;
+    }
+}
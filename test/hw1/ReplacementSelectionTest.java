@@ -0,0 +1,91 @@
+package hw1;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static hw1.Tests.*;
+
+/**
+ * Replacement selection (see {@link ReplacementSelection}): runs come out sorted and back to back and hold every
+ * input element once, about twice the heap on random input, one run for sorted input, and never past the cap.
+ */
+class ReplacementSelectionTest {
+    public static void main(String[] args) throws Exception {
+        run("ReplacementSelection: random runs are twice the heap", ReplacementSelectionTest::randomRunsAreTwiceTheHeap);
+        run("ReplacementSelection: sorted input is one run", ReplacementSelectionTest::sortedInputIsOneRun);
+        run("ReplacementSelection: reversed input fills the heap", ReplacementSelectionTest::reversedInputFillsTheHeap);
+        run("ReplacementSelection: runs stop at the cap", ReplacementSelectionTest::runsStopAtTheCap);
+        run("ReplacementSelection: duplicates and short inputs", ReplacementSelectionTest::duplicatesAndShortInputs);
+    }
+
+    static void randomRunsAreTwiceTheHeap() {
+        long[] values = random(200_000, 100);
+        int capacity = 5000;
+        var runs = checkRuns(values, capacity, Long.MAX_VALUE, 7);
+        double average = (double) values.length / runs.size();
+        check(average > 1.7 * capacity, "expected runs of about " + 2 * capacity + ", found " + runs.size() + " runs of " + average + " on average");
+    }
+
+    static void sortedInputIsOneRun() {
+        long[] values = sorted(random(100_000, 101));
+        check(checkRuns(values, 1000, Long.MAX_VALUE, 333).size() == 1, "expected sorted input to be one run");
+    }
+
+    static void reversedInputFillsTheHeap() {
+        long[] values = sorted(random(10_000, 102));
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+        var runs = checkRuns(values, 1000, Long.MAX_VALUE, 1000);
+        check(runs.size() == 10, "expected reversed input to come out in runs of the heap's size, found " + runs.size() + " runs");
+    }
+
+    static void runsStopAtTheCap() {
+        // a heap bigger than the cap, so the heap's leftovers carry over into the next run
+        long[] values = sorted(random(50_000, 103));
+        var runs = checkRuns(values, 4000, 3000, 1000);
+        check(runs.stream().allMatch(run -> run.length <= 3000), "expected no run past 3000, found " + runs);
+        check(runs.size() == 17, "expected sorted input in runs of exactly 3000, found " + runs.size() + " runs");
+        checkRuns(random(50_000, 104), 4000, 3000, 1000);
+    }
+
+    static void duplicatesAndShortInputs() {
+        var random = new Random(105);
+        long[] fewDistinct = new long[30_000];
+        for (int i = 0; i < fewDistinct.length; i++) fewDistinct[i] = random.nextInt(3);
+        checkRuns(fewDistinct, 1000, Long.MAX_VALUE, 100);
+        // a heap that's only partly filled, one element, nothing at all
+        checkRuns(random(10, 106), 1000, Long.MAX_VALUE, 3);
+        checkRuns(new long[]{42}, 1, 1, 1);
+        check(checkRuns(new long[0], 1000, Long.MAX_VALUE, 1).isEmpty(), "expected no runs without input");
+        // bigger than the initial heap, so it has to grow
+        checkRuns(random(3 * ReplacementSelection.INITIAL_CAPACITY, 107), 2 * ReplacementSelection.INITIAL_CAPACITY, Long.MAX_VALUE, 5000);
+    }
+
+    /**
+     * Runs the values through replacement selection, fed in pieces of the given length, and checks the runs.
+     *
+     * @return the runs
+     */
+    private static List<Split> checkRuns(long[] values, int capacity, long maxRunLength, int pieceLength) {
+        var output = LongBuffer.allocate(values.length);
+        var input = LongBuffer.wrap(values);
+        // hands out a few values at a time, like a pipe would
+        LongSource pieces = (dst, offset, length) -> LongSource.of(input).read(dst, offset, Math.min(length, pieceLength));
+        var runs = new ReplacementSelection(capacity, maxRunLength).generate(pieces, LongSink.of(output), 10);
+        check(output.position() == values.length, "expected " + values.length + " values written, found " + output.position());
+        long index = 10;
+        for (var run : runs) {
+            check(run.index == index && run.length > 0, "expected a run at " + index + ", found " + run);
+            long[] written = Arrays.copyOfRange(output.array(), (int) (run.index - 10), (int) (run.index - 10 + run.length));
+            checkEquals(sorted(written), written, "run " + run);
+            index += run.length;
+        }
+        checkEquals(sorted(values), sorted(output.array()), "every value once");
+        return runs;
+    }
+}
@@ -0,0 +1,128 @@
+package hw1;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static hw1.Tests.*;
+
+/**
+ * The presortedness scan (see {@link RunDetector}): sorted, reversed, a few natural runs or none of the above, whichever
+ * slice the telling bits land in, and reversed input copied back into order.
+ */
+class RunDetectorTest {
+    public static void main(String[] args) throws Exception {
+        run("RunDetector: sorted, with ties", RunDetectorTest::sorted);
+        run("RunDetector: reversed, with ties", RunDetectorTest::reversed);
+        run("RunDetector: natural runs", RunDetectorTest::naturalRuns);
+        run("RunDetector: a descent where slices meet", RunDetectorTest::descentWhereSlicesMeet);
+        run("RunDetector: too many runs", RunDetectorTest::tooManyRuns);
+        run("RunDetector: random gives up early", RunDetectorTest::randomGivesUpEarly);
+        run("RunDetector: reverse copy", RunDetectorTest::reverseCopy);
+    }
+
+    static void sorted() throws Exception {
+        long[] values = Tests.sorted(random(10_000, 8));
+        values[5000] = values[5001]; // a tie
+        checkOrder(scan(values, 4, 16), RunDetector.Order.SORTED);
+        checkOrder(scan(new long[]{1}, 4, 16), RunDetector.Order.SORTED);
+        long[] constant = new long[1000];
+        Arrays.fill(constant, 3);
+        checkOrder(scan(constant, 4, 16), RunDetector.Order.SORTED);
+    }
+
+    static void reversed() throws Exception {
+        long[] values = Tests.sorted(random(10_000, 9));
+        reverse(values);
+        values[100] = values[99];
+        checkOrder(scan(values, 4, 16), RunDetector.Order.REVERSED);
+    }
+
+    static void naturalRuns() throws Exception {
+        // three appended batches of sorted data
+        int[] lengths = {4000, 2500, 3500};
+        long[] values = batches(lengths, 10);
+        var scan = scan(values, 4, 16);
+        checkOrder(scan, RunDetector.Order.RUNS);
+        check(scan.runs.size() == lengths.length, "expected " + lengths.length + " runs, found " + scan.runs.size());
+        long index = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            var run = scan.runs.get(i);
+            check(run.index == index && run.length == lengths[i], "expected run " + i + " at " + index + " of length " + lengths[i] + ", found " + run);
+            index += lengths[i];
+        }
+        // when merging natural runs isn't an option, they're just unsorted
+        checkOrder(scan(values, 4, 0), RunDetector.Order.UNSORTED);
+    }
+
+    static void descentWhereSlicesMeet() throws Exception {
+        // with 2 threads the slices meet at 5000, right where the second run starts
+        long[] values = batches(new int[]{5000, 5000}, 11);
+        var scan = scan(values, 2, 16);
+        checkOrder(scan, RunDetector.Order.RUNS);
+        check(scan.runs.size() == 2 && scan.runs.get(1).index == 5000, "expected the second run at 5000, found " + scan.runs);
+        // and two reversed halves only go up where the slices meet, which still makes the whole not reversed
+        long[] reversedHalves = batches(new int[]{5000, 5000}, 12);
+        reverse(reversedHalves);
+        checkOrder(scan(reversedHalves, 2, 16), RunDetector.Order.UNSORTED);
+    }
+
+    static void tooManyRuns() throws Exception {
+        int[] lengths = new int[20];
+        Arrays.fill(lengths, 500);
+        checkOrder(scan(batches(lengths, 13), 4, 16), RunDetector.Order.UNSORTED);
+        checkOrder(scan(batches(lengths, 13), 4, 20), RunDetector.Order.RUNS);
+    }
+
+    static void randomGivesUpEarly() throws Exception {
+        long[] values = random(1_000_000, 14);
+        var scan = scan(values, 4, 16);
+        checkOrder(scan, RunDetector.Order.UNSORTED);
+        check(scan.bytesRead < values.length * (long) Long.BYTES / 2, "expected the scan to give up early, it read " + scan.bytesRead + " bytes");
+    }
+
+    static void reverseCopy() throws Exception {
+        long[] values = Tests.sorted(random(30_001, 15));
+        long[] reversed = values.clone();
+        reverse(reversed);
+        var dir = tempDir();
+        Path input = writeLongs(dir.resolve("input.bin"), reversed);
+        Path output = dir.resolve("output.bin");
+        RunDetector.reverseCopy(input, output, Files.size(input), 4, Watchdog.DEFAULT_STALL_SECONDS);
+        checkEquals(values, readLongs(output), "reverse copy");
+    }
+
+    private static RunDetector.Scan scan(long[] values, int nThreads, int maxRuns) throws Exception {
+        Path input = writeLongs(tempDir().resolve("input.bin"), values);
+        return RunDetector.scan(input, Files.size(input), nThreads, Watchdog.DEFAULT_STALL_SECONDS, maxRuns);
+    }
+
+    private static void checkOrder(RunDetector.Scan scan, RunDetector.Order expected) {
+        check(scan.order == expected, "expected " + expected + ", found " + scan);
+    }
+
+    /**
+     * @return sorted batches of the given lengths, back to back (each starting below where the last one ended)
+     */
+    private static long[] batches(int[] lengths, long seed) {
+        long[] values = new long[Arrays.stream(lengths).sum()];
+        int offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            long[] batch = Tests.sorted(random(lengths[i], seed + i));
+            // keep the first value of every batch below the last value of the one before it
+            batch[0] = Long.MIN_VALUE;
+            batch[batch.length - 1] = Long.MAX_VALUE;
+            System.arraycopy(batch, 0, values, offset, batch.length);
+            offset += batch.length;
+        }
+        return values;
+    }
+
+    private static void reverse(long[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
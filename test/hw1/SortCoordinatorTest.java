@@ -0,0 +1,125 @@
+package hw1;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static hw1.Tests.*;
+
+/**
+ * Sorting across JVMs (see {@link SortCoordinator}): a {@link SortWorker} driven by hand through every step of the
+ * protocol, a whole coordinated sort, and workers that don't make it.
+ */
+class SortCoordinatorTest {
+    public static void main(String[] args) throws Exception {
+        run("SortCoordinator: a worker speaks the protocol", SortCoordinatorTest::workerSpeaksTheProtocol);
+        run("SortCoordinator: workers sort between them", SortCoordinatorTest::workersSortBetweenThem);
+        run("SortCoordinator: a worker that dies aborts", SortCoordinatorTest::workerThatDiesAborts);
+    }
+
+    static void workerSpeaksTheProtocol() throws Exception {
+        var dir = tempDir();
+        long[] values = random(20_000, 30);
+        Path inputPath = writeLongs(dir.resolve("input.bin"), values);
+        Path outputPath = dir.resolve("output.bin");
+        Utils.preallocate(outputPath, Files.size(inputPath));
+        var process = new ProcessBuilder(javaCommand(SortWorker.class, inputPath.toString(), outputPath.toString(), "--threads=2"))
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        var in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        var out = new PrintStream(process.getOutputStream(), true, StandardCharsets.US_ASCII);
+        try {
+            String[] ready = in.readLine().split(" ");
+            check(ready[0].equals("ready") && Long.parseLong(ready[1]) > 0, "expected ready and a range size, found " + String.join(" ", ready));
+
+            long[] splitters = {-(1L << 62), 0, 1L << 62};
+            out.println("splitters " + join(splitters));
+            checkReply(in.readLine(), "done");
+
+            // this worker gets the whole input as its slice
+            out.println("count 0 " + values.length);
+            String[] counts = in.readLine().split(" ");
+            check(counts[0].equals("counts"), "expected counts, found " + String.join(" ", counts));
+            long[] bucketLengths = Arrays.stream(counts, 1, counts.length).mapToLong(Long::parseLong).toArray();
+            long[] expected = new long[splitters.length + 1];
+            for (long value : values) expected[DistributionSorter.bucketOf(splitters, value)]++;
+            checkEquals(expected, bucketLengths, "bucket counts");
+
+            long[] bucketStarts = new long[bucketLengths.length];
+            for (int b = 1; b < bucketStarts.length; b++) bucketStarts[b] = bucketStarts[b - 1] + bucketLengths[b - 1];
+            out.println("scatter " + join(bucketStarts));
+            checkReply(in.readLine(), "done");
+
+            var sort = new StringBuilder("sort");
+            for (int b = 0; b < bucketStarts.length; b++) sort.append(' ').append(bucketStarts[b]).append(' ').append(bucketLengths[b]);
+            out.println(sort);
+            checkReply(in.readLine(), "done");
+            checkEquals(sorted(values), readLongs(outputPath), "worker's output");
+
+            // a bad command gets an error, and the worker carries on
+            out.println("shuffle 1 2 3");
+            String error = in.readLine();
+            check(error.startsWith("error ") && error.contains("shuffle"), "expected an error about shuffle, found " + error);
+            out.println("exit");
+            check(process.waitFor(SortCoordinator.WORKER_EXIT_SECONDS, TimeUnit.SECONDS), "expected the worker to exit when told");
+            check(process.exitValue() == 0, "expected the worker to exit cleanly, exit code " + process.exitValue());
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    static void workersSortBetweenThem() throws Exception {
+        var dir = tempDir();
+        long[] values = random(300_000, 31);
+        Path inputPath = writeLongs(dir.resolve("input.bin"), values);
+        Path outputPath = dir.resolve("output.bin");
+        var sorted = new SortCoordinator(inputPath, outputPath, options("workers", "3", "threads", "1", "worker-jvm-args", "-Xmx64m")).sort();
+        check(sorted, "expected the workers to manage on their own");
+        checkEquals(Tests.sorted(values), readLongs(outputPath), "coordinated sort's output");
+    }
+
+    static void workerThatDiesAborts() throws Exception {
+        var dir = tempDir();
+        Path inputPath = writeLongs(dir.resolve("input.bin"), random(1000, 32));
+        Path outputPath = dir.resolve("output.bin");
+        // "false java ..." exits without a word
+        var coordinator = new SortCoordinator(inputPath, outputPath, options("workers", "2", "worker-command", "false"));
+        try {
+            coordinator.sort();
+        } catch (RuntimeException e) {
+            check(String.valueOf(e.getMessage()).startsWith("Abort: worker 0 died"), "expected worker 0 to have died, found " + e);
+            return;
+        }
+        throw new AssertionError("expected the sort to abort when its workers die");
+    }
+
+    private static Map<String, String> options(String... namesAndValues) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) options.put(namesAndValues[i], namesAndValues[i + 1]);
+        return options;
+    }
+
+    private static List<String> javaCommand(Class<?> main, String... args) {
+        var command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), main.getName()));
+        command.addAll(List.of(args));
+        return command;
+    }
+
+    private static void checkReply(String reply, String expected) {
+        check(expected.equals(reply), "expected " + expected + ", found " + reply);
+    }
+
+    private static String join(long[] values) {
+        return String.join(" ", Arrays.stream(values).mapToObj(String::valueOf).toList());
+    }
+}
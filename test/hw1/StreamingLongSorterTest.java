@@ -0,0 +1,85 @@
+package hw1;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static hw1.Tests.*;
+
+/**
+ * Sorting a stream of unknown length (see {@link StreamingLongSorter}): one run or many, sorted or by replacement
+ * selection, and the options a stream can't honor are refused before anything is read.
+ */
+class StreamingLongSorterTest {
+    public static void main(String[] args) throws Exception {
+        run("StreamingLongSorter: a stream that fits in one run", StreamingLongSorterTest::streamThatFitsInOneRun);
+        run("StreamingLongSorter: a stream of many runs", StreamingLongSorterTest::streamOfManyRuns);
+        run("StreamingLongSorter: runs by replacement selection", StreamingLongSorterTest::runsByReplacementSelection);
+        run("StreamingLongSorter: options it can't honor are refused", StreamingLongSorterTest::optionsItCantHonorAreRefused);
+    }
+
+    static void streamThatFitsInOneRun() throws Exception {
+        long[] values = random(1000, 90);
+        checkEquals(sorted(values), sort(values, options()), "one run");
+    }
+
+    static void streamOfManyRuns() throws Exception {
+        long[] values = random(100_000, 91);
+        var options = options();
+        options.runBytes = 64 * 1024;
+        options.fanIn = 4;
+        checkEquals(sorted(values), sort(values, options), "runs of 8K longs");
+    }
+
+    static void runsByReplacementSelection() throws Exception {
+        long[] values = random(100_000, 92);
+        var options = options();
+        options.runBytes = 64 * 1024;
+        options.runGeneration = SortOptions.RunGeneration.REPLACEMENT_SELECTION;
+        checkEquals(sorted(values), sort(values, options), "replacement selection runs");
+    }
+
+    static void optionsItCantHonorAreRefused() throws Exception {
+        var distribution = options();
+        distribution.mode = SortOptions.Mode.DISTRIBUTION;
+        checkRefused(distribution, "mode=DISTRIBUTION");
+        var compressed = options();
+        compressed.compressRuns = true;
+        compressed.ioMode = SortOptions.IOMode.ASYNC;
+        checkRefused(compressed, "compress-runs");
+        var checkpointed = options();
+        checkpointed.checkpointPath = tempDir().resolve("sort.checkpoint");
+        checkRefused(checkpointed, "checkpoint");
+    }
+
+    private static void checkRefused(SortOptions options, String option) throws Exception {
+        Path output = tempDir().resolve("output.bin");
+        try {
+            new StreamingLongSorter(new ByteArrayInputStream(bytes(random(10, 93))), output, options).sort();
+        } catch (IllegalArgumentException e) {
+            check(e.getMessage().contains(option), "expected " + option + " to be refused, found " + e.getMessage());
+            check(!Files.exists(output), "expected nothing to be written");
+            return;
+        }
+        throw new AssertionError("expected " + option + " to be refused");
+    }
+
+    private static long[] sort(long[] values, SortOptions options) throws Exception {
+        Path output = tempDir().resolve("output.bin");
+        new StreamingLongSorter(new ByteArrayInputStream(bytes(values)), output, options).sort();
+        return readLongs(output);
+    }
+
+    private static SortOptions options() {
+        var options = new SortOptions();
+        options.nThreads = 2;
+        return options;
+    }
+
+    private static byte[] bytes(long[] values) {
+        var bytes = ByteBuffer.allocate(values.length * Long.BYTES);
+        bytes.asLongBuffer().put(values);
+        return bytes.array();
+    }
+}
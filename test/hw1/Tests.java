@@ -0,0 +1,105 @@
+package hw1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Just enough of a test harness to not need a dependency: every test class has a main that runs its tests through
+ * {@link #run}, and {@link AllTests} runs every test class. Checks don't rely on -ea, but run with it anyway so the
+ * sort's own assertions get exercised too.
+ * <pre>
+ * javac -d out src/hw1/*.java test/hw1/*.java &amp;&amp; java -ea -cp out hw1.AllTests
+ * </pre>
+ */
+class Tests {
+    interface Test {
+        void run() throws Exception;
+    }
+
+    static {
+        // the sort's play-by-play drowns out which test is running
+        Logger.getLogger("").setLevel(Level.WARNING);
+        for (var handler : Logger.getLogger("").getHandlers()) handler.setLevel(Level.WARNING);
+    }
+
+    static void run(String name, Test test) throws Exception {
+        try {
+            test.run();
+        } catch (Exception | AssertionError e) {
+            System.out.println("FAIL " + name);
+            throw e;
+        }
+        System.out.println("ok   " + name);
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static void checkEquals(long[] expected, long[] actual, String message) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + abbreviate(expected) + ", found " + abbreviate(actual));
+        }
+    }
+
+    private static String abbreviate(long[] values) {
+        if (values.length <= 10) return Arrays.toString(values);
+        return Arrays.toString(Arrays.copyOf(values, 10)).replace("]", ", ... (" + values.length + " values)]");
+    }
+
+    /**
+     * @return a fresh directory, deleted (with everything in it) when the JVM exits
+     */
+    static Path tempDir() throws IOException {
+        var dir = Files.createTempDirectory("parallel-sort-test");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException ignored) {
+                // it's in the temp dir, it'll go eventually
+            }
+        }));
+        return dir;
+    }
+
+    static long[] random(int length, long seed) {
+        return new Random(seed).longs(length).toArray();
+    }
+
+    static long[] sorted(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Writes the values as raw longs, like every input and output.
+     */
+    static Path writeLongs(Path path, long[] values) throws IOException {
+        var bytes = ByteBuffer.allocate(values.length * Long.BYTES);
+        bytes.asLongBuffer().put(values);
+        try (FileChannel channel = FileChannel.open(path, Set.of(CREATE, WRITE, TRUNCATE_EXISTING))) {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+        return path;
+    }
+
+    static long[] readLongs(Path path) throws IOException {
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+        long[] values = new long[bytes.remaining() / Long.BYTES];
+        bytes.asLongBuffer().get(values);
+        return values;
+    }
+}